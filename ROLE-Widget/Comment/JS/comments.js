@@ -62,7 +62,7 @@ var showComments = function (threadId) {
 	}
 		
 	
-	var request = new api.Request("get", "threads/"+threadId, "", function (data) {
+	var request = new api.Request("get", "threads/"+threadId+"?myRating=true", "", function (data) {
     data = JSON.parse(data);
 
     context.admin = data.isAdmin;
@@ -79,7 +79,7 @@ var showComments = function (threadId) {
 }
 
 var showReplys = function (commentId) {
-  var request = new api.Request("get", "comment/"+commentId+"/comments", "", function (data) {
+  var request = new api.Request("get", "comment/"+commentId+"/comments?myRating=true", "", function (data) {
     data = JSON.parse(data);
 
     var html = '<div id="thread-'+commentId+'" class="replys">';
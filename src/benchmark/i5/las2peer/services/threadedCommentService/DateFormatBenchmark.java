@@ -0,0 +1,51 @@
+package i5.las2peer.services.threadedCommentService;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of the date of a serialized comment: the former SimpleDateFormat created per comment, the shared
+ * formatter and milliseconds since the epoch. Run with the GC profiler to compare the allocation per date, e.g.
+ * -Dbenchmark.args="DateFormatBenchmark -prof gc" (gc.alloc.rate.norm).
+ *
+ * Placed in the package of the service, as the serialization of dates is not public.
+ *
+ * @author Jasper Nalbach
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DateFormatBenchmark {
+
+	private final Date date = new Date(1500000000000L);
+
+	@Benchmark
+	public String simpleDateFormat() {
+		return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(date);
+	}
+
+	@Benchmark
+	public Object sharedFormatter() {
+		return ThreadedCommentService._serializeDate(date, false);
+	}
+
+	@Benchmark
+	public Object epochMillis() {
+		return ThreadedCommentService._serializeDate(date, true);
+	}
+}
@@ -0,0 +1,118 @@
+package i5.las2peer.services.threadedCommentService.benchmark;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.ServerSocket;
+
+import i5.las2peer.api.p2p.ServiceNameVersion;
+import i5.las2peer.connectors.webConnector.WebConnector;
+import i5.las2peer.connectors.webConnector.client.ClientResponse;
+import i5.las2peer.connectors.webConnector.client.MiniClient;
+import i5.las2peer.p2p.LocalNode;
+import i5.las2peer.p2p.LocalNodeManager;
+import i5.las2peer.security.ServiceAgentImpl;
+import i5.las2peer.security.UserAgentImpl;
+import i5.las2peer.services.threadedCommentService.ThreadedCommentService;
+import i5.las2peer.testing.MockAgentFactory;
+
+/**
+ * In-process LocalNode running the ThreadedCommentService, the StorageBenchmarkService and a WebConnector. Set up
+ * like the node of ServiceTest.
+ * 
+ * @author Jasper Nalbach
+ *
+ */
+public class BenchmarkNode {
+
+	private static final String SERVICE_VERSION = "0.2.0";
+
+	static final ServiceNameVersion COMMENT_SERVICE = new ServiceNameVersion(
+			ThreadedCommentService.class.getCanonicalName(), SERVICE_VERSION);
+	static final ServiceNameVersion STORAGE_SERVICE = new ServiceNameVersion(
+			StorageBenchmarkService.class.getCanonicalName(), SERVICE_VERSION);
+
+	private static final String PASS_ADAM = "adamspass";
+
+	private final LocalNode node;
+	private final WebConnector connector;
+	private final UserAgentImpl adam;
+
+	/**
+	 * Starts the node and the connector.
+	 * 
+	 * @throws Exception
+	 */
+	public BenchmarkNode() throws Exception {
+		node = new LocalNodeManager().newNode();
+		adam = MockAgentFactory.getAdam();
+		adam.unlock(PASS_ADAM);
+		node.storeAgent(adam);
+		node.launch();
+
+		for (ServiceNameVersion service : new ServiceNameVersion[] { COMMENT_SERVICE, STORAGE_SERVICE }) {
+			ServiceAgentImpl agent = ServiceAgentImpl.createServiceAgent(service, "a pass");
+			agent.unlock("a pass");
+			node.registerReceiver(agent);
+		}
+
+		connector = new WebConnector(true, getUnusedPort(), false, 1000);
+		connector.start(node);
+	}
+
+	private static int getUnusedPort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	/**
+	 * Invokes a method of the StorageBenchmarkService as Adam.
+	 * 
+	 * @param method Name of the method
+	 * @param parameters Parameters
+	 * @return Result of the method
+	 * @throws Exception
+	 */
+	public Serializable invokeStorage(String method, Serializable... parameters) throws Exception {
+		return node.invoke(adam, STORAGE_SERVICE, method, parameters);
+	}
+
+	/**
+	 * Creates a client logged in as Adam.
+	 * 
+	 * @return The client
+	 */
+	public MiniClient client() {
+		MiniClient client = new MiniClient();
+		client.setConnectorEndpoint(connector.getHttpEndpoint());
+		client.setLogin(adam.getIdentifier(), PASS_ADAM);
+		return client;
+	}
+
+	/**
+	 * Sends a request to the ThreadedCommentService and checks the status code.
+	 * 
+	 * @param client The client
+	 * @param method HTTP method
+	 * @param path Path below the service path
+	 * @param content Request body
+	 * @param expectedCode Expected status code
+	 * @return Response body
+	 */
+	public static String request(MiniClient client, String method, String path, String content, int expectedCode) {
+		ClientResponse response = client.sendRequest(method, "comments/" + path, content);
+		if (response.getHttpCode() != expectedCode)
+			throw new IllegalStateException(method + " " + path + " returned " + response.getHttpCode());
+		return response.getResponse();
+	}
+
+	/**
+	 * Stops the connector and the node.
+	 * 
+	 * @throws Exception
+	 */
+	public void shutDown() throws Exception {
+		connector.stop();
+		node.shutDown();
+	}
+}
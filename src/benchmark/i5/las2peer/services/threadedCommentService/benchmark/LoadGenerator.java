@@ -0,0 +1,349 @@
+package i5.las2peer.services.threadedCommentService.benchmark;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import i5.las2peer.api.p2p.ServiceNameVersion;
+import i5.las2peer.connectors.webConnector.WebConnector;
+import i5.las2peer.connectors.webConnector.client.ClientResponse;
+import i5.las2peer.connectors.webConnector.client.MiniClient;
+import i5.las2peer.p2p.LocalNode;
+import i5.las2peer.p2p.LocalNodeManager;
+import i5.las2peer.security.ServiceAgentImpl;
+import i5.las2peer.security.UserAgentImpl;
+import i5.las2peer.services.commentManagementService.CommentManagementService;
+import i5.las2peer.services.threadedCommentService.ThreadedCommentService;
+import i5.las2peer.testing.MockAgentFactory;
+
+/**
+ * Load generator for a local network of several nodes, each running the ThreadedCommentService and a WebConnector.
+ * Requests are issued at a fixed rate, independent of the response times, and spread over all nodes and a pool of
+ * user agents, which are writers of all threads. Latencies are measured from the moment a request is due, so queueing
+ * in the generator counts as latency, too. Throughput is computed from the measured time until the last request has
+ * completed.
+ *
+ * Arguments (key=value, all optional): nodes (3), rate in requests per second (20), duration in seconds (60), workers
+ * (32), users (10), threads to create up front (5), comments per thread up front (20) and mix as weights of thread
+ * reads, comment posts, replies and votes (70,10,10,10).
+ *
+ * @author Jasper Nalbach
+ *
+ */
+public class LoadGenerator {
+
+	private static final String SERVICE_VERSION = "0.2.0";
+	private static final String PASS_ADAM = "adamspass";
+	private static final String PASS_USER = "loadpass";
+
+	/**
+	 * Endpoints driven by the generator
+	 */
+	enum Operation {
+		READ_THREAD, POST_COMMENT, POST_REPLY, VOTE
+	}
+
+	private final int nodeCount;
+	private final int rate;
+	private final int duration;
+	private final int workers;
+	private final int userCount;
+	private final int threadCount;
+	private final int commentsPerThread;
+	private final int[] mix;
+
+	private final List<LocalNode> nodes = new ArrayList<>();
+	private final List<WebConnector> connectors = new ArrayList<>();
+	private UserAgentImpl adam;
+	private final List<UserAgentImpl> users = new ArrayList<>();
+
+	private final List<String> threads = new CopyOnWriteArrayList<>();
+	private final List<String> comments = new CopyOnWriteArrayList<>();
+	private final Map<Operation, List<Long>> latencies = new EnumMap<>(Operation.class);
+	private final Map<Operation, Integer> errors = new EnumMap<>(Operation.class);
+
+	/**
+	 * Time from the first request until all requests have completed, in nanoseconds
+	 */
+	private long elapsed;
+
+	LoadGenerator(Map<String, String> args) {
+		nodeCount = Integer.parseInt(args.getOrDefault("nodes", "3"));
+		rate = Integer.parseInt(args.getOrDefault("rate", "20"));
+		duration = Integer.parseInt(args.getOrDefault("duration", "60"));
+		workers = Integer.parseInt(args.getOrDefault("workers", "32"));
+		userCount = Integer.parseInt(args.getOrDefault("users", "10"));
+		threadCount = Integer.parseInt(args.getOrDefault("threads", "5"));
+		commentsPerThread = Integer.parseInt(args.getOrDefault("comments", "20"));
+
+		String[] weights = args.getOrDefault("mix", "70,10,10,10").split(",");
+		mix = new int[Operation.values().length];
+		for (int i = 0; i < mix.length; i++) {
+			mix[i] = Integer.parseInt(weights[i].trim());
+		}
+
+		for (Operation operation : Operation.values()) {
+			latencies.put(operation, new ArrayList<>());
+			errors.put(operation, 0);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> config = new HashMap<>();
+		for (String arg : args) {
+			String[] pair = arg.split("=", 2);
+			if (pair.length == 2)
+				config.put(pair[0], pair[1]);
+		}
+
+		LoadGenerator generator = new LoadGenerator(config);
+		try {
+			generator.start();
+			generator.prepare();
+			generator.run();
+			generator.report();
+		} finally {
+			generator.shutDown();
+		}
+	}
+
+	/**
+	 * Starts the nodes and connectors and creates the user agents. All nodes share the network of one LocalNodeManager.
+	 *
+	 * @throws Exception
+	 */
+	void start() throws Exception {
+		LocalNodeManager manager = new LocalNodeManager();
+		adam = MockAgentFactory.getAdam();
+		adam.unlock(PASS_ADAM);
+		for (int i = 0; i < userCount; i++) {
+			UserAgentImpl user = UserAgentImpl.createUserAgent(PASS_USER);
+			user.unlock(PASS_USER);
+			user.setLoginName("loaduser" + i);
+			users.add(user);
+		}
+
+		for (int i = 0; i < nodeCount; i++) {
+			LocalNode node = manager.newNode();
+			if (i == 0) {
+				node.storeAgent(adam);
+				for (UserAgentImpl user : users) {
+					node.storeAgent(user);
+				}
+			}
+			node.launch();
+
+			register(node, ThreadedCommentService.class);
+			if (i == 0)
+				register(node, CommentManagementService.class);
+
+			WebConnector connector = new WebConnector(true, getUnusedPort(), false, 1000);
+			connector.start(node);
+
+			nodes.add(node);
+			connectors.add(connector);
+		}
+	}
+
+	private static void register(LocalNode node, Class<?> service) throws Exception {
+		ServiceAgentImpl agent = ServiceAgentImpl
+				.createServiceAgent(new ServiceNameVersion(service.getCanonicalName(), SERVICE_VERSION), "a pass");
+		agent.unlock("a pass");
+		node.registerReceiver(agent);
+	}
+
+	private static int getUnusedPort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private MiniClient client(int node, UserAgentImpl user, String pass) {
+		MiniClient client = new MiniClient();
+		client.setConnectorEndpoint(connectors.get(node).getHttpEndpoint());
+		client.setLogin(user.getIdentifier(), pass);
+		return client;
+	}
+
+	/**
+	 * Get a client of a random user on a random node.
+	 *
+	 * @return The client
+	 */
+	private MiniClient randomClient() {
+		if (users.isEmpty())
+			return client(ThreadLocalRandom.current().nextInt(nodeCount), adam, PASS_ADAM);
+		return client(ThreadLocalRandom.current().nextInt(nodeCount), random(users), PASS_USER);
+	}
+
+	private static String request(MiniClient client, String method, String path, String content, int expectedCode) {
+		ClientResponse response = client.sendRequest(method, path, content);
+		if (response.getHttpCode() != expectedCode)
+			throw new IllegalStateException(method + " " + path + " returned " + response.getHttpCode());
+		return response.getResponse().trim();
+	}
+
+	/**
+	 * Creates the threads and comments the load runs against. Adam owns the threads, all users are writers and
+	 * readers.
+	 */
+	void prepare() {
+		MiniClient client = client(0, adam, PASS_ADAM);
+		// the creating agent is added to each group by the comment management service
+		StringBuilder logins = new StringBuilder();
+		for (UserAgentImpl user : users) {
+			logins.append(logins.length() > 0 ? "," : "").append(user.getLoginName());
+		}
+
+		String owner = adam.getLoginName();
+		String members = users.isEmpty() ? owner : "\"" + logins + "\"";
+		for (int i = 0; i < threadCount; i++) {
+			String thread = request(client, "POST", "commentmanagement/threads",
+					"{owner:" + owner + ",writer:" + members + ",reader:" + members + "}",
+					HttpURLConnection.HTTP_CREATED);
+			threads.add(thread);
+			for (int j = 0; j < commentsPerThread; j++) {
+				comments.add(request(client, "POST", "comments/threads/" + thread, "comment " + j,
+						HttpURLConnection.HTTP_CREATED));
+			}
+		}
+	}
+
+	private Operation nextOperation() {
+		int total = 0;
+		for (int weight : mix) {
+			total += weight;
+		}
+
+		int value = ThreadLocalRandom.current().nextInt(total);
+		for (Operation operation : Operation.values()) {
+			value -= mix[operation.ordinal()];
+			if (value < 0)
+				return operation;
+		}
+		return Operation.READ_THREAD;
+	}
+
+	private static <T> T random(List<T> list) {
+		return list.get(ThreadLocalRandom.current().nextInt(list.size()));
+	}
+
+	private void execute(Operation operation) {
+		MiniClient client = randomClient();
+		switch (operation) {
+		case READ_THREAD:
+			request(client, "GET", "comments/threads/" + random(threads), "", HttpURLConnection.HTTP_OK);
+			break;
+		case POST_COMMENT:
+			comments.add(request(client, "POST", "comments/threads/" + random(threads), "load comment",
+					HttpURLConnection.HTTP_CREATED));
+			break;
+		case POST_REPLY:
+			request(client, "POST", "comments/comment/" + random(comments) + "/comments", "load reply",
+					HttpURLConnection.HTTP_CREATED);
+			break;
+		case VOTE:
+			request(client, "POST", "comments/comment/" + random(comments) + "/votes",
+					Boolean.toString(ThreadLocalRandom.current().nextBoolean()), HttpURLConnection.HTTP_CREATED);
+			break;
+		}
+	}
+
+	/**
+	 * Issues requests at the configured rate for the configured duration and waits for all of them to complete.
+	 *
+	 * @throws InterruptedException
+	 */
+	void run() throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+		long period = TimeUnit.SECONDS.toNanos(1) / rate;
+		long start = System.nanoTime();
+		scheduler.scheduleAtFixedRate(() -> {
+			long due = System.nanoTime();
+			Operation operation = nextOperation();
+			pool.execute(() -> {
+				boolean failed = false;
+				try {
+					execute(operation);
+				} catch (RuntimeException e) {
+					failed = true;
+				}
+				record(operation, System.nanoTime() - due, failed);
+			});
+		}, 0, period, TimeUnit.NANOSECONDS);
+
+		Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+		scheduler.shutdownNow();
+		pool.shutdown();
+		pool.awaitTermination(1, TimeUnit.MINUTES);
+		elapsed = System.nanoTime() - start;
+	}
+
+	private synchronized void record(Operation operation, long latency, boolean failed) {
+		if (failed)
+			errors.put(operation, errors.get(operation) + 1);
+		else
+			latencies.get(operation).add(latency);
+	}
+
+	private static double percentile(List<Long> sorted, double p) {
+		if (sorted.isEmpty())
+			return 0;
+		int index = (int) Math.ceil(p * sorted.size()) - 1;
+		return sorted.get(Math.max(0, index)) / 1e6;
+	}
+
+	/**
+	 * Prints throughput and latency percentiles per endpoint.
+	 */
+	synchronized void report() {
+		double seconds = elapsed / 1e9;
+		System.out.println("Load test: " + nodeCount + " nodes, " + userCount + " users, " + rate + " requests/s, "
+				+ duration + " s; " + String.format("%.1f", seconds) + " s until all requests completed");
+		System.out.println(String.format("%-14s %8s %7s %10s %9s %9s %9s", "endpoint", "requests", "errors",
+				"req/s", "p50 ms", "p99 ms", "max ms"));
+
+		int total = 0;
+		for (Operation operation : Operation.values()) {
+			List<Long> sorted = new ArrayList<>(latencies.get(operation));
+			Collections.sort(sorted);
+			total += sorted.size();
+
+			System.out.println(String.format("%-14s %8d %7d %10.2f %9.1f %9.1f %9.1f", operation, sorted.size(),
+					errors.get(operation), sorted.size() / seconds, percentile(sorted, 0.5),
+					percentile(sorted, 0.99), percentile(sorted, 1.0)));
+		}
+
+		System.out.println(String.format("Throughput: %.2f requests/s", total / seconds));
+	}
+
+	/**
+	 * Stops all connectors and nodes.
+	 */
+	void shutDown() {
+		for (WebConnector connector : connectors) {
+			try {
+				connector.stop();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		for (LocalNode node : nodes) {
+			node.shutDown();
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package i5.las2peer.services.threadedCommentService.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the storage and data layer: Storage.init/save/load, Comments.addComment and Votes.vote. Each
+ * operation runs inside the StorageBenchmarkService on an in-process LocalNode.
+ * 
+ * Each iteration starts with a new thread and comment, so comments and votes added by earlier iterations do not
+ * change the measured operations. Votes are cast by a rotating set of voters, each changing their vote on every
+ * round.
+ * 
+ * @author Jasper Nalbach
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class StorageBenchmark {
+
+	/**
+	 * Number of distinct voters on the comment
+	 */
+	@Param({ "1", "1000" })
+	public int voters;
+
+	private BenchmarkNode node;
+	private String threadId;
+	private String commentId;
+	private int votes;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		node = new BenchmarkNode();
+	}
+
+	@Setup(Level.Iteration)
+	public void setUpIteration() throws Exception {
+		threadId = (String) node.invokeStorage("createThread");
+		commentId = (String) node.invokeStorage("addComment", threadId);
+		votes = 0;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		node.shutDown();
+	}
+
+	@Benchmark
+	public Object initAndSave() throws Exception {
+		return node.invokeStorage("createThread");
+	}
+
+	@Benchmark
+	public Object load() throws Exception {
+		return node.invokeStorage("loadThread", threadId);
+	}
+
+	@Benchmark
+	public Object addComment() throws Exception {
+		return node.invokeStorage("addComment", threadId);
+	}
+
+	@Benchmark
+	public Object vote() throws Exception {
+		int voter = votes % voters;
+		boolean upvote = (votes / voters) % 2 == 0;
+		votes++;
+		return node.invokeStorage("vote", commentId, "voter" + voter, upvote);
+	}
+}
@@ -0,0 +1,85 @@
+package i5.las2peer.services.threadedCommentService.benchmark;
+
+import java.util.Date;
+
+import i5.las2peer.api.Context;
+import i5.las2peer.api.Service;
+import i5.las2peer.services.threadedCommentService.data.Comment;
+import i5.las2peer.services.threadedCommentService.data.CommentThread;
+import i5.las2peer.services.threadedCommentService.data.Permissions;
+import i5.las2peer.services.threadedCommentService.data.StorableTypes;
+import i5.las2peer.services.threadedCommentService.storage.OwnerGroupRegistry;
+import i5.las2peer.services.threadedCommentService.storage.StorableCodec;
+import i5.las2peer.services.threadedCommentService.storage.Storage;
+
+/**
+ * Service used by the benchmarks to run storage operations inside a las2peer context. Storages are set up like in
+ * ThreadedCommentService, but without the Storable cache, so each load reaches the network storage of the node.
+ * 
+ * @author Jasper Nalbach
+ *
+ */
+public class StorageBenchmarkService extends Service {
+
+	private final StorableCodec codec = StorableTypes.codec();
+
+	private final OwnerGroupRegistry groups = new OwnerGroupRegistry();
+
+	private Storage storage() {
+		return new Storage(Context.get(), null, groups, codec);
+	}
+
+	private String me() {
+		return Context.get().getMainAgent().getIdentifier();
+	}
+
+	/**
+	 * Storage.init and save of a new thread.
+	 * 
+	 * @return Id of the thread
+	 * @throws Exception
+	 */
+	public String createThread() throws Exception {
+		String me = me();
+		return storage().init(new CommentThread(new Permissions(me, me, me))).getId();
+	}
+
+	/**
+	 * Storage.load of a thread.
+	 * 
+	 * @param id Id of the thread
+	 * @return Id of the loaded thread
+	 * @throws Exception
+	 */
+	public String loadThread(String id) throws Exception {
+		return storage().load(id).getId();
+	}
+
+	/**
+	 * CommentThread.addComment, which runs Comments.addComment.
+	 * 
+	 * @param threadId Id of the thread
+	 * @return Id of the comment
+	 * @throws Exception
+	 */
+	public String addComment(String threadId) throws Exception {
+		Comment comment = new Comment(me(), new Date(), "benchmark comment");
+		((CommentThread) storage().load(threadId)).addComment(comment);
+		return comment.getId();
+	}
+
+	/**
+	 * Comment.vote, which runs Votes.vote.
+	 * 
+	 * @param commentId Id of the comment
+	 * @param voterId Id recorded as the voter; the agent of the benchmark votes on behalf of several voters
+	 * @param upvote true for upvote, false for downvote
+	 * @return Number of upvotes after voting
+	 * @throws Exception
+	 */
+	public int vote(String commentId, String voterId, boolean upvote) throws Exception {
+		Comment comment = (Comment) storage().load(commentId);
+		comment.vote(voterId, upvote);
+		return comment.getUpvotes();
+	}
+}
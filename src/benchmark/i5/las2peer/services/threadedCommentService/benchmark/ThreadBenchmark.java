@@ -0,0 +1,66 @@
+package i5.las2peer.services.threadedCommentService.benchmark;
+
+import java.net.HttpURLConnection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import i5.las2peer.connectors.webConnector.client.MiniClient;
+
+/**
+ * Benchmark of GET /threads/{id}, including loading and serializing all comments, on an in-process LocalNode.
+ * 
+ * @author Jasper Nalbach
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ThreadBenchmark {
+
+	/**
+	 * Number of comments in the thread
+	 */
+	@Param({ "10", "100" })
+	public int comments;
+
+	private BenchmarkNode node;
+	private MiniClient client;
+	private String threadId;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		node = new BenchmarkNode();
+		client = node.client();
+		threadId = (String) node.invokeStorage("createThread");
+		for (int i = 0; i < comments; i++) {
+			BenchmarkNode.request(client, "POST", "threads/" + threadId, "comment " + i,
+					HttpURLConnection.HTTP_CREATED);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		node.shutDown();
+	}
+
+	@Benchmark
+	public String getCommentThread() {
+		return BenchmarkNode.request(client, "GET", "threads/" + threadId, "", HttpURLConnection.HTTP_OK);
+	}
+}
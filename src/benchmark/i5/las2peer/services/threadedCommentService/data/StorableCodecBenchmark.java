@@ -0,0 +1,97 @@
+package i5.las2peer.services.threadedCommentService.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import i5.las2peer.services.threadedCommentService.storage.StorableCodec;
+
+/**
+ * Benchmark of the compact storage format against default Java serialization, encoding and decoding a Comment, the
+ * most frequent envelope of a thread. The payload sizes of both formats are printed during setup. Placed in the data
+ * package to set up the Comment without a Storage.
+ * 
+ * @author Jasper Nalbach
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorableCodecBenchmark {
+
+	/**
+	 * Length of the comment body in characters
+	 */
+	@Param({ "16", "256", "4096" })
+	public int bodyLength;
+
+	private final StorableCodec codec = StorableTypes.codec();
+
+	private Comment comment;
+	private byte[] compact;
+	private byte[] java;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		char[] body = new char[bodyLength];
+		Arrays.fill(body, 'x');
+		comment = new Comment("agent", new Date(), new String(body));
+		comment.setPermissions(new Permissions("owner", "writer", "reader"));
+
+		compact = codec.encode(comment);
+		java = serialize(comment);
+		System.out.println("Payload size: codec " + compact.length + " bytes, Java serialization " + java.length
+				+ " bytes");
+	}
+
+	private static byte[] serialize(Object o) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(o);
+		}
+		return bytes.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] encodeCodec() throws IOException {
+		return codec.encode(comment);
+	}
+
+	@Benchmark
+	public Object decodeCodec() throws IOException {
+		return codec.decode(compact);
+	}
+
+	@Benchmark
+	public byte[] encodeJava() throws IOException {
+		return serialize(comment);
+	}
+
+	@Benchmark
+	public Object decodeJava() throws IOException, ClassNotFoundException {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(java))) {
+			return in.readObject();
+		}
+	}
+}
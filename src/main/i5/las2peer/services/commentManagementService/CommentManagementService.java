@@ -6,11 +6,13 @@ import java.util.List;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
@@ -68,6 +70,22 @@ public class CommentManagementService extends RESTService {
 		throw new Exception("Got null");
 	}
 
+	public String deleteCommentThreadInBackground(String id) throws Exception {
+		// invoke remote service method
+		Object result = Context.get().invoke(tcs, "deleteCommentThreadInBackground", new Serializable[] { id });
+
+		if (result != null) {
+			return (String) result;
+		}
+
+		throw new Exception("Got null");
+	}
+
+	public String getDeletionStatus(String jobId) throws Exception {
+		// invoke remote service method, null for unknown jobs
+		return (String) Context.get().invoke(tcs, "getDeletionStatus", new Serializable[] { jobId });
+	}
+
 	// Storage methods
 
 	private Container fetchContainer() {
@@ -200,24 +218,36 @@ public class CommentManagementService extends RESTService {
 				value = { @ApiResponse(
 						code = HttpURLConnection.HTTP_OK,
 						message = "Deleted"),
+						@ApiResponse(
+								code = HttpURLConnection.HTTP_ACCEPTED,
+								message = "Id of the deletion job; the thread and its comments are deleted in the background"),
 						@ApiResponse(
 								code = HttpURLConnection.HTTP_INTERNAL_ERROR,
 								message = "Internal Server Error") })
-		public Response deleteThread(@PathParam("id") String id) {
+		public Response deleteThread(@PathParam("id") String id,
+				@QueryParam("background") @DefaultValue("false") boolean background) {
 			/*
 			 * Please note that this is insecure. Everybody could delete a comment thread, because this service is also
 			 * owner of the thread. I na real world example, here should come some permission checks.
 			*/
 			try {
-				boolean response = service.deleteCommentThread(id);
+				String jobId = null;
+				if (background) {
+					jobId = service.deleteCommentThreadInBackground(id);
+				} else {
+					boolean response = service.deleteCommentThread(id);
 
-				if (!response)
-					throw new Exception("Got false");
+					if (!response)
+						throw new Exception("Got false");
+				}
 
 				Container c = service.fetchContainer();
 				c.getThreads().remove(id);
 				service.storeContainer(c);
 
+				if (background)
+					return Response.status(Status.ACCEPTED).entity(jobId).build();
+
 				return Response.ok().entity("Deleted").build();
 
 			} catch (Exception e) {
@@ -225,6 +255,34 @@ public class CommentManagementService extends RESTService {
 				return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Internal Server Error").build();
 			}
 		}
+
+		@GET
+		@Path("/deletions/{id}")
+		@Produces(MediaType.APPLICATION_JSON)
+		@ApiResponses(
+				value = { @ApiResponse(
+						code = HttpURLConnection.HTTP_OK,
+						message = "Status of the deletion job"),
+						@ApiResponse(
+								code = HttpURLConnection.HTTP_NOT_FOUND,
+								message = "Not Found"),
+						@ApiResponse(
+								code = HttpURLConnection.HTTP_INTERNAL_ERROR,
+								message = "Internal Server Error") })
+		public Response getDeletion(@PathParam("id") String id) {
+			try {
+				String status = service.getDeletionStatus(id);
+
+				if (status == null)
+					return Response.status(Status.NOT_FOUND).entity("Not Found").build();
+
+				return Response.ok().entity(status).build();
+
+			} catch (Exception e) {
+				e.printStackTrace();
+				return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Internal Server Error").build();
+			}
+		}
 	}
 
 	@Override
@@ -0,0 +1,225 @@
+package i5.las2peer.services.threadedCommentService;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import i5.las2peer.api.Context;
+import i5.las2peer.api.security.Agent;
+import i5.las2peer.api.security.UserAgent;
+import i5.las2peer.services.threadedCommentService.storage.StorageException;
+
+/**
+ * Node-local cache of the display data of comment authors. Entries are bounded in size (least recently used entries
+ * are evicted first) and in age, so changed login names show up after some time.
+ *
+ * Only public data of an agent is cached, so entries can be shared between all requests.
+ *
+ * @author Jasper Nalbach
+ *
+ */
+public class AuthorCache {
+
+	/**
+	 * Display data of an author
+	 */
+	public static class Author {
+		private final String id;
+		private final String name;
+		private final long loaded;
+
+		Author(String id, String name) {
+			this.id = id;
+			this.name = name;
+			this.loaded = System.currentTimeMillis();
+		}
+
+		/**
+		 *
+		 * @return Agent id of the author
+		 */
+		public String getId() {
+			return id;
+		}
+
+		/**
+		 *
+		 * @return Login name of the author or "Unknown" if the author is no user
+		 */
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * Maximum number of entries
+	 */
+	private final int maxEntries;
+
+	/**
+	 * Maximum age of an entry in milliseconds
+	 */
+	private final long maxAge;
+
+	/**
+	 * Pool for parallel agent requests, may be null; requests are then run one after another
+	 */
+	private final ExecutorService io;
+
+	/**
+	 * Maximum time to wait for a parallel agent request, in seconds
+	 */
+	private static final long REQUEST_TIMEOUT = 30;
+
+	private final Map<String, Author> entries;
+
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param maxEntries Maximum number of cached authors
+	 * @param maxAge Maximum age of a cached author in milliseconds
+	 * @param io Pool for parallel agent requests
+	 */
+	public AuthorCache(int maxEntries, long maxAge, ExecutorService io) {
+		this.maxEntries = maxEntries;
+		this.maxAge = maxAge;
+		this.io = io;
+		this.entries = new LinkedHashMap<String, Author>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Author> eldest) {
+				return size() > AuthorCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Get a single author.
+	 *
+	 * @param context The context used to fetch missing authors
+	 * @param id Agent id
+	 * @return The author
+	 * @throws StorageException
+	 */
+	public Author get(Context context, String id) throws StorageException {
+		Author author = getCached(id);
+		if (author != null)
+			return author;
+
+		try {
+			return put(context.fetchAgent(id));
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * Get several authors at once. Authors that are not cached are fetched in parallel.
+	 *
+	 * @param context The context used to fetch missing authors
+	 * @param ids Agent ids
+	 * @return Map from agent id to author
+	 * @throws StorageException
+	 */
+	public Map<String, Author> getAll(Context context, Collection<String> ids) throws StorageException {
+		Map<String, Author> authors = new HashMap<>();
+		Set<String> missing = new LinkedHashSet<>();
+
+		for (String id : ids) {
+			Author author = getCached(id);
+			if (author != null)
+				authors.put(id, author);
+			else
+				missing.add(id);
+		}
+
+		if (missing.size() == 1) {
+			String id = missing.iterator().next();
+			authors.put(id, get(context, id));
+			return authors;
+		}
+
+		Map<String, Future<Agent>> requests = new HashMap<>();
+		for (String id : missing) {
+			if (io != null) {
+				requests.put(id, io.submit(() -> context.fetchAgent(id)));
+			} else {
+				FutureTask<Agent> request = new FutureTask<>(() -> context.fetchAgent(id));
+				request.run();
+				requests.put(id, request);
+			}
+		}
+
+		try {
+			for (Map.Entry<String, Future<Agent>> request : requests.entrySet()) {
+				authors.put(request.getKey(), put(request.getValue().get(REQUEST_TIMEOUT, TimeUnit.SECONDS)));
+			}
+		} catch (TimeoutException e) {
+			throw new StorageException("Agent request timed out after " + REQUEST_TIMEOUT + " seconds", e);
+		} catch (CancellationException e) {
+			throw new StorageException("Agent request has been cancelled", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException(e);
+		} catch (ExecutionException e) {
+			throw new StorageException(e.getCause());
+		} finally {
+			// the requests are not needed anymore if one of them failed
+			for (Future<Agent> request : requests.values()) {
+				request.cancel(true);
+			}
+		}
+
+		return authors;
+	}
+
+	/**
+	 *
+	 * @return Number of cached authors
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	private Author getCached(String id) {
+		synchronized (entries) {
+			Author author = entries.get(id);
+			if (author == null)
+				return null;
+
+			if (System.currentTimeMillis() - author.loaded > maxAge) {
+				entries.remove(id);
+				return null;
+			}
+
+			return author;
+		}
+	}
+
+	private Author put(Agent agent) {
+		String name;
+		if (agent instanceof UserAgent)
+			name = ((UserAgent) agent).getLoginName();
+		else
+			name = "Unknown";
+
+		Author author = new Author(agent.getIdentifier(), name);
+		synchronized (entries) {
+			entries.put(author.getId(), author);
+		}
+		return author;
+	}
+}
@@ -0,0 +1,69 @@
+package i5.las2peer.services.threadedCommentService;
+
+import java.lang.reflect.Method;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+
+import i5.las2peer.services.threadedCommentService.metrics.Metrics;
+import i5.las2peer.services.threadedCommentService.metrics.RequestMetrics;
+
+/**
+ * Records the latency and the envelope fetches of every request, keyed by resource class and method. For suspended
+ * requests the response filter runs when the request is resumed, so the whole processing time is recorded.
+ * 
+ * The request is also made available to the handling thread via {@link RequestMetrics#current()}. The response filter
+ * clears it on the thread that resumes the request, so handlers that suspend a request have to clear it on the request
+ * thread themselves before returning it to the container.
+ * 
+ * @author Jasper Nalbach
+ *
+ */
+public class MetricsFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+	private static final String START = MetricsFilter.class.getName() + ".start";
+	private static final String REQUEST = MetricsFilter.class.getName() + ".request";
+
+	@Context
+	private ResourceInfo resourceInfo;
+
+	private final Metrics metrics;
+
+	/**
+	 * 
+	 * @param metrics Metrics of the service
+	 */
+	public MetricsFilter(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext) {
+		RequestMetrics request = new RequestMetrics();
+		RequestMetrics.setCurrent(request);
+		requestContext.setProperty(REQUEST, request);
+		requestContext.setProperty(START, System.nanoTime());
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) {
+		RequestMetrics request = (RequestMetrics) requestContext.getProperty(REQUEST);
+		Long start = (Long) requestContext.getProperty(START);
+		if (request == null || start == null)
+			return;
+
+		Method method = resourceInfo.getResourceMethod();
+		String endpoint = method == null ? "unmatched"
+				: resourceInfo.getResourceClass().getSimpleName() + "." + method.getName();
+
+		try {
+			metrics.request(endpoint, request, System.nanoTime() - start, responseContext.getStatus() < 500);
+		} finally {
+			RequestMetrics.setCurrent(null);
+		}
+	}
+}
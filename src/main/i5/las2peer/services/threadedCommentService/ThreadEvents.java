@@ -0,0 +1,174 @@
+package i5.las2peer.services.threadedCommentService;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import i5.las2peer.services.threadedCommentService.data.ChangeLogSegment;
+import i5.las2peer.services.threadedCommentService.storage.Storable;
+import i5.las2peer.services.threadedCommentService.storage.StorageListener;
+
+/**
+ * Node-local hub for clients waiting for changes of a thread. Written change logs are published by the Storage, and
+ * waiting subscribers of the change log are notified once.
+ *
+ * Subscribers do not queue events: a notified subscriber reads all changes since its last sequence from the change
+ * log, so a slow client gets the changes in fewer, larger batches and writers never wait for subscribers. The number
+ * of subscribers per node is bounded.
+ *
+ * Only writes on this node are published. Subscribers have to poll the change log again after a timeout to get changes
+ * written on other nodes.
+ *
+ * @author Jasper Nalbach
+ *
+ */
+public class ThreadEvents implements StorageListener {
+
+	/**
+	 * A client waiting for changes of a thread
+	 */
+	public static class Subscription {
+		private final String changeLogId;
+		private final long since;
+		private final Runnable listener;
+		private final AtomicBoolean done = new AtomicBoolean();
+
+		/**
+		 *
+		 * @param changeLogId Id of the change log of the thread
+		 * @param since Sequence number of the last change known to the client
+		 * @param listener Called once on the writing thread when a newer change has been written; has to return quickly
+		 */
+		public Subscription(String changeLogId, long since, Runnable listener) {
+			this.changeLogId = changeLogId;
+			this.since = since;
+			this.listener = listener;
+		}
+	}
+
+	/**
+	 * Maximum number of change logs whose latest sequence is remembered
+	 */
+	private static final int MAX_SEQUENCES = 10000;
+
+	/**
+	 * Maximum number of subscribers
+	 */
+	private final int maxSubscribers;
+
+	private final AtomicInteger subscriberCount = new AtomicInteger();
+
+	private final Map<String, Set<Subscription>> subscriptions = new ConcurrentHashMap<>();
+
+	/**
+	 * Latest sequence number per change log written on this node, so that subscribers do not miss a change written
+	 * before they subscribed that their copy of the change log does not contain yet
+	 */
+	private final Map<String, Long> sequences = new ConcurrentHashMap<>();
+
+	/**
+	 *
+	 * @param maxSubscribers Maximum number of subscribers
+	 */
+	public ThreadEvents(int maxSubscribers) {
+		this.maxSubscribers = maxSubscribers;
+	}
+
+	/**
+	 * Adds a subscriber. If the change log already has a newer change, the subscriber is notified immediately.
+	 *
+	 * @param subscription The subscription
+	 * @return False, if the maximum number of subscribers has been reached
+	 */
+	public boolean subscribe(Subscription subscription) {
+		if (subscriberCount.incrementAndGet() > maxSubscribers) {
+			subscriberCount.decrementAndGet();
+			return false;
+		}
+
+		subscriptions.compute(subscription.changeLogId, (id, set) -> {
+			if (set == null)
+				set = ConcurrentHashMap.newKeySet();
+			set.add(subscription);
+			return set;
+		});
+
+		Long latest = sequences.get(subscription.changeLogId);
+		if (latest != null && latest > subscription.since)
+			notify(subscription);
+
+		return true;
+	}
+
+	/**
+	 * Removes a subscriber that has not been notified yet.
+	 *
+	 * @param subscription The subscription
+	 * @return True, if the subscriber has been removed; false, if it has been notified already
+	 */
+	public boolean cancel(Subscription subscription) {
+		if (!subscription.done.compareAndSet(false, true))
+			return false;
+
+		remove(subscription);
+		return true;
+	}
+
+	/**
+	 * Get the number of subscribers
+	 *
+	 * @return Number of waiting clients
+	 */
+	public int getSubscriberCount() {
+		return subscriberCount.get();
+	}
+
+	@Override
+	public void stored(Storable storable) {
+		// changes are written to the segments of a log; a new segment is stored empty
+		if (storable instanceof ChangeLogSegment) {
+			ChangeLogSegment segment = (ChangeLogSegment) storable;
+			if (!segment.isEmpty())
+				publish(segment.getLogId(), segment.getSequence());
+		}
+	}
+
+	/**
+	 * Notifies all subscribers of a change log that do not know the given change yet.
+	 *
+	 * @param changeLogId Id of the change log
+	 * @param sequence Sequence number of the latest change
+	 */
+	void publish(String changeLogId, long sequence) {
+		if (sequences.size() >= MAX_SEQUENCES && !sequences.containsKey(changeLogId))
+			sequences.clear();
+		sequences.merge(changeLogId, sequence, Math::max);
+
+		Set<Subscription> set = subscriptions.get(changeLogId);
+		if (set == null)
+			return;
+
+		for (Subscription subscription : set) {
+			if (subscription.since < sequence)
+				notify(subscription);
+		}
+	}
+
+	private void notify(Subscription subscription) {
+		if (!subscription.done.compareAndSet(false, true))
+			return;
+
+		remove(subscription);
+		subscription.listener.run();
+	}
+
+	private void remove(Subscription subscription) {
+		subscriptions.computeIfPresent(subscription.changeLogId, (id, set) -> {
+			set.remove(subscription);
+			return set.isEmpty() ? null : set;
+		});
+		subscriberCount.decrementAndGet();
+	}
+}
@@ -1,34 +1,67 @@
 package i5.las2peer.services.threadedCommentService;
 
 import java.net.HttpURLConnection;
-import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
 import i5.las2peer.api.Context;
-import i5.las2peer.api.security.Agent;
-import i5.las2peer.api.security.UserAgent;
 import i5.las2peer.restMapper.RESTService;
 import i5.las2peer.restMapper.annotations.ServicePath;
+import i5.las2peer.services.threadedCommentService.AuthorCache.Author;
+import i5.las2peer.services.threadedCommentService.data.Change;
+import i5.las2peer.services.threadedCommentService.data.ChangeSet;
 import i5.las2peer.services.threadedCommentService.data.Comment;
+import i5.las2peer.services.threadedCommentService.data.CommentPage;
 import i5.las2peer.services.threadedCommentService.data.CommentThread;
+import i5.las2peer.services.threadedCommentService.data.DeletionJob;
 import i5.las2peer.services.threadedCommentService.data.Permissions;
+import i5.las2peer.services.threadedCommentService.data.StorableTypes;
+import i5.las2peer.services.threadedCommentService.metrics.Metrics;
+import i5.las2peer.services.threadedCommentService.metrics.RequestMetrics;
+import i5.las2peer.services.threadedCommentService.storage.Deletion;
 import i5.las2peer.services.threadedCommentService.storage.NotFoundException;
+import i5.las2peer.services.threadedCommentService.storage.OwnerGroupRegistry;
 import i5.las2peer.services.threadedCommentService.storage.PermissionException;
+import i5.las2peer.services.threadedCommentService.storage.Storable;
+import i5.las2peer.services.threadedCommentService.storage.StorableCache;
+import i5.las2peer.services.threadedCommentService.storage.StorableCodec;
 import i5.las2peer.services.threadedCommentService.storage.Storage;
 import i5.las2peer.services.threadedCommentService.storage.StorageException;
+import i5.las2peer.services.threadedCommentService.storage.WriteCoalescer;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiResponse;
@@ -56,6 +89,70 @@ public class ThreadedCommentService extends RESTService {
 
 	// TODO refactor storage
 
+	/**
+	 * Node-local pool for parallel envelope and agent requests of all requests handled by this service instance.
+	 * Separate from the executor of the node, which runs the requests waiting for them, and bounded, so a burst of
+	 * large reads queues instead of starting a thread per envelope. If the queue is full, the requesting thread runs
+	 * the request itself.
+	 */
+	private final ExecutorService io = createIoPool();
+
+	/**
+	 * Compact storage format of all data types
+	 */
+	private final StorableCodec codec = StorableTypes.codec();
+
+	/**
+	 * Node-local cache of Storables, shared by all requests handled by this service instance. Threads, comments and
+	 * comment containers may be served up to 30 seconds stale after writes on other nodes; change logs, chunks and
+	 * votes are never cached.
+	 */
+	private final StorableCache cache = new StorableCache(10000, 30000, codec);
+
+	/**
+	 * Owner groups reused for new envelopes of this node
+	 */
+	private final OwnerGroupRegistry groups = new OwnerGroupRegistry();
+
+	/**
+	 * Display data of comment authors, shared by all requests handled by this service instance
+	 */
+	private final AuthorCache authors = new AuthorCache(10000, 300000, io);
+
+	/**
+	 * Latencies and envelope fetches of this service instance
+	 */
+	private final Metrics metrics = new Metrics();
+
+	/**
+	 * Clients waiting for changes of a thread, notified by the storage of this service instance
+	 */
+	private final ThreadEvents events = new ThreadEvents(MAX_SUBSCRIBERS);
+
+	/**
+	 * Concurrent appends to the same comment list or change log on this node, written as one envelope update
+	 */
+	private final WriteCoalescer coalescer = new WriteCoalescer(COALESCE_MAX_BATCH, COALESCE_WINDOW);
+
+	/**
+	 * Soft-deleted comments whose votes and replies have not been reclaimed yet
+	 */
+	private final TombstoneCollector collector = new TombstoneCollector(MAX_TOMBSTONES);
+
+	/**
+	 * Deletions of comment threads started on this node, by job id. The oldest jobs are dropped first; their status
+	 * is still stored as a DeletionJob.
+	 */
+	private final Map<String, Deletion> deletions = Collections.synchronizedMap(
+			new LinkedHashMap<String, Deletion>() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Deletion> eldest) {
+					return size() > MAX_DELETIONS;
+				}
+			});
+
 	/**
 	 * Create a new storage for the current context
 	 * 
@@ -63,9 +160,113 @@ public class ThreadedCommentService extends RESTService {
 	 * @throws StorageException
 	 */
 	private Storage getStorage() throws StorageException {
-		return new Storage();
+		return new Storage(Context.get(), cache, groups, codec, metrics, events, coalescer, io);
 	}
 
+	/**
+	 * Get a Storage for the current context that always reads from the network. Used where a stale copy would hide
+	 * changes of other nodes.
+	 * 
+	 * @return Storage without the node-local cache
+	 * @throws StorageException
+	 */
+	private Storage getUncachedStorage() throws StorageException {
+		return new Storage(Context.get(), null, groups, codec, metrics, events, coalescer, io);
+	}
+
+	/**
+	 * Creates the pool for parallel envelope and agent requests. Its threads are daemon threads, so they do not keep
+	 * the node running, and stop when idle.
+	 * 
+	 * @return The pool
+	 */
+	private static ExecutorService createIoPool() {
+		AtomicInteger threads = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(IO_QUEUE), r -> {
+					Thread thread = new Thread(r, "threadedcomments-io-" + threads.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Number of threads for parallel envelope and agent requests
+	 */
+	private static final int IO_THREADS = 32;
+
+	/**
+	 * Maximum number of parallel envelope and agent requests waiting for a thread
+	 */
+	private static final int IO_QUEUE = 1000;
+
+	/**
+	 * Maximum number of comments requested at once
+	 */
+	private static final int BULK_LIMIT = 100;
+
+	/**
+	 * Maximum number of reply levels included in a thread
+	 */
+	private static final int MAX_DEPTH = 10;
+
+	/**
+	 * Maximum number of replies included per comment in a thread; further replies are requested page by page
+	 */
+	private static final int REPLY_LIMIT = 20;
+
+	/**
+	 * Maximum number of replies included in a thread over all levels
+	 */
+	private static final int MAX_REPLIES = 500;
+
+	/**
+	 * Maximum number of clients waiting for changes on this node. The WebConnector invokes the service synchronously,
+	 * so each waiting client holds an invocation thread for up to {@link #EVENTS_TIMEOUT} seconds; further clients get
+	 * 503 and retry later.
+	 */
+	private static final int MAX_SUBSCRIBERS = 100;
+
+	/**
+	 * Maximum number of writes of the same envelope written together
+	 */
+	private static final int COALESCE_MAX_BATCH = 100;
+
+	/**
+	 * Time the first of concurrent writes of the same envelope waits for further writes, in milliseconds
+	 */
+	private static final long COALESCE_WINDOW = 5;
+
+	/**
+	 * Maximum number of deletion jobs whose status is kept
+	 */
+	private static final int MAX_DELETIONS = 1000;
+
+	/**
+	 * Maximum number of soft-deleted comments waiting to be reclaimed; further comments are reclaimed by the deleting
+	 * request
+	 */
+	private static final int MAX_TOMBSTONES = 10000;
+
+	/**
+	 * Maximum time a client waits for changes, in seconds. Afterwards the thread and its change log are read again from
+	 * the network, bypassing the cache, which also picks up changes written on other nodes.
+	 */
+	private static final long EVENTS_TIMEOUT = 25;
+
+	/**
+	 * Reconnection delay sent to event stream clients, in milliseconds
+	 */
+	private static final int EVENTS_RETRY = 1000;
+
+	/**
+	 * Format of dates in responses. Immutable and thread-safe, so it is shared by all requests.
+	 */
+	private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+			.withZone(ZoneId.systemDefault());
+
 	// helper
 
 	private CommentThread _getCommentThread(String id) throws StorageException, PermissionException, NotFoundException {
@@ -73,34 +274,347 @@ public class ThreadedCommentService extends RESTService {
 	}
 
 	private Comment _getComment(String id) throws StorageException, PermissionException, NotFoundException {
-		return (Comment) getStorage().load(id);
+		Comment comment = (Comment) getStorage().load(id);
+		if (comment.isDeleted())
+			throw new NotFoundException("Comment " + id + " has been deleted");
+		return comment;
+	}
+
+	/**
+	 * Loads several comments in parallel. Comments that do not exist or cannot be read are skipped.
+	 * 
+	 * @param ids Ids of the comments
+	 * @return The available comments in the order of the ids
+	 * @throws StorageException
+	 */
+	private List<Comment> _getComments(List<String> ids) throws StorageException {
+		Map<String, Storable> loaded = getStorage().loadAvailable(ids);
+
+		List<Comment> comments = new ArrayList<>();
+		Set<String> added = new HashSet<>();
+		for (String id : ids) {
+			Storable storable = loaded.get(id);
+			if (storable instanceof Comment && !((Comment) storable).isDeleted() && added.add(id))
+				comments.add((Comment) storable);
+		}
+		return comments;
+	}
+
+	private JSONObject _serializeComment(Comment comment, boolean epochMillis) throws StorageException,
+			PermissionException {
+		comment.loadCounters();
+		return _serializeComment(comment, authors.get(Context.get(), comment.getAgentId()), true, epochMillis);
 	}
 
-	private JSONObject _serializeComment(Comment comment, Agent author) throws StorageException, PermissionException {
+	private JSONObject _serializeComment(Comment comment, Author author, boolean myRating, boolean epochMillis)
+			throws StorageException, PermissionException {
 		JSONObject json = new JSONObject();
 
 		json.put("id", comment.getId());
 		json.put("author", _serializeAuthor(author));
-		json.put("date", (new SimpleDateFormat("yyyy-MM-dd HH:mm:ss")).format(comment.getDate()));
+		json.put("date", _serializeDate(comment.getDate(), epochMillis));
 		json.put("body", comment.getBody());
 		json.put("upvotes", comment.getUpvotes());
 		json.put("downvotes", comment.getDownvotes());
-		json.put("myRating", comment.getVote(Context.get().getMainAgent().getIdentifier()));
+		if (myRating)
+			json.put("myRating", comment.getVote(Context.get().getMainAgent().getIdentifier()));
 		json.put("replyCount", comment.getCommentCount());
 
 		return json;
 	}
 
-	private JSONObject _serializeAuthor(Agent agent) {
-		JSONObject json = new JSONObject();
+	/**
+	 * Serializes a list of comments. Votes and replies of all comments are loaded in parallel, authors are taken from
+	 * the author cache and fetched in bulk if missing.
+	 * 
+	 * @param comments List of comments
+	 * @param myRating Include the vote of the current user
+	 * @param epochMillis Write dates as milliseconds since the epoch
+	 * @return JSON array of comments
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	private JSONArray _serializeComments(List<Comment> comments, boolean myRating, boolean epochMillis)
+			throws StorageException, PermissionException {
+		Comment.prefetch(comments, myRating ? Context.get().getMainAgent().getIdentifier() : null);
+
+		Set<String> ids = new LinkedHashSet<>();
+		for (Comment comment : comments) {
+			ids.add(comment.getAgentId());
+		}
+		Map<String, Author> authorMap = authors.getAll(Context.get(), ids);
 
-		if (agent instanceof UserAgent)
-			json.put("name", ((UserAgent) agent).getLoginName());
-		else
-			json.put("name", "Unknown");
+		JSONArray list = new JSONArray();
+		for (Comment comment : comments) {
+			list.add(_serializeComment(comment, authorMap.get(comment.getAgentId()), myRating, epochMillis));
+		}
+
+		return list;
+	}
 
-		json.put("id", agent.getIdentifier());
-		json.put("isMe", agent.equals(Context.get().getMainAgent()));
+	/**
+	 * Attaches the replies of the given comments as "replies" array, down to the given depth. The replies of one level
+	 * are loaded together, so each level costs a constant number of parallel fetches regardless of its size.
+	 * 
+	 * At most REPLY_LIMIT replies are attached per comment; if there are more, "repliesCursor" continues them via the
+	 * replies endpoint. Comments are expanded in order until MAX_REPLIES replies are attached; the others keep only
+	 * their "replyCount".
+	 * 
+	 * @param comments Comments of the top level
+	 * @param list Serialized comments of the top level, in the same order
+	 * @param depth Number of reply levels to include
+	 * @param myRating Include the vote of the current user
+	 * @param epochMillis Write dates as milliseconds since the epoch
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	private void _serializeReplies(List<Comment> comments, JSONArray list, int depth, boolean myRating,
+			boolean epochMillis) throws StorageException, PermissionException {
+		List<Comment> level = new ArrayList<>(comments);
+		Map<Comment, JSONObject> serialized = new IdentityHashMap<>();
+		for (int i = 0; i < comments.size(); i++) {
+			serialized.put(comments.get(i), (JSONObject) list.get(i));
+		}
+
+		int remaining = MAX_REPLIES;
+		for (int d = 0; d < depth && !level.isEmpty(); d++) {
+			List<Comment> parents = new ArrayList<>();
+			for (Comment comment : level) {
+				int count = comment.getCommentCount();
+				if (count == 0) {
+					serialized.get(comment).put("replies", new JSONArray());
+				} else if (Math.min(count, REPLY_LIMIT) <= remaining) {
+					remaining -= Math.min(count, REPLY_LIMIT);
+					parents.add(comment);
+				}
+			}
+			if (parents.isEmpty())
+				break;
+
+			Map<Comment, CommentPage> replies = Comment.getReplies(parents, REPLY_LIMIT);
+			List<Comment> children = new ArrayList<>();
+			for (Comment parent : parents) {
+				children.addAll(replies.get(parent).getComments());
+			}
+			JSONArray array = _serializeComments(children, myRating, epochMillis);
+
+			int index = 0;
+			for (Comment parent : parents) {
+				CommentPage page = replies.get(parent);
+				JSONArray parentReplies = new JSONArray();
+				for (Comment child : page.getComments()) {
+					JSONObject json = (JSONObject) array.get(index++);
+					parentReplies.add(json);
+					serialized.put(child, json);
+				}
+				serialized.get(parent).put("replies", parentReplies);
+				if (page.getNextCursor() != null)
+					serialized.get(parent).put("repliesCursor", page.getNextCursor());
+			}
+			level = children;
+		}
+	}
+
+	/**
+	 * Serializes the changes of a thread. Comments that were added, edited or voted on are included once in their
+	 * current state, unless they were deleted afterwards.
+	 * 
+	 * @param threadId Id of the thread
+	 * @param changes The changes
+	 * @param myRating Include the vote of the current user
+	 * @param epochMillis Write dates as milliseconds since the epoch
+	 * @return JSON object of the changes
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	private JSONObject _serializeChanges(String threadId, ChangeSet changes, boolean myRating, boolean epochMillis)
+			throws StorageException, PermissionException {
+		JSONArray list = new JSONArray();
+		Set<String> modified = new LinkedHashSet<>();
+		for (Change change : changes.getChanges()) {
+			JSONObject json = new JSONObject();
+			json.put("sequence", change.getSequence());
+			json.put("type", change.getType().name().toLowerCase());
+			json.put("id", change.getCommentId());
+			if (change.getParentId() != null)
+				json.put("parent", change.getParentId());
+			json.put("date", _serializeDate(change.getDate(), epochMillis));
+			list.add(json);
+
+			if (change.getType() == Change.Type.DELETE)
+				modified.remove(change.getCommentId());
+			else
+				modified.add(change.getCommentId());
+		}
+
+		JSONObject response = new JSONObject();
+		response.put("id", threadId);
+		response.put("sequence", changes.getSequence());
+		response.put("complete", changes.isComplete());
+		response.put("changes", list);
+		response.put("comments", _serializeComments(_getComments(new ArrayList<>(modified)), myRating, epochMillis));
+		return response;
+	}
+
+	/**
+	 * Waits for changes of a thread and resumes the response with them as event stream. Returns immediately if there
+	 * are changes the client does not know yet.
+	 * 
+	 * The response is suspended, but the WebConnector waits for it on the invocation thread, so a waiting client holds
+	 * that thread until a change arrives or {@link #EVENTS_TIMEOUT} has passed. The number of waiting clients is
+	 * limited by {@link #MAX_SUBSCRIBERS}.
+	 * 
+	 * @param response The suspended response
+	 * @param threadId Id of the thread
+	 * @param since Sequence number of the last change known to the client
+	 * @param myRating Include the vote of the current user
+	 * @param epochMillis Write dates as milliseconds since the epoch
+	 */
+	private void _awaitChanges(AsyncResponse response, String threadId, long since, boolean myRating,
+			boolean epochMillis) {
+		// envelope fetches of the resumed request still count for it, the request thread is released below
+		RequestMetrics request = RequestMetrics.current();
+		ThreadEvents.Subscription subscription = null;
+		try {
+			CommentThread thread = _getCommentThread(threadId);
+			String changeLogId = thread.getChangeLogId();
+			if (changeLogId == null) {
+				// nothing to wait for; event stream clients stop reconnecting on 204
+				response.resume(Response.noContent().build());
+				return;
+			}
+
+			// the storage is bound to the context, so the changes are always read on its executor
+			Context context = Context.get();
+			Runnable resume = () -> {
+				try {
+					context.getExecutor().execute(() -> {
+						RequestMetrics.setCurrent(request);
+						try {
+							response.resume(_loadEvents(threadId, since, myRating, epochMillis));
+						} finally {
+							RequestMetrics.setCurrent(null);
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					response.resume(Response.status(Status.SERVICE_UNAVAILABLE).entity("Service Unavailable").build());
+				}
+			};
+			ThreadEvents.Subscription waiting = new ThreadEvents.Subscription(changeLogId, since, resume);
+
+			response.setTimeout(EVENTS_TIMEOUT, TimeUnit.SECONDS);
+			response.setTimeoutHandler(r -> {
+				if (events.cancel(waiting))
+					resume.run();
+			});
+
+			// subscribe before reading the change log, so a change written in between notifies the subscriber
+			if (events.subscribe(waiting))
+				subscription = waiting;
+
+			ChangeSet changes = thread.getChanges(since);
+			if (!changes.getChanges().isEmpty() || !changes.isComplete()) {
+				// unless the subscriber has been notified meanwhile and resumes the response itself
+				if (subscription == null || events.cancel(subscription))
+					response.resume(_serializeEvents(thread.getId(), changes, myRating, epochMillis));
+				return;
+			}
+
+			if (subscription == null) {
+				response.resume(Response.status(Status.SERVICE_UNAVAILABLE).header("Retry-After", EVENTS_TIMEOUT)
+						.entity("Service Unavailable").build());
+			}
+		} catch (PermissionException e) {
+			e.printStackTrace();
+			if (subscription == null || events.cancel(subscription))
+				response.resume(Response.status(Status.FORBIDDEN).entity("Forbidden").build());
+		} catch (NotFoundException e) {
+			e.printStackTrace();
+			if (subscription == null || events.cancel(subscription))
+				response.resume(Response.status(Status.NOT_FOUND).entity("Not Found").build());
+		} catch (Exception e) {
+			e.printStackTrace();
+			if (subscription == null || events.cancel(subscription))
+				response.resume(Response.status(Status.INTERNAL_SERVER_ERROR).entity("Internal Server Error").build());
+		} finally {
+			// the response filter does not run on this thread if the response is still suspended
+			RequestMetrics.setCurrent(null);
+		}
+	}
+
+	/**
+	 * Reads the changes of a thread from its change log as event stream. Both are read from the network.
+	 * 
+	 * @param threadId Id of the thread
+	 * @param since Sequence number of the last change known to the client
+	 * @param myRating Include the vote of the current user
+	 * @param epochMillis Write dates as milliseconds since the epoch
+	 * @return Response with the changes as event stream
+	 */
+	private Response _loadEvents(String threadId, long since, boolean myRating, boolean epochMillis) {
+		try {
+			// a cached thread or change log would hide changes of other nodes until it expires
+			CommentThread thread = (CommentThread) getUncachedStorage().load(threadId);
+			return _serializeEvents(thread.getId(), thread.getChanges(since), myRating, epochMillis);
+		} catch (PermissionException e) {
+			e.printStackTrace();
+			return Response.status(Status.FORBIDDEN).entity("Forbidden").build();
+		} catch (NotFoundException e) {
+			e.printStackTrace();
+			return Response.status(Status.NOT_FOUND).entity("Not Found").build();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Internal Server Error").build();
+		}
+	}
+
+	/**
+	 * Writes changes as one server-sent event. The event id is the sequence number of the latest change, so
+	 * reconnecting clients send it as Last-Event-ID. The event is named "reset" if older changes are missing and the
+	 * thread has to be reloaded, otherwise "changes". No event is written if there are no changes.
+	 * 
+	 * @param threadId Id of the thread
+	 * @param changes The changes
+	 * @param myRating Include the vote of the current user
+	 * @param epochMillis Write dates as milliseconds since the epoch
+	 * @return Response with the event stream
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	private Response _serializeEvents(String threadId, ChangeSet changes, boolean myRating, boolean epochMillis)
+			throws StorageException, PermissionException {
+		StringBuilder stream = new StringBuilder();
+		stream.append("retry: ").append(EVENTS_RETRY).append("\n\n");
+		if (!changes.getChanges().isEmpty() || !changes.isComplete()) {
+			stream.append("id: ").append(changes.getSequence()).append("\n");
+			stream.append("event: ").append(changes.isComplete() ? "changes" : "reset").append("\n");
+			stream.append("data: ").append(_serializeChanges(threadId, changes, myRating, epochMillis).toJSONString())
+					.append("\n\n");
+		}
+
+		return Response.ok().type("text/event-stream").entity(stream.toString()).build();
+	}
+
+	/**
+	 * Serializes a date.
+	 * 
+	 * @param date The date
+	 * @param epochMillis Return milliseconds since the epoch instead of local time
+	 * @return Milliseconds as Long or local time formatted as "yyyy-MM-dd HH:mm:ss"
+	 */
+	static Object _serializeDate(Date date, boolean epochMillis) {
+		if (epochMillis)
+			return date.getTime();
+
+		return DATE_FORMAT.format(date.toInstant());
+	}
+
+	private JSONObject _serializeAuthor(Author author) {
+		JSONObject json = new JSONObject();
+
+		json.put("name", author.getName());
+		json.put("id", author.getId());
+		json.put("isMe", author.getId().equals(Context.get().getMainAgent().getIdentifier()));
 
 		return json;
 	}
@@ -145,6 +659,71 @@ public class ThreadedCommentService extends RESTService {
 
 	}
 
+	/**
+	 * Delete a comment thread in the background. The comments are deleted first and the thread itself last, so a
+	 * deletion that has been interrupted can be started again. The status of the deletion is stored, so it can be
+	 * queried on every node.
+	 * 
+	 * @param id Id of the thread.
+	 * @return Id of the deletion job to be passed to getDeletionStatus, null if the thread could not be deleted
+	 */
+	public String deleteCommentThreadInBackground(String id) {
+		try {
+			CommentThread thread = _getCommentThread(id);
+			DeletionJob job = getStorage().init(new DeletionJob(thread.getPermissions(), id));
+			deletions.put(job.getId(), thread.deleteInBackground(job));
+			return job.getId();
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Get the status of a deletion running in the background. The status is taken from memory on the node running
+	 * the deletion and read from storage on every other node, where it is updated about every second.
+	 * 
+	 * @param jobId Id returned by deleteCommentThreadInBackground
+	 * @return JSON object with the id of the thread, the state ("RUNNING", "DONE" or "FAILED"), the number of deleted
+	 *         envelopes and the start and end of the deletion; null if the job is unknown
+	 */
+	public String getDeletionStatus(String jobId) {
+		Deletion deletion = deletions.get(jobId);
+		if (deletion != null) {
+			return _serializeDeletion(deletion.getId(), deletion.getState(), deletion.getDeleted(),
+					deletion.getStarted(), deletion.getFinished(),
+					deletion.getError() != null ? deletion.getError().getMessage() : null);
+		}
+
+		try {
+			Storable stored = getStorage().load(jobId);
+			if (!(stored instanceof DeletionJob))
+				return null;
+
+			DeletionJob job = (DeletionJob) stored;
+			return _serializeDeletion(job.getDeletedId(), job.getState(), job.getDeleted(), job.getStarted(),
+					job.getFinished(), job.getError());
+		} catch (NotFoundException | PermissionException e) {
+			return null;
+		} catch (StorageException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private String _serializeDeletion(String id, Deletion.State state, int deleted, long started, long finished,
+			String error) {
+		JSONObject json = new JSONObject();
+		json.put("id", id);
+		json.put("state", state.name());
+		json.put("deleted", deleted);
+		json.put("started", _serializeDate(new Date(started), false));
+		if (finished != 0)
+			json.put("finished", _serializeDate(new Date(finished), false));
+		if (error != null)
+			json.put("error", error);
+		return json.toJSONString();
+	}
+
 	@Api
 	@SwaggerDefinition(
 			info = @Info(
@@ -167,6 +746,14 @@ public class ThreadedCommentService extends RESTService {
 		 * Get the comment thread including comments.
 		 * 
 		 * @param threadId Id of the thread
+		 * @param cursor Cursor returned with the previous page
+		 * @param limit Maximum number of comments, 0 for all comments
+		 * @param myRating Include the vote of the current user for each comment; list views that do not
+		 *        show it should pass false, as it loads a vote shard of every listed comment
+		 * @param epochMillis Write dates as milliseconds since the epoch
+		 * @param depth Number of reply levels to include as nested "replies" arrays, at most 10. At most 20 replies
+		 *        are included per comment and 500 in total; "repliesCursor" is the cursor of the further replies of
+		 *        a comment at the replies endpoint.
 		 * @return Returns the comment thread including comments identified by given thread id
 		 */
 		@GET
@@ -187,16 +774,19 @@ public class ThreadedCommentService extends RESTService {
 								message = "Internal Server Error") })
 		@ApiOperation(
 				value = "getCommentThread",
-				notes = "Get comment thread including comments")
-		public Response getCommentThread(@PathParam("id") String threadId) {
+				notes = "Get comment thread including comments. Votes of the current user are left out with myRating=false.")
+		public Response getCommentThread(@PathParam("id") String threadId,
+				@QueryParam("cursor") @DefaultValue("0") long cursor, @QueryParam("limit") @DefaultValue("0") int limit,
+				@QueryParam("myRating") @DefaultValue("true") boolean myRating,
+				@QueryParam("epochMillis") @DefaultValue("false") boolean epochMillis,
+				@QueryParam("depth") @DefaultValue("0") int depth) {
 			try {
 				CommentThread thread = service._getCommentThread(threadId);
-				List<Comment> comments = thread.getComments();
-
-				JSONArray list = new JSONArray();
-				for (Comment comment : comments) {
-					list.add(service._serializeComment(comment, Context.get().fetchAgent(comment.getAgentId())));
-				}
+				CommentPage page = thread.getComments(cursor, limit);
+				JSONArray list = service._serializeComments(page.getComments(), myRating, epochMillis);
+				if (depth > 0)
+					service._serializeReplies(page.getComments(), list, Math.min(depth, MAX_DEPTH), myRating,
+							epochMillis);
 
 				JSONObject response = new JSONObject();
 				response.put("id", thread.getId());
@@ -204,6 +794,8 @@ public class ThreadedCommentService extends RESTService {
 				response.put("isWriter", Context.getCurrent().hasAccess(thread.getPermissions().owner)
 						|| Context.getCurrent().hasAccess(thread.getPermissions().writer));
 				response.put("comments", list);
+				if (page.getNextCursor() != null)
+					response.put("nextCursor", page.getNextCursor());
 
 				return Response.ok().entity(response.toJSONString()).build();
 			} catch (PermissionException e) {
@@ -218,6 +810,119 @@ public class ThreadedCommentService extends RESTService {
 			}
 		}
 
+		/**
+		 * Get the changes of a comment thread since the last update of the client
+		 * 
+		 * @param threadId Thread id
+		 * @param since Sequence number returned with the previous changes; 0 for all logged changes
+		 * @param sinceTime Alternatively, milliseconds since the epoch of the last update; used if set
+		 * @param myRating Include the vote of the current user for each comment; list views that do not
+		 *        show it should pass false, as it loads a vote shard of every listed comment
+		 * @param epochMillis Write dates as milliseconds since the epoch
+		 * @return Returns the changes and the current state of the modified comments. If complete is false, older
+		 *         changes have been dropped and the thread has to be reloaded.
+		 */
+		@GET
+		@Path("/threads/{id}/changes")
+		@Produces(MediaType.APPLICATION_JSON)
+		@ApiResponses(
+				value = { @ApiResponse(
+						code = HttpURLConnection.HTTP_OK,
+						message = "Changes"),
+						@ApiResponse(
+								code = HttpURLConnection.HTTP_FORBIDDEN,
+								message = "Forbidden"),
+						@ApiResponse(
+								code = HttpURLConnection.HTTP_NOT_FOUND,
+								message = "Not Found"),
+						@ApiResponse(
+								code = HttpURLConnection.HTTP_INTERNAL_ERROR,
+								message = "Internal Server Error") })
+		@ApiOperation(
+				value = "getCommentThreadChanges",
+				notes = "Get added, edited, deleted and voted comments of a thread since a sequence number or date. Votes of the current user are left out with myRating=false.")
+		public Response getCommentThreadChanges(@PathParam("id") String threadId,
+				@QueryParam("since") @DefaultValue("0") long since,
+				@QueryParam("sinceTime") @DefaultValue("0") long sinceTime,
+				@QueryParam("myRating") @DefaultValue("true") boolean myRating,
+				@QueryParam("epochMillis") @DefaultValue("false") boolean epochMillis) {
+			try {
+				CommentThread thread = service._getCommentThread(threadId);
+				ChangeSet changes = sinceTime > 0 ? thread.getChanges(new Date(sinceTime)) : thread.getChanges(since);
+
+				JSONObject response = service._serializeChanges(thread.getId(), changes, myRating, epochMillis);
+
+				return Response.ok().entity(response.toJSONString()).build();
+			} catch (PermissionException e) {
+				e.printStackTrace();
+				return Response.status(Status.FORBIDDEN).entity("Forbidden").build();
+			} catch (NotFoundException e) {
+				e.printStackTrace();
+				return Response.status(Status.NOT_FOUND).entity("Not Found").build();
+			} catch (Exception e) {
+				e.printStackTrace();
+				return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Internal Server Error").build();
+			}
+		}
+
+		/**
+		 * Wait for changes of a comment thread as server-sent events. The request returns as soon as there are changes
+		 * the client does not know yet, or after a timeout. Event stream clients reconnect automatically and send the
+		 * id of the last event, so the endpoint behaves like a continuous stream of changes.
+		 * 
+		 * @param response The suspended response
+		 * @param threadId Thread id
+		 * @param lastEventId Id of the last event received by an event stream client
+		 * @param since Sequence number of the last known change, used if no Last-Event-ID is sent
+		 * @param myRating Include the vote of the current user for each comment; list views that do not
+		 *        show it should pass false, as it loads a vote shard of every listed comment
+		 * @param epochMillis Write dates as milliseconds since the epoch
+		 */
+		@GET
+		@Path("/threads/{id}/events")
+		@Produces("text/event-stream")
+		@ApiResponses(
+				value = { @ApiResponse(
+						code = HttpURLConnection.HTTP_OK,
+						message = "Changes"),
+						@ApiResponse(
+								code = HttpURLConnection.HTTP_NO_CONTENT,
+								message = "Thread has no change log"),
+						@ApiResponse(
+								code = HttpURLConnection.HTTP_BAD_REQUEST,
+								message = "Bad Request"),
+						@ApiResponse(
+								code = HttpURLConnection.HTTP_FORBIDDEN,
+								message = "Forbidden"),
+						@ApiResponse(
+								code = HttpURLConnection.HTTP_NOT_FOUND,
+								message = "Not Found"),
+						@ApiResponse(
+								code = HttpURLConnection.HTTP_INTERNAL_ERROR,
+								message = "Internal Server Error"),
+						@ApiResponse(
+								code = HttpURLConnection.HTTP_UNAVAILABLE,
+								message = "Too many subscribers") })
+		@ApiOperation(
+				value = "getCommentThreadEvents",
+				notes = "Wait for changes of a comment thread as server-sent events. Votes of the current user are left out with myRating=false.")
+		public void getCommentThreadEvents(@Suspended AsyncResponse response, @PathParam("id") String threadId,
+				@HeaderParam("Last-Event-ID") String lastEventId, @QueryParam("since") @DefaultValue("0") long since,
+				@QueryParam("myRating") @DefaultValue("true") boolean myRating,
+				@QueryParam("epochMillis") @DefaultValue("false") boolean epochMillis) {
+			long from = since;
+			if (lastEventId != null && !lastEventId.trim().isEmpty()) {
+				try {
+					from = Long.parseLong(lastEventId.trim());
+				} catch (NumberFormatException e) {
+					response.resume(Response.status(Status.BAD_REQUEST).entity("Bad Request").build());
+					return;
+				}
+			}
+
+			service._awaitChanges(response, threadId, from, myRating, epochMillis);
+		}
+
 		/**
 		 * Create new comment
 		 * 
@@ -310,6 +1015,11 @@ public class ThreadedCommentService extends RESTService {
 		 * Get replies to another comment
 		 * 
 		 * @param commentId
+		 * @param cursor Cursor returned with the previous page
+		 * @param limit Maximum number of replies, 0 for all replies
+		 * @param myRating Include the vote of the current user for each reply; list views that do not
+		 *        show it should pass false, as it loads a vote shard of every listed comment
+		 * @param epochMillis Write dates as milliseconds since the epoch
 		 * @return Returns the list of replies to given comment id
 		 */
 		@GET
@@ -330,20 +1040,21 @@ public class ThreadedCommentService extends RESTService {
 								message = "Internal Server Error") })
 		@ApiOperation(
 				value = "getCommentReplys",
-				notes = "Get comment thread including comments")
-		public Response getCommentReplys(@PathParam("id") String commentId) {
+				notes = "Get replies to a comment. Votes of the current user are left out with myRating=false.")
+		public Response getCommentReplys(@PathParam("id") String commentId,
+				@QueryParam("cursor") @DefaultValue("0") long cursor, @QueryParam("limit") @DefaultValue("0") int limit,
+				@QueryParam("myRating") @DefaultValue("true") boolean myRating,
+				@QueryParam("epochMillis") @DefaultValue("false") boolean epochMillis) {
 			try {
 				Comment mainComment = service._getComment(commentId);
-				List<Comment> comments = mainComment.getComments();
-
-				JSONArray list = new JSONArray();
-				for (Comment comment : comments) {
-					list.add(service._serializeComment(comment, Context.getCurrent().fetchAgent(comment.getAgentId())));
-				}
+				CommentPage page = mainComment.getComments(cursor, limit);
+				JSONArray list = service._serializeComments(page.getComments(), myRating, epochMillis);
 
 				JSONObject response = new JSONObject();
 				response.put("id", mainComment.getId());
 				response.put("comments", list);
+				if (page.getNextCursor() != null)
+					response.put("nextCursor", page.getNextCursor());
 
 				return Response.ok().entity(response.toJSONString()).build();
 			} catch (PermissionException e) {
@@ -362,6 +1073,7 @@ public class ThreadedCommentService extends RESTService {
 		 * Get a comment by id
 		 * 
 		 * @param id Id of the comment
+		 * @param epochMillis Write dates as milliseconds since the epoch
 		 * @return Returns the comment for the given comment id
 		 */
 		@GET
@@ -383,15 +1095,12 @@ public class ThreadedCommentService extends RESTService {
 		@ApiOperation(
 				value = "Comment",
 				notes = "Get a comment by id.")
-		public Response getComment(@PathParam("id") String id) {
+		public Response getComment(@PathParam("id") String id,
+				@QueryParam("epochMillis") @DefaultValue("false") boolean epochMillis) {
 			try {
 				Comment comment = service._getComment(id);
 
-				return Response.ok()
-						.entity(service
-								._serializeComment(comment, Context.getCurrent().fetchAgent(comment.getAgentId()))
-								.toJSONString())
-						.build();
+				return Response.ok().entity(service._serializeComment(comment, epochMillis).toJSONString()).build();
 
 			} catch (PermissionException e) {
 				e.printStackTrace();
@@ -405,6 +1114,70 @@ public class ThreadedCommentService extends RESTService {
 			}
 		}
 
+		/**
+		 * Get several comments by id. Comments are loaded in parallel; votes, replies and authors are loaded once for
+		 * all comments.
+		 * 
+		 * @param ids Comma separated ids of the comments
+		 * @param myRating Include the vote of the current user for each comment; list views that do not
+		 *        show it should pass false, as it loads a vote shard of every listed comment
+		 * @param epochMillis Write dates as milliseconds since the epoch
+		 * @return Returns the available comments in the requested order and the ids of the missing ones
+		 */
+		@GET
+		@Path("/comment")
+		@Produces(MediaType.APPLICATION_JSON)
+		@ApiResponses(
+				value = { @ApiResponse(
+						code = HttpURLConnection.HTTP_OK,
+						message = "Comments"),
+						@ApiResponse(
+								code = HttpURLConnection.HTTP_BAD_REQUEST,
+								message = "Bad Request"),
+						@ApiResponse(
+								code = HttpURLConnection.HTTP_INTERNAL_ERROR,
+								message = "Internal Server Error") })
+		@ApiOperation(
+				value = "getComments",
+				notes = "Get several comments by id. Comments that do not exist or cannot be read are listed as missing. Votes of the current user are left out with myRating=false.")
+		public Response getComments(@QueryParam("ids") @DefaultValue("") String ids,
+				@QueryParam("myRating") @DefaultValue("true") boolean myRating,
+				@QueryParam("epochMillis") @DefaultValue("false") boolean epochMillis) {
+			List<String> idList = new ArrayList<>();
+			for (String id : ids.split(",")) {
+				if (!id.trim().isEmpty())
+					idList.add(id.trim());
+			}
+			if (idList.isEmpty() || idList.size() > BULK_LIMIT)
+				return Response.status(Status.BAD_REQUEST).entity("Bad Request").build();
+
+			try {
+				List<Comment> comments = service._getComments(idList);
+
+				JSONArray missing = new JSONArray();
+				Set<String> found = new HashSet<>();
+				for (Comment comment : comments) {
+					found.add(comment.getId());
+				}
+				for (String id : new LinkedHashSet<>(idList)) {
+					if (!found.contains(id))
+						missing.add(id);
+				}
+
+				JSONObject response = new JSONObject();
+				response.put("comments", service._serializeComments(comments, myRating, epochMillis));
+				response.put("missing", missing);
+
+				return Response.ok().entity(response.toJSONString()).build();
+			} catch (PermissionException e) {
+				e.printStackTrace();
+				return Response.status(Status.FORBIDDEN).entity("Forbidden").build();
+			} catch (Exception e) {
+				e.printStackTrace();
+				return Response.status(Status.INTERNAL_SERVER_ERROR).entity("Internal Server Error").build();
+			}
+		}
+
 		/**
 		 * Edit a comment
 		 * 
@@ -436,11 +1209,7 @@ public class ThreadedCommentService extends RESTService {
 			try {
 				Comment comment = service._getComment(id);
 				comment.setBody(body);
-				return Response.ok()
-						.entity(service
-								._serializeComment(comment, Context.getCurrent().fetchAgent(comment.getAgentId()))
-								.toJSONString())
-						.build();
+				return Response.ok().entity(service._serializeComment(comment, false).toJSONString()).build();
 			} catch (PermissionException e) {
 				e.printStackTrace();
 				return Response.status(Status.FORBIDDEN).entity("Forbidden").build();
@@ -477,14 +1246,13 @@ public class ThreadedCommentService extends RESTService {
 								message = "Internal Server Error") })
 		@ApiOperation(
 				value = "deleteComment",
-				notes = "Delete a Comment")
+				notes = "Delete a Comment. Its votes and replies are reclaimed in the background.")
 		public Response deleteComment(@PathParam("id") String id) {
 			try {
 				Comment comment = service._getComment(id);
-				String response = service
-						._serializeComment(comment, Context.getCurrent().fetchAgent(comment.getAgentId()))
-						.toJSONString();
-				comment.delete();
+				String response = service._serializeComment(comment, false).toJSONString();
+				comment.softDelete();
+				service.collector.collect(comment, Context.get().getExecutor());
 				return Response.ok().entity(response).build();
 			} catch (PermissionException e) {
 				e.printStackTrace();
@@ -546,10 +1314,36 @@ public class ThreadedCommentService extends RESTService {
 				return Response.status(Status.NOT_FOUND).entity("Not Found").build();
 			}
 		}
+
+		/**
+		 * Get the metrics of this service instance
+		 * 
+		 * @return Returns latencies per endpoint and storage operation, envelope fetches per request and the number
+		 *         of clients waiting for changes
+		 */
+		@GET
+		@Path("/metrics")
+		@Produces(MediaType.APPLICATION_JSON)
+		@ApiResponses(
+				value = { @ApiResponse(
+						code = HttpURLConnection.HTTP_OK,
+						message = "Metrics") })
+		@ApiOperation(
+				value = "getMetrics",
+				notes = "Get latencies and envelope fetches of this node")
+		public Response getMetrics() {
+			JSONObject json = service.metrics.toJSON();
+			json.put("subscribers", service.events.getSubscriberCount());
+			json.put("pendingTombstones", service.collector.getPendingCount());
+			json.put("reclaimedTombstones", service.collector.getReclaimedCount());
+			json.put("failedTombstones", service.collector.getFailedCount());
+			return Response.ok().entity(json.toJSONString()).build();
+		}
 	}
 
 	@Override
 	protected void initResources() {
 		getResourceConfig().register(RootResource.class);
+		getResourceConfig().register(new MetricsFilter(metrics));
 	}
 }
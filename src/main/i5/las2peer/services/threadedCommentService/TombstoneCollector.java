@@ -0,0 +1,210 @@
+package i5.las2peer.services.threadedCommentService;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import i5.las2peer.services.threadedCommentService.data.Comment;
+import i5.las2peer.services.threadedCommentService.storage.PermissionException;
+import i5.las2peer.services.threadedCommentService.storage.StorageException;
+
+/**
+ * Node-local collector for soft-deleted comments. Tombstones are queued by the deleting request and reclaimed one by
+ * one on a single worker of the executor of the request that found the collector idle, so a burst of deletions does not
+ * compete with other requests for storage operations. Each tombstone is reclaimed by the Storage of its own request,
+ * i.e. with the permissions of the deleting agent.
+ *
+ * If the queue is full, the tombstone is reclaimed by the deleting request itself. A reclaim that fails with a
+ * StorageException is retried up to {@link #MAX_ATTEMPTS} times.
+ *
+ * The queue only lives on this node, but every tombstone is also recorded in the comment list it has been removed
+ * from. Tombstones that have not been reclaimed, because all attempts failed or the node went away, are swept lazily:
+ * after a tombstone has been reclaimed, the remaining tombstones of its list are queued as well, and all tombstones of
+ * a thread are deleted together with the thread. Nothing is swept on startup, as that would require reading every
+ * thread.
+ *
+ * @author Jasper Nalbach
+ *
+ */
+public class TombstoneCollector {
+
+	/**
+	 * Number of attempts to reclaim a tombstone before it is left to a later sweep
+	 */
+	static final int MAX_ATTEMPTS = 3;
+
+	/**
+	 * Maximum number of queued tombstones
+	 */
+	private final int maxPending;
+
+	/**
+	 * Queued tombstones, guarded by this
+	 */
+	private final Queue<Tombstone> pending = new ArrayDeque<>();
+
+	/**
+	 * Ids of the queued tombstones, guarded by this
+	 */
+	private final Set<String> queued = new HashSet<>();
+
+	/**
+	 * True while a worker is reclaiming tombstones, guarded by this
+	 */
+	private boolean running;
+
+	private final LongAdder reclaimed = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+
+	/**
+	 *
+	 * @param maxPending Maximum number of queued tombstones
+	 */
+	public TombstoneCollector(int maxPending) {
+		this.maxPending = maxPending;
+	}
+
+	/**
+	 * Queues a tombstone unless it is queued already. Starts a worker if none is running.
+	 *
+	 * @param tombstone A soft-deleted comment, attached to the Storage of the deleting request
+	 * @param executor Executor of the deleting request
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	public void collect(Comment tombstone, Executor executor) throws StorageException, PermissionException {
+		boolean queuedNow = false;
+		boolean start = false;
+		synchronized (this) {
+			if (queued.contains(tombstone.getId()))
+				return;
+
+			if (pending.size() < maxPending) {
+				pending.add(new Tombstone(tombstone));
+				queued.add(tombstone.getId());
+				queuedNow = true;
+				start = !running;
+				running = true;
+			}
+		}
+
+		if (!queuedNow) {
+			reclaim(tombstone);
+			return;
+		}
+
+		if (start) {
+			try {
+				executor.execute(this::drain);
+			} catch (RejectedExecutionException e) {
+				drain();
+			}
+		}
+	}
+
+	/**
+	 * Get the number of queued tombstones
+	 *
+	 * @return Number of tombstones waiting to be reclaimed
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Get the number of reclaimed tombstones
+	 *
+	 * @return Number of tombstones reclaimed since the start of the node
+	 */
+	public long getReclaimedCount() {
+		return reclaimed.sum();
+	}
+
+	/**
+	 * Get the number of failed attempts to reclaim a tombstone
+	 *
+	 * @return Number of failures since the start of the node
+	 */
+	public long getFailedCount() {
+		return failed.sum();
+	}
+
+	/**
+	 * Reclaims queued tombstones until the queue is empty. Tombstones that failed are queued again until they run out
+	 * of attempts. The remaining tombstones of the list of a reclaimed tombstone are queued as well.
+	 */
+	private void drain() {
+		while (true) {
+			Tombstone tombstone;
+			synchronized (this) {
+				tombstone = pending.poll();
+				if (tombstone == null) {
+					running = false;
+					return;
+				}
+			}
+
+			boolean retry = false;
+			try {
+				reclaim(tombstone.comment);
+				sweep(tombstone.comment);
+			} catch (StorageException | RuntimeException e) {
+				e.printStackTrace();
+				retry = ++tombstone.attempts < MAX_ATTEMPTS;
+			} catch (PermissionException e) {
+				e.printStackTrace();
+			}
+
+			synchronized (this) {
+				if (retry)
+					pending.add(tombstone);
+				else
+					queued.remove(tombstone.comment.getId());
+			}
+		}
+	}
+
+	private void reclaim(Comment tombstone) throws StorageException, PermissionException {
+		try {
+			tombstone.reclaim();
+			reclaimed.increment();
+		} catch (StorageException | PermissionException | RuntimeException e) {
+			failed.increment();
+			throw e;
+		}
+	}
+
+	/**
+	 * Queues the tombstones left behind in the list of a reclaimed tombstone, as far as there is room.
+	 *
+	 * @param tombstone The reclaimed tombstone
+	 */
+	private void sweep(Comment tombstone) {
+		try {
+			for (Comment left : tombstone.getTombstones()) {
+				synchronized (this) {
+					if (pending.size() < maxPending && queued.add(left.getId()))
+						pending.add(new Tombstone(left));
+				}
+			}
+		} catch (StorageException | PermissionException | RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * A queued tombstone and the number of failed attempts to reclaim it
+	 */
+	private static class Tombstone {
+		final Comment comment;
+		int attempts;
+
+		Tombstone(Comment comment) {
+			this.comment = comment;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package i5.las2peer.services.threadedCommentService.data;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Date;
+
+import i5.las2peer.services.threadedCommentService.storage.StorableCodec;
+
+/**
+ * Entry of a ChangeLog. Describes one modification of a comment in a thread.
+ *
+ * @author Jasper Nalbach
+ *
+ */
+public class Change implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Kind of modification. Stored by ordinal, so new types must be appended.
+	 */
+	public enum Type {
+		ADD, EDIT, DELETE, VOTE
+	}
+
+	private final long sequence;
+	private final Type type;
+	private final String commentId;
+	private final String parentId;
+	private final long time;
+
+	Change(long sequence, Type type, String commentId, String parentId, long time) {
+		this.sequence = sequence;
+		this.type = type;
+		this.commentId = commentId;
+		this.parentId = parentId;
+		this.time = time;
+	}
+
+	/**
+	 *
+	 * @return Position in the change log, increases monotonically within a thread
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 *
+	 * @return Kind of modification
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 *
+	 * @return Id of the modified comment
+	 */
+	public String getCommentId() {
+		return commentId;
+	}
+
+	/**
+	 *
+	 * @return Id of the comment a reply was added to; null for comments added to the thread and all other types
+	 */
+	public String getParentId() {
+		return parentId;
+	}
+
+	/**
+	 *
+	 * @return Date of the modification
+	 */
+	public Date getDate() {
+		return new Date(time);
+	}
+
+	void write(DataOutput out) throws IOException {
+		StorableCodec.writeVarLong(out, sequence);
+		out.writeByte(type.ordinal());
+		StorableCodec.writeString(out, commentId);
+		StorableCodec.writeString(out, parentId);
+		out.writeLong(time);
+	}
+
+	static Change read(DataInput in) throws IOException {
+		return new Change(StorableCodec.readVarLong(in), Type.values()[in.readUnsignedByte()],
+				StorableCodec.readString(in), StorableCodec.readString(in), in.readLong());
+	}
+}
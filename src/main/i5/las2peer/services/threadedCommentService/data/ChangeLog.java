@@ -0,0 +1,332 @@
+package i5.las2peer.services.threadedCommentService.data;
+
+import i5.las2peer.services.threadedCommentService.storage.PermissionException;
+import i5.las2peer.services.threadedCommentService.storage.Storable;
+import i5.las2peer.services.threadedCommentService.storage.StorableCodec;
+import i5.las2peer.services.threadedCommentService.storage.StorablePointer;
+import i5.las2peer.services.threadedCommentService.storage.StorableSharedPointer;
+import i5.las2peer.services.threadedCommentService.storage.StorageException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Log of the modifications of all comments of a thread, so that clients can poll for changes instead of reloading the
+ * whole thread. Only the latest changes are kept.
+ *
+ * The log itself only keeps pointers to its segments; changes are appended to the last segment, so that logging a
+ * change does not rewrite all kept changes. The log is only written when a segment is added.
+ *
+ * @author Jasper Nalbach
+ *
+ */
+public class ChangeLog extends Storable {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Maximum number of changes kept in the log
+	 */
+	static final int CAPACITY = 1000;
+
+	/**
+	 * Number of changes logged to a segment before a new segment is started
+	 */
+	static final int SEGMENT_SIZE = 100;
+
+	/**
+	 * Range of sequence numbers of a segment. Larger than SEGMENT_SIZE, so that a segment can take concurrent changes
+	 * beyond its size.
+	 */
+	static final long SEQUENCE_SPAN = 1L << 20;
+
+	private Permissions permissions;
+
+	/**
+	 * Changes of logs stored before segments were introduced, ordered by their sequence number. They precede the
+	 * changes of all segments.
+	 */
+	private List<Change> changes;
+
+	/**
+	 * Sequence number after the changes stored in the log itself; starts with 1, so 0 can be used to request all
+	 * changes. The range of segment i starts at nextSequence + i * SEQUENCE_SPAN.
+	 */
+	private long nextSequence;
+
+	/**
+	 * Number of the first kept segment; older segments have been dropped
+	 */
+	private long firstSegment;
+
+	/**
+	 * Kept segments in the order they have been added; the last segment takes new changes
+	 */
+	private List<StorableSharedPointer<ChangeLogSegment>> segments;
+
+	ChangeLog(Permissions permissions) {
+		super();
+
+		this.permissions = permissions;
+
+		changes = new ArrayList<>();
+		nextSequence = 1;
+		firstSegment = 0;
+		segments = new ArrayList<>();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+
+		if (segments == null)
+			segments = new ArrayList<>();
+	}
+
+	@Override
+	protected void init() throws StorageException, PermissionException {
+		try {
+			addWriter(permissions.owner);
+			addWriter(permissions.writer);
+			addReader(permissions.reader);
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	@Override
+	protected boolean cleanup() throws StorageException, PermissionException {
+		List<StorableSharedPointer<ChangeLogSegment>> detached = new ArrayList<>(segments);
+		segments.clear();
+		for (StorableSharedPointer<ChangeLogSegment> s : detached) {
+			s.detach();
+		}
+		return true;
+	}
+
+	@Override
+	protected Collection<StorablePointer<?>> pointers() {
+		return new ArrayList<StorablePointer<?>>(segments);
+	}
+
+	/**
+	 * Segments are added by all writers of a thread, so concurrent additions on a node are written together.
+	 */
+	@Override
+	protected boolean coalesceWrites() {
+		return true;
+	}
+
+	/**
+	 * Points to a new segment every SEGMENT_SIZE changes, so it is always read from the network.
+	 */
+	@Override
+	protected boolean cacheable() {
+		return false;
+	}
+
+	@Override
+	protected int formatVersion() {
+		return 2;
+	}
+
+	@Override
+	protected void writeFields(DataOutput out) throws IOException {
+		permissions.write(out);
+		StorableCodec.writeVarLong(out, nextSequence);
+		StorableCodec.writeVarInt(out, changes.size());
+		for (Change c : changes) {
+			c.write(out);
+		}
+		StorableCodec.writeVarLong(out, firstSegment);
+		StorableCodec.writeVarInt(out, segments.size());
+		for (StorableSharedPointer<ChangeLogSegment> s : segments) {
+			StorableCodec.writePointer(out, s);
+		}
+	}
+
+	@Override
+	protected void readFields(DataInput in, int version) throws IOException {
+		permissions = Permissions.read(in);
+		nextSequence = StorableCodec.readVarLong(in);
+		int size = StorableCodec.readVarInt(in);
+		changes = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			changes.add(Change.read(in));
+		}
+
+		firstSegment = 0;
+		segments = new ArrayList<>();
+		if (version >= 2) {
+			firstSegment = StorableCodec.readVarLong(in);
+			int segmentCount = StorableCodec.readVarInt(in);
+			for (int i = 0; i < segmentCount; i++) {
+				segments.add(StorableCodec.<ChangeLogSegment> readSharedPointer(in, this));
+			}
+		}
+	}
+
+	/**
+	 * Appends a change to the last segment.
+	 *
+	 * @param type Kind of modification
+	 * @param comment The modified comment
+	 * @param parentId Id of the comment a reply was added to, null otherwise
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	void add(Change.Type type, Comment comment, String parentId) throws StorageException, PermissionException {
+		getTailSegment().add(type, comment, parentId);
+	}
+
+	/**
+	 * Get the segment new changes are appended to. A new segment is added if the last segment is full, and the oldest
+	 * segments beyond the capacity are dropped. If another writer has added a segment concurrently, the new segment
+	 * is deleted again and the segment of the other writer is used.
+	 *
+	 * Adding a segment writes the log, so it must not be called within a batch.
+	 *
+	 * @return The last segment
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	ChangeLogSegment getTailSegment() throws StorageException, PermissionException {
+		int count = segments.size();
+		if (count > 0) {
+			ChangeLogSegment tail = segments.get(count - 1).get();
+			if (!tail.isFull())
+				return tail;
+		}
+
+		long index = firstSegment + count;
+		ChangeLogSegment segment = new ChangeLogSegment(permissions, getId(), nextSequence + index * SEQUENCE_SPAN);
+		List<StorableSharedPointer<ChangeLogSegment>> created = new ArrayList<>(1);
+		List<StorableSharedPointer<ChangeLogSegment>> dropped = new ArrayList<>();
+		boolean[] added = new boolean[1];
+
+		getStorage().batch(() -> {
+			StorableSharedPointer<ChangeLogSegment> pointer = sharedPointer(segment);
+			created.add(pointer);
+
+			update((ChangeLog log) -> {
+				dropped.clear();
+				added[0] = log.firstSegment + log.segments.size() == index;
+				if (!added[0])
+					return;
+
+				log.segments.add(pointer);
+				int excess = log.segments.size() - CAPACITY / SEGMENT_SIZE;
+				if (excess > 0) {
+					List<StorableSharedPointer<ChangeLogSegment>> oldest = log.segments.subList(0, excess);
+					dropped.addAll(oldest);
+					oldest.clear();
+					log.firstSegment += excess;
+					log.changes.clear();
+				}
+			});
+		});
+
+		if (!added[0]) {
+			created.get(0).detach();
+			return getTailSegment();
+		}
+		for (StorableSharedPointer<ChangeLogSegment> s : dropped) {
+			s.detach();
+		}
+		return segment;
+	}
+
+	/**
+	 * Get the changes after a given sequence number. Only the segments that can hold newer changes are loaded.
+	 *
+	 * @param since Sequence number of the last change known to the client; 0 for all changes
+	 * @return The changes
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	ChangeSet getChanges(long since) throws StorageException, PermissionException {
+		List<Change> ret = new ArrayList<>();
+		for (Change c : changes) {
+			if (c.getSequence() > since)
+				ret.add(c);
+		}
+
+		// segment i only holds sequence numbers below the range of segment i + 1
+		int from = 0;
+		while (from < segments.size() - 1 && getFirstSequence(from + 1) <= since + 1) {
+			from++;
+		}
+		List<StorableSharedPointer<ChangeLogSegment>> loaded = segments.subList(from, segments.size());
+		getStorage().fetch(loaded);
+		for (StorableSharedPointer<ChangeLogSegment> s : loaded) {
+			for (Change c : s.get().getChanges()) {
+				if (c.getSequence() > since)
+					ret.add(c);
+			}
+		}
+
+		boolean complete = !isTruncated() || getOldestSequence() <= since + 1;
+		return new ChangeSet(ret, getSequence(), complete);
+	}
+
+	/**
+	 * Get the changes after a given date. Loads all kept segments.
+	 *
+	 * @param since Date of the last update of the client
+	 * @return The changes
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	ChangeSet getChanges(Date since) throws StorageException, PermissionException {
+		getStorage().fetch(segments);
+
+		List<Change> kept = new ArrayList<>(changes);
+		for (StorableSharedPointer<ChangeLogSegment> s : segments) {
+			kept.addAll(s.get().getChanges());
+		}
+
+		List<Change> ret = new ArrayList<>();
+		for (Change c : kept) {
+			if (c.getDate().after(since))
+				ret.add(c);
+		}
+
+		boolean complete = !isTruncated() || !kept.isEmpty() && !kept.get(0).getDate().after(since);
+		return new ChangeSet(ret, getSequence(), complete);
+	}
+
+	/**
+	 * Get the sequence number of the latest change. Loads the last segment.
+	 *
+	 * @return Sequence number; 0 if nothing has been logged yet
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	long getSequence() throws StorageException, PermissionException {
+		if (segments.isEmpty())
+			return nextSequence - 1;
+		return segments.get(segments.size() - 1).get().getSequence();
+	}
+
+	private long getFirstSequence(int segment) {
+		return nextSequence + (firstSegment + segment) * SEQUENCE_SPAN;
+	}
+
+	/**
+	 * @return True, if older changes have been dropped
+	 */
+	private boolean isTruncated() {
+		return firstSegment > 0 || !changes.isEmpty() && changes.get(0).getSequence() > 1;
+	}
+
+	/**
+	 * @return Lowest sequence number that has been kept
+	 */
+	private long getOldestSequence() {
+		return changes.isEmpty() ? getFirstSequence(0) : changes.get(0).getSequence();
+	}
+}
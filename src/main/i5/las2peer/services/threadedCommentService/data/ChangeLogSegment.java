@@ -0,0 +1,187 @@
+package i5.las2peer.services.threadedCommentService.data;
+
+import i5.las2peer.services.threadedCommentService.storage.PermissionException;
+import i5.las2peer.services.threadedCommentService.storage.Storable;
+import i5.las2peer.services.threadedCommentService.storage.StorableCodec;
+import i5.las2peer.services.threadedCommentService.storage.StorageException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Segment of a ChangeLog. Holds up to {@link ChangeLog#SEGMENT_SIZE} changes, so that logging a change only rewrites
+ * the last segment instead of the whole log.
+ *
+ * Like the chunks of a Comments container, each segment numbers its changes within its own range of sequence
+ * numbers, so concurrent changes that overfill a segment do not collide with the next segment. Votes on a comment
+ * replace the earlier vote change of the comment in the same segment, as clients only reload the current counters.
+ *
+ * @author Jasper Nalbach
+ *
+ */
+public class ChangeLogSegment extends Storable {
+	private static final long serialVersionUID = 1L;
+
+	private Permissions permissions;
+
+	/**
+	 * Id of the ChangeLog, which subscribers of the thread know
+	 */
+	private String logId;
+
+	/**
+	 * Changes ordered by their sequence number
+	 */
+	private List<Change> changes;
+
+	/**
+	 * First sequence number of the range of this segment
+	 */
+	private long firstSequence;
+
+	/**
+	 * Sequence number of the next change
+	 */
+	private long nextSequence;
+
+	/**
+	 *
+	 * @param permissions permission configuration; should be the same as the ChangeLog
+	 * @param logId id of the ChangeLog
+	 * @param firstSequence first sequence number of the range of this segment
+	 */
+	ChangeLogSegment(Permissions permissions, String logId, long firstSequence) {
+		super();
+
+		this.permissions = permissions;
+		this.logId = logId;
+
+		changes = new ArrayList<>();
+		this.firstSequence = firstSequence;
+		this.nextSequence = firstSequence;
+	}
+
+	@Override
+	protected void init() throws StorageException, PermissionException {
+		try {
+			addWriter(permissions.owner);
+			addWriter(permissions.writer);
+			addReader(permissions.reader);
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	@Override
+	protected boolean cleanup() throws StorageException, PermissionException {
+		return true;
+	}
+
+	/**
+	 * Every modification of a thread is logged to the last segment, so concurrent changes on a node are written
+	 * together.
+	 */
+	@Override
+	protected boolean coalesceWrites() {
+		return true;
+	}
+
+	/**
+	 * Changes with every modification of the thread, so it is always read from the network.
+	 */
+	@Override
+	protected boolean cacheable() {
+		return false;
+	}
+
+	@Override
+	protected void writeFields(DataOutput out) throws IOException {
+		permissions.write(out);
+		StorableCodec.writeString(out, logId);
+		StorableCodec.writeVarLong(out, firstSequence);
+		StorableCodec.writeVarLong(out, nextSequence);
+		StorableCodec.writeVarInt(out, changes.size());
+		for (Change c : changes) {
+			c.write(out);
+		}
+	}
+
+	@Override
+	protected void readFields(DataInput in, int version) throws IOException {
+		permissions = Permissions.read(in);
+		logId = StorableCodec.readString(in);
+		firstSequence = StorableCodec.readVarLong(in);
+		nextSequence = StorableCodec.readVarLong(in);
+		int size = StorableCodec.readVarInt(in);
+		changes = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			changes.add(Change.read(in));
+		}
+	}
+
+	/**
+	 * Appends a change. A vote replaces the earlier vote change of the same comment.
+	 *
+	 * @param type Kind of modification
+	 * @param comment The modified comment
+	 * @param parentId Id of the comment a reply was added to, null otherwise
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	void add(Change.Type type, Comment comment, String parentId) throws StorageException, PermissionException {
+		String commentId = comment.getId();
+		long time = System.currentTimeMillis();
+		update((ChangeLogSegment s) -> {
+			if (type == Change.Type.VOTE)
+				s.changes.removeIf(c -> c.getType() == Change.Type.VOTE && c.getCommentId().equals(commentId));
+			s.changes.add(new Change(s.nextSequence++, type, commentId, parentId, time));
+		});
+	}
+
+	/**
+	 * Coalesced votes do not take up space, so a segment is full once it holds SEGMENT_SIZE changes or its range of
+	 * sequence numbers is half used.
+	 *
+	 * @return True, if new changes should be logged to a new segment
+	 */
+	boolean isFull() {
+		return changes.size() >= ChangeLog.SEGMENT_SIZE
+				|| nextSequence - firstSequence >= ChangeLog.SEQUENCE_SPAN / 2;
+	}
+
+	/**
+	 *
+	 * @return Id of the ChangeLog this segment belongs to
+	 */
+	public String getLogId() {
+		return logId;
+	}
+
+	/**
+	 * Get the sequence number of the latest change.
+	 *
+	 * @return Sequence number; the first sequence number minus one if nothing has been logged yet
+	 */
+	public long getSequence() {
+		return nextSequence - 1;
+	}
+
+	/**
+	 *
+	 * @return True, if no change has been logged to this segment yet
+	 */
+	public boolean isEmpty() {
+		return changes.isEmpty();
+	}
+
+	/**
+	 *
+	 * @return Changes ordered by their sequence number
+	 */
+	List<Change> getChanges() {
+		return changes;
+	}
+}
@@ -0,0 +1,48 @@
+package i5.las2peer.services.threadedCommentService.data;
+
+import java.util.List;
+
+/**
+ * Changes of a thread since a given point.
+ *
+ * @author Jasper Nalbach
+ *
+ */
+public class ChangeSet {
+
+	private final List<Change> changes;
+
+	private final long sequence;
+
+	private final boolean complete;
+
+	ChangeSet(List<Change> changes, long sequence, boolean complete) {
+		this.changes = changes;
+		this.sequence = sequence;
+		this.complete = complete;
+	}
+
+	/**
+	 *
+	 * @return Changes ordered by their sequence number
+	 */
+	public List<Change> getChanges() {
+		return changes;
+	}
+
+	/**
+	 *
+	 * @return Sequence number of the latest change of the thread; pass it to get the next changes
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 *
+	 * @return False, if older changes have been dropped from the log, so the client has to reload the whole thread
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+}
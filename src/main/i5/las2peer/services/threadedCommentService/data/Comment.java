@@ -3,14 +3,27 @@ package i5.las2peer.services.threadedCommentService.data;
 import i5.las2peer.api.Context;
 import i5.las2peer.api.security.AgentNotFoundException;
 import i5.las2peer.api.security.AgentOperationFailedException;
+import i5.las2peer.services.threadedCommentService.storage.Deletion;
 import i5.las2peer.services.threadedCommentService.storage.PermissionException;
 import i5.las2peer.services.threadedCommentService.storage.Storable;
+import i5.las2peer.services.threadedCommentService.storage.StorableCodec;
+import i5.las2peer.services.threadedCommentService.storage.StorablePointer;
 import i5.las2peer.services.threadedCommentService.storage.StorableSharedPointer;
 import i5.las2peer.services.threadedCommentService.storage.StorableWeakPointer;
+import i5.las2peer.services.threadedCommentService.storage.Storage;
 import i5.las2peer.services.threadedCommentService.storage.StorageException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Represents a comment
@@ -42,6 +55,17 @@ public class Comment extends Storable {
 
 	private StorableWeakPointer<Comments> parent;
 
+	/**
+	 * Index of the chunk of the parent container holding this comment; null if the comment is stored in the container
+	 * itself
+	 */
+	private Integer chunk;
+
+	/**
+	 * Tombstone: the comment has been removed from its parent and waits to be reclaimed
+	 */
+	private boolean deleted;
+
 	/**
 	 * Votes container
 	 */
@@ -52,6 +76,18 @@ public class Comment extends Storable {
 	 */
 	private StorableSharedPointer<Comments> comments;
 
+	/**
+	 * Counters taken from the entry in the parent container, null if unknown
+	 */
+	private transient Integer upvoteCount;
+	private transient Integer downvoteCount;
+	private transient Integer replyCount;
+
+	/**
+	 * Change log of the thread until the comment is initialized
+	 */
+	private transient ChangeLog changeLog;
+
 	public Comment(String agentId, Date date, String body) {
 		super();
 
@@ -77,7 +113,7 @@ public class Comment extends Storable {
 		this.votes = sharedPointer(new Votes(permissions));
 
 		// comments
-		this.comments = sharedPointer(new Comments(permissions));
+		this.comments = sharedPointer(new Comments(permissions, this, changeLog));
 	}
 
 	@Override
@@ -91,15 +127,141 @@ public class Comment extends Storable {
 		return true;
 	}
 
+	@Override
+	protected Collection<StorablePointer<?>> pointers() {
+		return Arrays.asList(parent, votes, comments);
+	}
+
+	/**
+	 * Edits and deletions have to be visible on every node right away, so it is always read from the network.
+	 */
+	@Override
+	protected boolean cacheable() {
+		return false;
+	}
+
+	@Override
+	protected int formatVersion() {
+		return 3;
+	}
+
+	@Override
+	protected void writeFields(DataOutput out) throws IOException {
+		StorableCodec.writeString(out, agentId);
+		out.writeLong(date.getTime());
+		StorableCodec.writeString(out, body);
+		out.writeBoolean(edited);
+		permissions.write(out);
+		StorableCodec.writePointer(out, parent);
+		StorableCodec.writePointer(out, votes);
+		StorableCodec.writePointer(out, comments);
+		StorableCodec.writeVarInt(out, chunk == null ? 0 : chunk + 1);
+		out.writeBoolean(deleted);
+	}
+
+	@Override
+	protected void readFields(DataInput in, int version) throws IOException {
+		agentId = StorableCodec.readString(in);
+		date = new Date(in.readLong());
+		body = StorableCodec.readString(in);
+		edited = in.readBoolean();
+		permissions = Permissions.read(in);
+		parent = StorableCodec.readWeakPointer(in, this);
+		votes = StorableCodec.readSharedPointer(in, this);
+		comments = StorableCodec.readSharedPointer(in, this);
+		if (version >= 2) {
+			int index = StorableCodec.readVarInt(in);
+			chunk = index == 0 ? null : index - 1;
+		}
+		if (version >= 3)
+			deleted = in.readBoolean();
+	}
+
 	void setPermissions(Permissions perms) {
 		this.permissions = perms;
 	}
 
-	void setParent(Comments comments) throws StorageException, PermissionException {
+	void setChangeLog(ChangeLog changeLog) {
+		this.changeLog = changeLog;
+	}
+
+	void setParent(Comments comments, int chunk) throws StorageException, PermissionException {
 		this.parent = weakPointer(comments);
+		this.chunk = chunk;
 		save();
 	}
 
+	/**
+	 * 
+	 * @return Index of the chunk of the parent container holding this comment; null if the comment is stored in the
+	 *         container itself
+	 */
+	Integer getChunk() {
+		return chunk;
+	}
+
+	/**
+	 * Set the counters stored in the parent container, so that they do not have to be loaded from the Votes and
+	 * Comments containers.
+	 * 
+	 * @param upvotes
+	 * @param downvotes
+	 * @param replyCount
+	 */
+	void setCounters(Integer upvotes, Integer downvotes, Integer replyCount) {
+		this.upvoteCount = upvotes;
+		this.downvoteCount = downvotes;
+		this.replyCount = replyCount;
+	}
+
+	/**
+	 * Takes the counters from the entry in the parent container, unless they are known already, so that a comment
+	 * loaded on its own does not sum up the shards of its votes.
+	 * 
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	public void loadCounters() throws StorageException, PermissionException {
+		if (parent == null || upvoteCount != null && downvoteCount != null && replyCount != null)
+			return;
+
+		CommentEntry entry = parent.get().findEntry(this);
+		if (entry != null)
+			setCounters(entry.upvotes, entry.downvotes, entry.replyCount);
+	}
+
+	/**
+	 * Adds to the reply counter in the parent container. Entries stored before counters were kept are counted once.
+	 * 
+	 * @param replies change of the number of replies
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	void addReplies(int replies) throws StorageException, PermissionException {
+		CommentEntry entry = parent == null ? null : parent.get().addReplies(this, replies);
+		if (entry != null && entry.replyCount == null) {
+			updateReplyCount(this.comments.get().getCommentCount());
+			return;
+		}
+
+		// unknown without parent entry, then the replies are counted when needed
+		this.replyCount = entry != null ? entry.replyCount : null;
+	}
+
+	/**
+	 * Updates the reply counter in the parent container.
+	 * 
+	 * @param count new number of replies
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	void updateReplyCount(int count) throws StorageException, PermissionException {
+		this.replyCount = count;
+
+		if (parent != null)
+			parent.get().setReplyCount(this, count);
+	}
+
 	/**
 	 * The author
 	 * 
@@ -135,6 +297,14 @@ public class Comment extends Storable {
 		return edited;
 	}
 
+	/**
+	 * 
+	 * @return true, if the comment has been deleted and waits to be reclaimed
+	 */
+	public boolean isDeleted() {
+		return deleted;
+	}
+
 	/**
 	 * Sets the body and marks the ocmment as edited
 	 * 
@@ -150,9 +320,13 @@ public class Comment extends Storable {
 			throw new PermissionException("Permission denied (manual check)", e);
 		}
 
-		this.body = body;
-		this.edited = true;
-		save();
+		update((Comment c) -> {
+			c.body = body;
+			c.edited = true;
+		});
+
+		if (parent != null)
+			parent.get().logChange(Change.Type.EDIT, this);
 	}
 
 	/**
@@ -172,7 +346,17 @@ public class Comment extends Storable {
 			throw new PermissionException("Permission denied (manual check)", e);
 		}
 
-		this.votes.get().vote(agentId, upvote);
+		int[] delta = this.votes.get().vote(agentId, upvote);
+
+		// the counters of the written entry include concurrent votes; unknown counters are summed up from the shards
+		// once and stored in the entry
+		CommentEntry entry = parent == null ? null : parent.get().addVotes(this, delta[0], delta[1]);
+		if (entry != null && (entry.upvotes == null || entry.downvotes == null)) {
+			int[] counts = this.votes.get().count();
+			entry = parent.get().setVoteCounts(this, counts[0], counts[1]);
+		}
+		this.upvoteCount = entry == null ? null : entry.upvotes;
+		this.downvoteCount = entry == null ? null : entry.downvotes;
 	}
 
 	/**
@@ -183,6 +367,9 @@ public class Comment extends Storable {
 	 * @throws PermissionException
 	 */
 	public int getUpvotes() throws StorageException, PermissionException {
+		if (this.upvoteCount != null)
+			return this.upvoteCount;
+
 		return this.votes.get().getUpvotes();
 	}
 
@@ -194,6 +381,9 @@ public class Comment extends Storable {
 	 * @throws StorageException
 	 */
 	public int getDownvotes() throws StorageException, PermissionException {
+		if (this.downvoteCount != null)
+			return this.downvoteCount;
+
 		return this.votes.get().getDownvotes();
 	}
 
@@ -226,6 +416,7 @@ public class Comment extends Storable {
 		}
 
 		this.comments.get().addComment(comment);
+		addReplies(1);
 	}
 
 	/**
@@ -239,6 +430,19 @@ public class Comment extends Storable {
 		return this.comments.get().getComments();
 	}
 
+	/**
+	 * Get a page of comments (without sub-replys)
+	 * 
+	 * @param cursor Cursor returned with the previous page; 0 for the first page
+	 * @param limit Maximum number of comments; 0 for no limit
+	 * @return Page of comments
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	public CommentPage getComments(long cursor, int limit) throws StorageException, PermissionException {
+		return this.comments.get().getComments(cursor, limit);
+	}
+
 	/**
 	 * Get comment count
 	 * 
@@ -247,11 +451,186 @@ public class Comment extends Storable {
 	 * @throws StorageException
 	 */
 	public int getCommentCount() throws StorageException, PermissionException {
+		if (this.replyCount != null)
+			return this.replyCount;
+
 		return this.comments.get().getCommentCount();
 	}
 
+	/**
+	 * Loads everything needed to serialize several comments in batches, so that serializing a list of comments does
+	 * not request them one by one. Votes and replies containers are only loaded if the counters of a comment are
+	 * unknown; then all vote shards are loaded to sum up the votes.
+	 * 
+	 * @param comments List of comments
+	 * @param voter Agent whose votes will be requested, null if not needed
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	public static void prefetch(List<Comment> comments, String voter) throws StorageException, PermissionException {
+		Map<Storage, List<StorablePointer<?>>> pointers = new IdentityHashMap<>();
+		for (Comment comment : comments) {
+			if (voter != null || comment.upvoteCount == null || comment.downvoteCount == null)
+				add(pointers, comment.getStorage(), comment.votes);
+			if (comment.replyCount == null)
+				add(pointers, comment.getStorage(), comment.comments);
+		}
+		fetch(pointers);
+
+		Map<Storage, List<StorablePointer<?>>> shards = new IdentityHashMap<>();
+		for (Comment comment : comments) {
+			if (comment.upvoteCount == null || comment.downvoteCount == null) {
+				for (StorablePointer<?> shard : comment.votes.get().getShardPointers()) {
+					add(shards, comment.getStorage(), shard);
+				}
+			} else if (voter != null) {
+				StorablePointer<?> shard = comment.votes.get().getShard(voter);
+				if (shard != null)
+					add(shards, comment.getStorage(), shard);
+			}
+		}
+
+		// shards may be replaced concurrently; missing ones are looked up again when they are read
+		for (Map.Entry<Storage, List<StorablePointer<?>>> entry : shards.entrySet()) {
+			entry.getKey().fetchAvailable(entry.getValue());
+		}
+	}
+
+	/**
+	 * Loads the first replies of several comments in three batches: first all replies containers, then the chunks of
+	 * the first pages, then the replies of these pages. Used to load a reply tree level by level.
+	 * 
+	 * @param comments List of comments
+	 * @param limit Maximum number of replies per comment; 0 for all replies
+	 * @return First page of replies of each comment, in the order they have been posted
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	public static Map<Comment, CommentPage> getReplies(List<Comment> comments, int limit) throws StorageException,
+			PermissionException {
+		Map<Storage, List<StorablePointer<?>>> containers = new IdentityHashMap<>();
+		for (Comment comment : comments) {
+			add(containers, comment.getStorage(), comment.comments);
+		}
+		fetch(containers);
+
+		// the chunks expected to fill the first page; the page loads further chunks itself if needed
+		Map<Storage, List<StorablePointer<?>>> chunks = new IdentityHashMap<>();
+		for (Comment comment : comments) {
+			List<StorableSharedPointer<CommentChunk>> pointers = comment.comments.get().getChunkPointers();
+			int count = limit > 0 ? Math.min(pointers.size(), limit / Comments.CHUNK_SIZE + 1) : pointers.size();
+			for (StorablePointer<?> chunk : pointers.subList(0, count)) {
+				add(chunks, comment.getStorage(), chunk);
+			}
+		}
+		fetch(chunks);
+
+		Map<Comment, CommentPage> result = new IdentityHashMap<>();
+		Map<Storage, List<StorablePointer<?>>> replies = new IdentityHashMap<>();
+		for (Comment comment : comments) {
+			CommentPage page = comment.comments.get().getComments(0, limit);
+			result.put(comment, page);
+			for (StorablePointer<?> reply : page.getPointers()) {
+				add(replies, comment.getStorage(), reply);
+			}
+		}
+
+		// replies may be deleted and reclaimed concurrently; the pages skip them
+		for (Map.Entry<Storage, List<StorablePointer<?>>> entry : replies.entrySet()) {
+			entry.getKey().fetchAvailable(entry.getValue());
+		}
+
+		return result;
+	}
+
+	private static void add(Map<Storage, List<StorablePointer<?>>> pointers, Storage storage,
+			StorablePointer<?> pointer) {
+		List<StorablePointer<?>> list = pointers.get(storage);
+		if (list == null) {
+			list = new ArrayList<>();
+			pointers.put(storage, list);
+		}
+		list.add(pointer);
+	}
+
+	private static void fetch(Map<Storage, List<StorablePointer<?>>> pointers) throws StorageException,
+			PermissionException {
+		for (Map.Entry<Storage, List<StorablePointer<?>>> entry : pointers.entrySet()) {
+			entry.getKey().fetch(entry.getValue());
+		}
+	}
+
 	@Override
 	public void delete() throws StorageException, PermissionException {
+		checkDelete();
+
+		super.delete();
+	}
+
+	@Override
+	public Deletion deleteInBackground(Deletion.Listener listener) throws StorageException, PermissionException {
+		checkDelete();
+
+		return super.deleteInBackground(listener);
+	}
+
+	/**
+	 * Deletes the comment without deleting its votes and replies: the comment is marked as deleted and moved from its
+	 * parent to the tombstones of the parent, which takes the same time for every comment. The comment, its votes and
+	 * its replies have to be reclaimed afterwards with {@link #reclaim()}.
+	 * 
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	public void softDelete() throws StorageException, PermissionException {
+		checkDelete();
+
+		bury();
+	}
+
+	/**
+	 * Marks the comment as deleted and moves it to the tombstones of its parent. The permissions are checked by
+	 * {@link #softDelete()}.
+	 * 
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	void bury() throws StorageException, PermissionException {
+		update((Comment c) -> c.deleted = true);
+
+		if (parent != null)
+			parent.get().buryComment(this);
+	}
+
+	/**
+	 * Deletes a soft-deleted comment together with its votes and replies and removes its tombstone. Can be repeated
+	 * if it fails.
+	 * 
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	public void reclaim() throws StorageException, PermissionException {
+		if (parent != null)
+			parent.get().reclaimComment(this);
+		else
+			getStorage().reclaim(this);
+	}
+
+	/**
+	 * Get the comments that have been soft-deleted from the same list as this comment, but not reclaimed yet, e.g.
+	 * because reclaiming them failed or the node that deleted them went away.
+	 * 
+	 * @return Soft-deleted comments
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	public List<Comment> getTombstones() throws StorageException, PermissionException {
+		if (parent == null)
+			return Collections.emptyList();
+		return parent.get().getTombstones();
+	}
+
+	private void checkDelete() throws PermissionException {
 		try {
 			if (!Context.get().hasAccess(getAgentId())
 					&& !Context.get().hasAccess(permissions.owner))
@@ -259,7 +638,5 @@ public class Comment extends Storable {
 		} catch (AgentNotFoundException | AgentOperationFailedException e) {
 			throw new PermissionException("Permission denied (manual check)", e);
 		}
-
-		super.delete();
 	}
 }
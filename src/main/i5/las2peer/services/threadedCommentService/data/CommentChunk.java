@@ -0,0 +1,283 @@
+package i5.las2peer.services.threadedCommentService.data;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import i5.las2peer.services.threadedCommentService.storage.PermissionException;
+import i5.las2peer.services.threadedCommentService.storage.Storable;
+import i5.las2peer.services.threadedCommentService.storage.StorableCodec;
+import i5.las2peer.services.threadedCommentService.storage.StorablePointer;
+import i5.las2peer.services.threadedCommentService.storage.StorableSharedPointer;
+import i5.las2peer.services.threadedCommentService.storage.StorageException;
+
+/**
+ * Chunk of a Comments container. Holds the entries of up to {@link Comments#CHUNK_SIZE} comments, so that an append
+ * only rewrites the last chunk and a page only loads the chunks it shows.
+ *
+ * Each chunk numbers its comments within its own range of sequence numbers, so concurrent appends that overfill a
+ * chunk do not collide with the next chunk.
+ *
+ * @author Jasper Nalbach
+ *
+ */
+class CommentChunk extends Storable {
+	private static final long serialVersionUID = 1L;
+
+	private Permissions permissions;
+
+	/**
+	 * Comments ordered by their sequence number
+	 */
+	private List<CommentEntry> entries;
+
+	/**
+	 * First sequence number of the range of this chunk
+	 */
+	private long firstSequence;
+
+	/**
+	 * Sequence number of the next comment
+	 */
+	private long nextSequence;
+
+	/**
+	 *
+	 * @param permissions permission configuration; should be the same as the Comments container
+	 * @param firstSequence first sequence number of the range of this chunk
+	 */
+	CommentChunk(Permissions permissions, long firstSequence) {
+		super();
+
+		this.permissions = permissions;
+
+		entries = new ArrayList<>();
+		this.firstSequence = firstSequence;
+		this.nextSequence = firstSequence;
+	}
+
+	@Override
+	protected void init() throws StorageException, PermissionException {
+		try {
+			addWriter(permissions.owner);
+			addWriter(permissions.writer);
+			addReader(permissions.reader);
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	@Override
+	protected boolean cleanup() throws StorageException, PermissionException {
+		List<CommentEntry> detached = new ArrayList<>(entries);
+		entries.clear();
+		for (CommentEntry e : detached) {
+			e.comment.detach();
+		}
+		return true;
+	}
+
+	@Override
+	protected Collection<StorablePointer<?>> pointers() {
+		List<StorablePointer<?>> pointers = new ArrayList<>(entries.size());
+		for (CommentEntry e : entries) {
+			pointers.add(e.comment);
+		}
+		return pointers;
+	}
+
+	/**
+	 * All writers of a thread append to the last chunk, so concurrent appends on a node are written together.
+	 */
+	@Override
+	protected boolean coalesceWrites() {
+		return true;
+	}
+
+	/**
+	 * Changes with every comment and vote, so it is always read from the network.
+	 */
+	@Override
+	protected boolean cacheable() {
+		return false;
+	}
+
+	@Override
+	protected void writeFields(DataOutput out) throws IOException {
+		permissions.write(out);
+		StorableCodec.writeVarLong(out, firstSequence);
+		StorableCodec.writeVarLong(out, nextSequence);
+		StorableCodec.writeVarInt(out, entries.size());
+		for (CommentEntry e : entries) {
+			e.write(out);
+		}
+	}
+
+	@Override
+	protected void readFields(DataInput in, int version) throws IOException {
+		permissions = Permissions.read(in);
+		firstSequence = StorableCodec.readVarLong(in);
+		nextSequence = StorableCodec.readVarLong(in);
+		int size = StorableCodec.readVarInt(in);
+		entries = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			entries.add(CommentEntry.read(in, this));
+		}
+	}
+
+	/**
+	 * Appends a new comment.
+	 *
+	 * @param comment
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	void addComment(Comment comment) throws StorageException, PermissionException {
+		StorableSharedPointer<Comment> pointer = sharedPointer(comment);
+		update((CommentChunk c) -> c.entries.add(new CommentEntry(c.nextSequence++, pointer)));
+	}
+
+	/**
+	 * Removes a comment.
+	 *
+	 * @param comment
+	 * @return True, if the comment was part of the version written, i.e. it has not been removed concurrently
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	boolean removeComment(Comment comment) throws StorageException, PermissionException {
+		// the last application of the update is the one written
+		boolean[] removed = new boolean[1];
+		update((CommentChunk c) -> removed[0] = c.entries.removeIf(e -> e.comment.getId().equals(comment.getId())));
+		return removed[0];
+	}
+
+	/**
+	 * Adds to the vote counters of a comment. Counters of entries stored before counters were kept stay unknown.
+	 *
+	 * @param comment
+	 * @param upvotes change of the number of upvotes
+	 * @param downvotes change of the number of downvotes
+	 * @return The entry as written, null if the comment is not part of this chunk
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	CommentEntry addVotes(Comment comment, int upvotes, int downvotes) throws StorageException,
+			PermissionException {
+		if (getEntry(comment) == null || upvotes == 0 && downvotes == 0)
+			return getEntry(comment);
+
+		update((CommentChunk c) -> {
+			CommentEntry entry = c.getEntry(comment);
+			if (entry != null)
+				entry.addVotes(upvotes, downvotes);
+		});
+		return getEntry(comment);
+	}
+
+	/**
+	 * Adds to the reply counter of a comment. Counters of entries stored before counters were kept stay unknown.
+	 *
+	 * @param comment
+	 * @param replies change of the number of replies
+	 * @return The entry as written, null if the comment is not part of this chunk
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	CommentEntry addReplies(Comment comment, int replies) throws StorageException, PermissionException {
+		if (getEntry(comment) == null)
+			return null;
+
+		update((CommentChunk c) -> {
+			CommentEntry entry = c.getEntry(comment);
+			if (entry != null)
+				entry.addReplies(replies);
+		});
+		return getEntry(comment);
+	}
+
+	/**
+	 * Updates the reply counter of a comment.
+	 *
+	 * @param comment
+	 * @param replyCount
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	void setReplyCount(Comment comment, int replyCount) throws StorageException, PermissionException {
+		if (getEntry(comment) == null)
+			return;
+
+		update((CommentChunk c) -> {
+			CommentEntry entry = c.getEntry(comment);
+			if (entry != null)
+				entry.replyCount = replyCount;
+		});
+	}
+
+	/**
+	 * Sets the vote counters of a comment, unless they are known already.
+	 *
+	 * @param comment
+	 * @param upvotes number of upvotes
+	 * @param downvotes number of downvotes
+	 * @return The entry as written, null if the comment is not part of this chunk
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	CommentEntry setVoteCounts(Comment comment, int upvotes, int downvotes) throws StorageException,
+			PermissionException {
+		if (getEntry(comment) == null)
+			return null;
+
+		update((CommentChunk c) -> {
+			CommentEntry entry = c.getEntry(comment);
+			if (entry != null)
+				entry.setVotes(upvotes, downvotes);
+		});
+		return getEntry(comment);
+	}
+
+	/**
+	 * Get the entry of a comment.
+	 *
+	 * @param comment
+	 * @return The entry, null if the comment is not part of this chunk
+	 */
+	CommentEntry getEntry(Comment comment) {
+		for (CommentEntry e : entries) {
+			if (e.comment.getId().equals(comment.getId()))
+				return e;
+		}
+		return null;
+	}
+
+	/**
+	 *
+	 * @return Entries ordered by their sequence number
+	 */
+	List<CommentEntry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Removed comments keep their sequence number, so a chunk is full once it has been appended to CHUNK_SIZE times.
+	 *
+	 * @return True, if new comments should be appended to a new chunk
+	 */
+	boolean isFull() {
+		return nextSequence - firstSequence >= Comments.CHUNK_SIZE;
+	}
+
+	/**
+	 * Get number of comments
+	 *
+	 * @return number of comments
+	 */
+	int getCommentCount() {
+		return entries.size();
+	}
+}
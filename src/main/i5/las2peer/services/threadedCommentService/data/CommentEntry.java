@@ -0,0 +1,135 @@
+package i5.las2peer.services.threadedCommentService.data;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+import i5.las2peer.services.threadedCommentService.storage.Storable;
+import i5.las2peer.services.threadedCommentService.storage.StorableCodec;
+import i5.las2peer.services.threadedCommentService.storage.StorableSharedPointer;
+
+/**
+ * Entry of a Comments container or of one of its chunks. Assigns a stable position to a comment and keeps its
+ * counters.
+ * 
+ * @author Jasper Nalbach
+ *
+ */
+class CommentEntry implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Position of the comment. Increases monotonically within a container and never changes.
+	 */
+	final long sequence;
+
+	/**
+	 * The comment
+	 */
+	final StorableSharedPointer<Comment> comment;
+
+	/**
+	 * Denormalized counters of the comment, so that lists can be shown without loading the Votes and Comments
+	 * containers of each comment. Null if unknown (entries stored before counters were introduced).
+	 */
+	Integer upvotes;
+	Integer downvotes;
+	Integer replyCount;
+
+	/**
+	 * Creates the entry of a new comment, which has no votes and replies yet.
+	 * 
+	 * @param sequence position of the comment
+	 * @param comment the comment
+	 */
+	CommentEntry(long sequence, StorableSharedPointer<Comment> comment) {
+		this.sequence = sequence;
+		this.comment = comment;
+		this.upvotes = 0;
+		this.downvotes = 0;
+		this.replyCount = 0;
+	}
+
+	/**
+	 * Creates the entry of a comment that has been stored before counters were kept. Its counters are unknown, so they
+	 * are taken from the Votes and Comments containers of the comment.
+	 * 
+	 * @param sequence position of the comment
+	 * @param comment the comment
+	 * @return Entry with unknown counters
+	 */
+	static CommentEntry withoutCounters(long sequence, StorableSharedPointer<Comment> comment) {
+		CommentEntry entry = new CommentEntry(sequence, comment);
+		entry.upvotes = null;
+		entry.downvotes = null;
+		entry.replyCount = null;
+		return entry;
+	}
+
+	/**
+	 * Adds to the vote counters. Unknown counters stay unknown.
+	 * 
+	 * @param upvotes change of the number of upvotes
+	 * @param downvotes change of the number of downvotes
+	 */
+	void addVotes(int upvotes, int downvotes) {
+		if (this.upvotes != null)
+			this.upvotes = Math.max(0, this.upvotes + upvotes);
+		if (this.downvotes != null)
+			this.downvotes = Math.max(0, this.downvotes + downvotes);
+	}
+
+	/**
+	 * Sets unknown vote counters, e.g. after the votes of an entry stored before counters were kept have been counted.
+	 * Known counters are kept, as they include concurrent votes.
+	 * 
+	 * @param upvotes number of upvotes
+	 * @param downvotes number of downvotes
+	 */
+	void setVotes(int upvotes, int downvotes) {
+		if (this.upvotes == null)
+			this.upvotes = upvotes;
+		if (this.downvotes == null)
+			this.downvotes = downvotes;
+	}
+
+	/**
+	 * Adds to the reply counter. An unknown counter stays unknown.
+	 * 
+	 * @param replies change of the number of replies
+	 */
+	void addReplies(int replies) {
+		if (this.replyCount != null)
+			this.replyCount = Math.max(0, this.replyCount + replies);
+	}
+
+	void write(DataOutput out) throws IOException {
+		StorableCodec.writeVarLong(out, sequence);
+		StorableCodec.writePointer(out, comment);
+		writeCounter(out, upvotes);
+		writeCounter(out, downvotes);
+		writeCounter(out, replyCount);
+	}
+
+	static CommentEntry read(DataInput in, Storable parent) throws IOException {
+		CommentEntry entry = new CommentEntry(StorableCodec.readVarLong(in),
+				StorableCodec.<Comment> readSharedPointer(in, parent));
+		entry.upvotes = readCounter(in);
+		entry.downvotes = readCounter(in);
+		entry.replyCount = readCounter(in);
+		return entry;
+	}
+
+	/**
+	 * Writes a nullable counter; 0 stands for null, all other values are shifted by one.
+	 */
+	private static void writeCounter(DataOutput out, Integer counter) throws IOException {
+		StorableCodec.writeVarInt(out, counter == null ? 0 : counter + 1);
+	}
+
+	private static Integer readCounter(DataInput in) throws IOException {
+		int value = StorableCodec.readVarInt(in);
+		return value == 0 ? null : value - 1;
+	}
+}
@@ -0,0 +1,106 @@
+package i5.las2peer.services.threadedCommentService.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import i5.las2peer.services.threadedCommentService.storage.NotFoundException;
+import i5.las2peer.services.threadedCommentService.storage.PermissionException;
+import i5.las2peer.services.threadedCommentService.storage.StorableSharedPointer;
+import i5.las2peer.services.threadedCommentService.storage.Storage;
+import i5.las2peer.services.threadedCommentService.storage.StorageException;
+
+/**
+ * A page of comments. The comments are only loaded when they are requested, so a page can be loaded and written in
+ * parts.
+ * 
+ * @author Jasper Nalbach
+ *
+ */
+public class CommentPage {
+
+	private final List<CommentEntry> entries;
+
+	private final Storage storage;
+
+	private final Long nextCursor;
+
+	private List<Comment> comments;
+
+	CommentPage(List<CommentEntry> entries, Storage storage, Long nextCursor) {
+		this.entries = entries;
+		this.storage = storage;
+		this.nextCursor = nextCursor;
+	}
+
+	/**
+	 * 
+	 * @return Number of entries of this page; deleted comments are skipped when they are loaded
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Loads all comments of this page at once.
+	 * 
+	 * @return Comments of this page
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	public List<Comment> getComments() throws StorageException, PermissionException {
+		if (comments == null)
+			comments = getComments(0, entries.size());
+		return comments;
+	}
+
+	/**
+	 * Loads a part of this page at once.
+	 * 
+	 * @param from Index of the first entry
+	 * @param to Index after the last entry
+	 * @return Comments of the given entries, without deleted and reclaimed comments
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	public List<Comment> getComments(int from, int to) throws StorageException, PermissionException {
+		List<CommentEntry> part = entries.subList(from, to);
+		// comments may be deleted and reclaimed concurrently
+		storage.fetchAvailable(getPointers().subList(from, to));
+
+		List<Comment> ret = new ArrayList<>();
+		for (CommentEntry e : part) {
+			Comment comment;
+			try {
+				comment = e.comment.find();
+			} catch (NotFoundException ex) {
+				continue;
+			}
+			if (comment.isDeleted())
+				continue;
+			comment.setCounters(e.upvotes, e.downvotes, e.replyCount);
+			ret.add(comment);
+		}
+		return ret;
+	}
+
+	/**
+	 * Get pointers to the comments of this page, e.g. to load them together with the comments of other pages.
+	 * 
+	 * @return List of pointers
+	 */
+	List<StorableSharedPointer<Comment>> getPointers() {
+		List<StorableSharedPointer<Comment>> pointers = new ArrayList<>(entries.size());
+		for (CommentEntry e : entries) {
+			pointers.add(e.comment);
+		}
+		return pointers;
+	}
+
+	/**
+	 * 
+	 * @return Cursor of the next page or null, if this is the last page
+	 */
+	public Long getNextCursor() {
+		return nextCursor;
+	}
+}
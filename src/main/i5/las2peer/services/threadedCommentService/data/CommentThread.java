@@ -3,11 +3,21 @@ package i5.las2peer.services.threadedCommentService.data;
 import i5.las2peer.api.Context;
 import i5.las2peer.api.security.AgentNotFoundException;
 import i5.las2peer.api.security.AgentOperationFailedException;
+import i5.las2peer.services.threadedCommentService.storage.Deletion;
 import i5.las2peer.services.threadedCommentService.storage.PermissionException;
 import i5.las2peer.services.threadedCommentService.storage.Storable;
+import i5.las2peer.services.threadedCommentService.storage.StorableCodec;
+import i5.las2peer.services.threadedCommentService.storage.StorablePointer;
 import i5.las2peer.services.threadedCommentService.storage.StorableSharedPointer;
 import i5.las2peer.services.threadedCommentService.storage.StorageException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 
 /**
@@ -25,6 +35,11 @@ public class CommentThread extends Storable {
 	 */
 	private StorableSharedPointer<Comments> comments;
 	
+	/**
+	 * Pointer to the change log of all comments; null for threads stored before change logs were introduced
+	 */
+	private StorableSharedPointer<ChangeLog> changes;
+	
 	/**
 	 * Permission configuration object
 	 */
@@ -47,15 +62,45 @@ public class CommentThread extends Storable {
 		addReader(permissions.writer);
 		addReader(permissions.reader);
 		
-		this.comments = sharedPointer(new Comments(permissions));
+		ChangeLog changeLog = new ChangeLog(permissions);
+		this.changes = sharedPointer(changeLog);
+		this.comments = sharedPointer(new Comments(permissions, null, changeLog));
 	}
 	
 	@Override
 	protected boolean cleanup() throws StorageException, PermissionException {
+		// the comments log their removal, so the log is deleted last
 		this.comments.detach();
+		if (this.changes != null)
+			this.changes.detach();
 		return true;
 	}
 	
+	@Override
+	protected Collection<StorablePointer<?>> pointers() {
+		return Arrays.asList(comments, changes);
+	}
+	
+	@Override
+	protected int formatVersion() {
+		return 2;
+	}
+	
+	@Override
+	protected void writeFields(DataOutput out) throws IOException {
+		permissions.write(out);
+		StorableCodec.writePointer(out, comments);
+		StorableCodec.writePointer(out, changes);
+	}
+	
+	@Override
+	protected void readFields(DataInput in, int version) throws IOException {
+		permissions = Permissions.read(in);
+		comments = StorableCodec.readSharedPointer(in, this);
+		if (version >= 2)
+			changes = StorableCodec.readSharedPointer(in, this);
+	}
+	
 	/**
 	 * Adds a new comment to this thread.
 	 * @param comment Newly created comment.
@@ -84,6 +129,54 @@ public class CommentThread extends Storable {
 		return this.comments.get().getComments();
 	}
 	
+	/**
+	 * Get a page of comments (without replys)
+	 * @param cursor Cursor returned with the previous page; 0 for the first page
+	 * @param limit Maximum number of comments; 0 for no limit
+	 * @return Page of comments
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	public CommentPage getComments(long cursor, int limit) throws StorageException, PermissionException {
+		return this.comments.get().getComments(cursor, limit);
+	}
+	
+	/**
+	 * Get the changes of all comments after a given sequence number
+	 * @param since Sequence number of the last change known to the client; 0 for all changes
+	 * @return The changes; incomplete if the thread has no change log
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	public ChangeSet getChanges(long since) throws StorageException, PermissionException {
+		if (this.changes == null)
+			return new ChangeSet(Collections.<Change> emptyList(), 0, false);
+		
+		return this.changes.get().getChanges(since);
+	}
+	
+	/**
+	 * Get the changes of all comments after a given date
+	 * @param since Date of the last update of the client
+	 * @return The changes; incomplete if the thread has no change log
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	public ChangeSet getChanges(Date since) throws StorageException, PermissionException {
+		if (this.changes == null)
+			return new ChangeSet(Collections.<Change> emptyList(), 0, false);
+		
+		return this.changes.get().getChanges(since);
+	}
+	
+	/**
+	 * Get the id of the change log, e.g. to subscribe to changes
+	 * @return Id of the change log; null if the thread has no change log
+	 */
+	public String getChangeLogId() {
+		return this.changes != null ? this.changes.getId() : null;
+	}
+	
 	/**
 	 * Get the permissions object
 	 * @return the Permisions object
@@ -94,13 +187,24 @@ public class CommentThread extends Storable {
 	
 	@Override
 	public void delete() throws StorageException, PermissionException {
+		checkDelete();
+		
+		super.delete();
+	}
+	
+	@Override
+	public Deletion deleteInBackground(Deletion.Listener listener) throws StorageException, PermissionException {
+		checkDelete();
+		
+		return super.deleteInBackground(listener);
+	}
+	
+	private void checkDelete() throws PermissionException {
 		try {
 			if (!Context.get().hasAccess(permissions.owner))
 				throw new PermissionException("Permission denied (manual check)");
 		} catch (AgentNotFoundException | AgentOperationFailedException e) {
 			throw new PermissionException("Permission denied (manual check)", e);
 		}
-		
-		super.delete();
 	}
 }
\ No newline at end of file
@@ -1,42 +1,142 @@
 package i5.las2peer.services.threadedCommentService.data;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import i5.las2peer.api.Context;
 import i5.las2peer.api.security.AgentNotFoundException;
 import i5.las2peer.api.security.AgentOperationFailedException;
+import i5.las2peer.services.threadedCommentService.storage.NotFoundException;
 import i5.las2peer.services.threadedCommentService.storage.PermissionException;
 import i5.las2peer.services.threadedCommentService.storage.Storable;
+import i5.las2peer.services.threadedCommentService.storage.StorableCodec;
+import i5.las2peer.services.threadedCommentService.storage.StorablePointer;
 import i5.las2peer.services.threadedCommentService.storage.StorableSharedPointer;
+import i5.las2peer.services.threadedCommentService.storage.StorableWeakPointer;
 import i5.las2peer.services.threadedCommentService.storage.StorageException;
 
 /**
- * Comment container.
+ * Comment container. The container itself only keeps pointers to its chunks; new comments are appended to the last
+ * chunk, so that an append does not rewrite all entries.
  * @author Jasper Nalbach
  *
  */
 class Comments extends Storable {
 	private static final long serialVersionUID = 1L;
 	
+	/**
+	 * Number of comments appended to a chunk before a new chunk is started
+	 */
+	static final int CHUNK_SIZE = 100;
+	
+	/**
+	 * Range of sequence numbers of a chunk. Larger than CHUNK_SIZE, so that a chunk can take concurrent appends beyond
+	 * its size.
+	 */
+	static final long SEQUENCE_SPAN = 1L << 20;
+	
+	/**
+	 * Comments of containers stored before chunks were introduced, ordered by their sequence number. They precede the
+	 * comments of all chunks.
+	 */
+	private List<CommentEntry> entries;
+	
+	/**
+	 * Sequence number after the comments stored in the container itself. The range of chunk i starts at
+	 * nextSequence + i * SEQUENCE_SPAN.
+	 */
+	private long nextSequence;
+	
+	/**
+	 * Chunks in the order they have been added; the last chunk takes new comments
+	 */
+	private List<StorableSharedPointer<CommentChunk>> chunks;
+	
+	/**
+	 * Soft-deleted comments whose votes and replies have not been reclaimed yet. Recorded before a comment is removed
+	 * from its chunk and dropped after it has been reclaimed, so no tombstone is lost when a node goes away.
+	 */
+	private List<StorableSharedPointer<Comment>> tombstones;
+	
+	/**
+	 * Comment list of containers stored before sequence numbers were introduced. Migrated on load.
+	 */
 	private List<StorableSharedPointer<Comment>> comments;
 	
 	private Permissions permissions;
+	
+	/**
+	 * The comment this container holds the replies of; null for the container of a CommentThread
+	 */
+	private StorableWeakPointer<Comment> owner;
+	
+	/**
+	 * The owning comment until the container is initialized
+	 */
+	private transient Comment ownerComment;
+	
+	/**
+	 * Change log of the thread; null for containers stored before change logs were introduced
+	 */
+	private StorableWeakPointer<ChangeLog> changes;
+	
+	/**
+	 * The change log until the container is initialized
+	 */
+	private transient ChangeLog changeLog;
 		
 	/**
 	 * 
 	 * @param permissions permission configuration; should be the same as the CommentThread
 	 */
 	Comments(Permissions permissions) {
+		this(permissions, null, null);
+	}
+	
+	/**
+	 * 
+	 * @param permissions permission configuration; should be the same as the CommentThread
+	 * @param owner the comment this container holds the replies of
+	 * @param changeLog change log of the thread
+	 */
+	Comments(Permissions permissions, Comment owner, ChangeLog changeLog) {
 		super();
 		
 		this.permissions = permissions;
+		this.ownerComment = owner;
+		this.changeLog = changeLog;
 		
-		comments = new ArrayList<>();
+		entries = new ArrayList<>();
+		nextSequence = 0;
+		chunks = new ArrayList<>();
+		tombstones = new ArrayList<>();
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		
+		if (entries == null) {
+			entries = new ArrayList<>();
+			if (comments != null) {
+				for (StorableSharedPointer<Comment> c : comments) {
+					entries.add(CommentEntry.withoutCounters(nextSequence++, c));
+				}
+			}
+			comments = null;
+		}
+		if (chunks == null)
+			chunks = new ArrayList<>();
+		if (tombstones == null)
+			tombstones = new ArrayList<>();
 	}
 	
 	@Override
-	public void init() throws StorageException {
+	public void init() throws StorageException, PermissionException {
 		try {
 			//addWriter(permissions.service);
 			addWriter(permissions.owner);
@@ -45,17 +145,103 @@ class Comments extends Storable {
 		} catch (Exception e) {
 			throw new StorageException(e);
 		}
+		
+		if (ownerComment != null)
+			this.owner = weakPointer(ownerComment);
+		if (changeLog != null)
+			this.changes = weakPointer(changeLog);
 	}
 	
 	@Override
 	protected boolean cleanup() throws StorageException, PermissionException {
-		for (StorableSharedPointer<Comment> c : comments) {
-			comments.remove(c);
+		List<CommentEntry> detached = new ArrayList<>(entries);
+		entries.clear();
+		for (CommentEntry e : detached) {
+			e.comment.detach();
+		}
+		
+		List<StorableSharedPointer<CommentChunk>> detachedChunks = new ArrayList<>(chunks);
+		chunks.clear();
+		for (StorableSharedPointer<CommentChunk> c : detachedChunks) {
 			c.detach();
 		}
+		
+		List<StorableSharedPointer<Comment>> detachedTombstones = new ArrayList<>(tombstones);
+		tombstones.clear();
+		for (StorableSharedPointer<Comment> t : detachedTombstones) {
+			t.detach();
+		}
 		return true;
 	}
 	
+	@Override
+	protected Collection<StorablePointer<?>> pointers() {
+		List<StorablePointer<?>> pointers = new ArrayList<>(entries.size() + chunks.size() + tombstones.size() + 2);
+		pointers.add(owner);
+		pointers.add(changes);
+		for (CommentEntry e : entries) {
+			pointers.add(e.comment);
+		}
+		pointers.addAll(chunks);
+		pointers.addAll(tombstones);
+		return pointers;
+	}
+	
+	@Override
+	protected int formatVersion() {
+		return 4;
+	}
+	
+	@Override
+	protected void writeFields(DataOutput out) throws IOException {
+		permissions.write(out);
+		StorableCodec.writePointer(out, owner);
+		StorableCodec.writeVarLong(out, nextSequence);
+		StorableCodec.writeVarInt(out, entries.size());
+		for (CommentEntry e : entries) {
+			e.write(out);
+		}
+		StorableCodec.writePointer(out, changes);
+		StorableCodec.writeVarInt(out, chunks.size());
+		for (StorableSharedPointer<CommentChunk> c : chunks) {
+			StorableCodec.writePointer(out, c);
+		}
+		StorableCodec.writeVarInt(out, tombstones.size());
+		for (StorableSharedPointer<Comment> t : tombstones) {
+			StorableCodec.writePointer(out, t);
+		}
+	}
+	
+	@Override
+	protected void readFields(DataInput in, int version) throws IOException {
+		permissions = Permissions.read(in);
+		owner = StorableCodec.readWeakPointer(in, this);
+		nextSequence = StorableCodec.readVarLong(in);
+		int size = StorableCodec.readVarInt(in);
+		entries = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			entries.add(CommentEntry.read(in, this));
+		}
+		if (version >= 2)
+			changes = StorableCodec.readWeakPointer(in, this);
+		
+		chunks = new ArrayList<>();
+		if (version >= 3) {
+			int chunkCount = StorableCodec.readVarInt(in);
+			for (int i = 0; i < chunkCount; i++) {
+				chunks.add(StorableCodec.<CommentChunk> readSharedPointer(in, this));
+			}
+		}
+		
+		tombstones = new ArrayList<>();
+		if (version >= 4) {
+			int tombstoneCount = StorableCodec.readVarInt(in);
+			for (int i = 0; i < tombstoneCount; i++) {
+				tombstones.add(StorableCodec.<Comment> readSharedPointer(in, this));
+			}
+		}
+	}
+	
 	/**
 	 * Add a new comment. Use from CommentThread.
 	 * @param comment
@@ -63,11 +249,67 @@ class Comments extends Storable {
 	 * @throws PermissionException
 	 */
 	void addComment(Comment comment) throws StorageException, PermissionException {
+		ChangeLog log = changes != null ? changes.get() : null;
 		comment.setPermissions(this.permissions);
+		comment.setChangeLog(log);
 		
-		comments.add(sharedPointer(comment));
-		comment.setParent(this);
-		save();
+		int index = getTailChunk();
+		CommentChunk chunk = chunks.get(index).get();
+		ChangeLogSegment segment = log != null ? log.getTailSegment() : null;
+		
+		// the comment, its containers, the chunk and the log segment are written once at the end of the batch
+		getStorage().batch(() -> {
+			chunk.addComment(comment);
+			comment.setParent(this, index);
+			if (segment != null)
+				segment.add(Change.Type.ADD, comment, owner != null ? owner.getId() : null);
+		});
+	}
+	
+	/**
+	 * Get the chunk new comments are appended to. A new chunk is added if the last chunk is full. If another writer
+	 * has added a chunk concurrently, the new chunk is deleted again and the chunk of the other writer is used.
+	 * @return Index of the chunk
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	private int getTailChunk() throws StorageException, PermissionException {
+		int count = chunks.size();
+		if (count > 0 && !chunks.get(count - 1).get().isFull())
+			return count - 1;
+		
+		CommentChunk chunk = new CommentChunk(permissions, nextSequence + count * SEQUENCE_SPAN);
+		List<StorableSharedPointer<CommentChunk>> created = new ArrayList<>(1);
+		
+		getStorage().batch(() -> {
+			StorableSharedPointer<CommentChunk> pointer = sharedPointer(chunk);
+			created.add(pointer);
+			update((Comments c) -> {
+				if (c.chunks.size() == count)
+					c.chunks.add(pointer);
+			});
+		});
+		
+		StorableSharedPointer<CommentChunk> pointer = created.get(0);
+		if (chunks.size() <= count || !chunks.get(count).getId().equals(pointer.getId())) {
+			pointer.detach();
+			return getTailChunk();
+		}
+		return count;
+	}
+	
+	/**
+	 * Get the chunk of a comment.
+	 * @param comment
+	 * @return The chunk; null if the comment is stored in the container itself
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	private CommentChunk getChunk(Comment comment) throws StorageException, PermissionException {
+		Integer index = comment.getChunk();
+		if (index == null || index >= chunks.size())
+			return null;
+		return chunks.get(index).get();
 	}
 	
 	/**
@@ -77,7 +319,82 @@ class Comments extends Storable {
 	 * @throws PermissionException
 	 */
 	void removeComment(Comment comment) throws StorageException, PermissionException {
+		checkRemove(comment);
+		remove(comment);
+	}
+	
+	/**
+	 * Removes a soft-deleted comment from the list and records it as a tombstone until it is reclaimed with
+	 * {@link #reclaimComment(Comment)}. The permissions are checked by {@link Comment#softDelete()}. Intended for use
+	 * from Comment class only.
+	 * @param comment
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	void buryComment(Comment comment) throws StorageException, PermissionException {
+		// recorded first, so an interrupted deletion leaves the tombstone behind instead of an unreachable comment
+		StorableSharedPointer<Comment> pointer = getPointer(comment);
+		if (pointer != null) {
+			update((Comments c) -> {
+				if (c.getTombstone(comment.getId()) == null)
+					c.tombstones.add(c.adoptPointer(pointer));
+			});
+		}
 		
+		remove(comment);
+	}
+	
+	/**
+	 * Deletes a tombstone: removes the comment from the list in case its soft deletion was interrupted, deletes the
+	 * comment together with its votes and replies and finally drops the tombstone. Can be repeated after a failure.
+	 * The permissions have been checked when the comment was soft-deleted. Intended for use from Comment class only.
+	 * @param comment A soft-deleted comment of this list
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	void reclaimComment(Comment comment) throws StorageException, PermissionException {
+		if (!comment.isDeleted())
+			throw new StorageException("Comment " + comment.getId() + " has not been deleted");
+		
+		remove(comment);
+		getStorage().reclaim(comment);
+		dropTombstone(comment.getId());
+	}
+	
+	/**
+	 * Get the tombstones of this list. Tombstones whose comment is gone already are dropped.
+	 * @return Soft-deleted comments that have not been reclaimed yet
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	List<Comment> getTombstones() throws StorageException, PermissionException {
+		getStorage().fetchAvailable(tombstones);
+		
+		List<Comment> result = new ArrayList<>();
+		for (StorableSharedPointer<Comment> t : new ArrayList<>(tombstones)) {
+			try {
+				result.add(t.find());
+			} catch (NotFoundException e) {
+				dropTombstone(t.getId());
+			}
+		}
+		return result;
+	}
+	
+	private void dropTombstone(String commentId) throws StorageException, PermissionException {
+		if (getTombstone(commentId) != null)
+			update((Comments c) -> c.tombstones.removeIf(t -> t.getId().equals(commentId)));
+	}
+	
+	private StorableSharedPointer<Comment> getTombstone(String commentId) {
+		for (StorableSharedPointer<Comment> t : tombstones) {
+			if (t.getId().equals(commentId))
+				return t;
+		}
+		return null;
+	}
+	
+	private void checkRemove(Comment comment) throws StorageException, PermissionException {
 		// check if admin
 		boolean isAdmin = false;
 		try {
@@ -91,16 +408,181 @@ class Comments extends Storable {
 		if (!(Context.get().getMainAgent().getIdentifier().equals(comment.getAgentId()) || isAdmin )) {
 			throw new PermissionException("Comment list cannot be mondified (permission checked by the service)");
 		}
+	}
+	
+	private void remove(Comment comment) throws StorageException, PermissionException {
+		boolean removed;
+		CommentChunk chunk = getChunk(comment);
+		if (chunk != null) {
+			removed = chunk.removeComment(comment);
+		} else {
+			// the last application of the update is the one written
+			boolean[] written = new boolean[1];
+			update((Comments c) -> written[0] = c.entries.removeIf(e -> e.comment.getId().equals(comment.getId())));
+			removed = written[0];
+		}
 		
-		// remove comment
-		for (StorableSharedPointer<Comment> c : comments) {
-			if (c.getId().equals(comment.getId())) {
-				comments.remove(c);
-				break;
-			}
+		// removed concurrently, which has been logged and counted already
+		if (!removed)
+			return;
+		
+		logChange(Change.Type.DELETE, comment);
+		if (owner != null)
+			owner.get().addReplies(-1);
+	}
+	
+	/**
+	 * Get the pointer of the list to a comment.
+	 * @param comment
+	 * @return The pointer; null if the comment is not part of this list
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	private StorableSharedPointer<Comment> getPointer(Comment comment) throws StorageException,
+			PermissionException {
+		CommentEntry entry = findEntry(comment);
+		return entry != null ? entry.comment : null;
+	}
+	
+	/**
+	 * Get the entry of a comment, e.g. to take its counters. Intended for use from Comment class only.
+	 * @param comment
+	 * @return The entry; null if the comment is not part of this list
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	CommentEntry findEntry(Comment comment) throws StorageException, PermissionException {
+		CommentChunk chunk = getChunk(comment);
+		return chunk != null ? chunk.getEntry(comment) : getEntry(comment);
+	}
+	
+	/**
+	 * Adds to the vote counters of a comment. The counters are changed by the given amounts instead of being
+	 * overwritten, so concurrent votes on other nodes are not lost. Intended for use from Comment class only.
+	 * @param comment
+	 * @param upvotes change of the number of upvotes
+	 * @param downvotes change of the number of downvotes
+	 * @return The entry of the comment as written, including concurrent votes; null if it is not part of this list
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	CommentEntry addVotes(Comment comment, int upvotes, int downvotes) throws StorageException,
+			PermissionException {
+		CommentChunk chunk = getChunk(comment);
+		if (chunk != null) {
+			CommentEntry entry = chunk.addVotes(comment, upvotes, downvotes);
+			if (entry != null && (upvotes != 0 || downvotes != 0))
+				logChange(Change.Type.VOTE, comment);
+			return entry;
 		}
 		
-		save();
+		if (getEntry(comment) == null || upvotes == 0 && downvotes == 0)
+			return getEntry(comment);
+		
+		update((Comments c) -> {
+			CommentEntry entry = c.getEntry(comment);
+			if (entry != null)
+				entry.addVotes(upvotes, downvotes);
+		});
+		
+		logChange(Change.Type.VOTE, comment);
+		return getEntry(comment);
+	}
+	
+	/**
+	 * Sets the vote counters of a comment whose entry has been stored before counters were kept. Counters that are
+	 * known already are not overwritten. Intended for use from Comment class only.
+	 * @param comment
+	 * @param upvotes number of upvotes
+	 * @param downvotes number of downvotes
+	 * @return The entry of the comment as written; null if it is not part of this list
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	CommentEntry setVoteCounts(Comment comment, int upvotes, int downvotes) throws StorageException,
+			PermissionException {
+		CommentChunk chunk = getChunk(comment);
+		if (chunk != null)
+			return chunk.setVoteCounts(comment, upvotes, downvotes);
+		
+		if (getEntry(comment) == null)
+			return null;
+		
+		update((Comments c) -> {
+			CommentEntry entry = c.getEntry(comment);
+			if (entry != null)
+				entry.setVotes(upvotes, downvotes);
+		});
+		return getEntry(comment);
+	}
+	
+	/**
+	 * Records a modification of a comment in the change log of the thread. Intended for use from Comment class only.
+	 * @param type kind of modification
+	 * @param comment the modified comment
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	void logChange(Change.Type type, Comment comment) throws StorageException, PermissionException {
+		if (changes != null)
+			changes.get().add(type, comment, null);
+	}
+	
+	/**
+	 * Adds to the reply counter of a comment. Like the vote counters, the counter is changed by the given amount, so
+	 * replies are not counted by loading all chunks. Intended for use from Comment class only.
+	 * @param comment
+	 * @param replies change of the number of replies
+	 * @return The entry of the comment as written, including concurrent replies; null if it is not part of this list
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	CommentEntry addReplies(Comment comment, int replies) throws StorageException, PermissionException {
+		CommentChunk chunk = getChunk(comment);
+		if (chunk != null)
+			return chunk.addReplies(comment, replies);
+		
+		if (getEntry(comment) == null)
+			return null;
+		
+		update((Comments c) -> {
+			CommentEntry entry = c.getEntry(comment);
+			if (entry != null)
+				entry.addReplies(replies);
+		});
+		return getEntry(comment);
+	}
+	
+	/**
+	 * Updates the reply counter of a comment. Intended for use from Comment class only.
+	 * @param comment
+	 * @param replyCount
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	void setReplyCount(Comment comment, int replyCount) throws StorageException, PermissionException {
+		CommentChunk chunk = getChunk(comment);
+		if (chunk != null) {
+			chunk.setReplyCount(comment, replyCount);
+			return;
+		}
+		
+		if (getEntry(comment) == null)
+			return;
+		
+		update((Comments c) -> {
+			CommentEntry entry = c.getEntry(comment);
+			if (entry != null)
+				entry.replyCount = replyCount;
+		});
+	}
+	
+	private CommentEntry getEntry(Comment comment) {
+		for (CommentEntry e : entries) {
+			if (e.comment.getId().equals(comment.getId()))
+				return e;
+		}
+		return null;
 	}
 	
 	/**
@@ -110,20 +592,73 @@ class Comments extends Storable {
 	 * @throws PermissionException
 	 */
 	List<Comment> getComments() throws StorageException, PermissionException {
-		List<Comment> ret = new ArrayList<>();
+		return getComments(0, 0).getComments();
+	}
+	
+	/**
+	 * Get pointers to all chunks, e.g. to load them together with the chunks of other containers.
+	 * @return List of pointers
+	 */
+	List<StorableSharedPointer<CommentChunk>> getChunkPointers() {
+		return chunks;
+	}
+	
+	/**
+	 * Get a page of comments, excluding replys. Only the chunks of the requested page are loaded; the comments are
+	 * loaded by the page.
+	 * @param cursor Sequence number to start with; 0 for the first page
+	 * @param limit Maximum number of comments; 0 for no limit
+	 * @return Page of comments
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	CommentPage getComments(long cursor, int limit) throws StorageException, PermissionException {
+		List<CommentEntry> page = new ArrayList<>();
+		Long nextCursor = null;
 		
-		for (StorableSharedPointer<Comment> c : comments) {
-			ret.add(c.get());
+		List<CommentEntry> candidates = entries;
+		int index = cursor > nextSequence ? (int) Math.min((cursor - nextSequence) / SEQUENCE_SPAN, chunks.size()) : 0;
+		int end = index;
+		while (true) {
+			for (CommentEntry e : candidates) {
+				if (e.sequence < cursor)
+					continue;
+				
+				if (limit > 0 && page.size() == limit) {
+					nextCursor = e.sequence;
+					break;
+				}
+				
+				page.add(e);
+			}
+			
+			if (nextCursor != null || index >= chunks.size())
+				break;
+			
+			if (index == end) {
+				// load the chunks expected to fill the page at once
+				end = limit > 0 ? Math.min(chunks.size(), index + (limit - page.size()) / CHUNK_SIZE + 1) : chunks.size();
+				getStorage().fetch(chunks.subList(index, end));
+			}
+			candidates = chunks.get(index++).get().getEntries();
 		}
 		
-		return ret;
+		return new CommentPage(page, getStorage(), nextCursor);
 	}
 	
 	/**
-	 * Get number of comments
+	 * Get number of comments. Loads all chunks that have not been loaded yet.
 	 * @return number of comments
+	 * @throws StorageException
+	 * @throws PermissionException
 	 */
-	int getCommentCount() {
-		return comments.size();
+	int getCommentCount() throws StorageException, PermissionException {
+		getStorage().fetch(chunks);
+		
+		int count = entries.size();
+		for (StorableSharedPointer<CommentChunk> c : chunks) {
+			count += c.get().getCommentCount();
+		}
+		return count;
 	}
-}
\ No newline at end of file
+}
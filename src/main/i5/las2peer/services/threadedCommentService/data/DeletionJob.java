@@ -0,0 +1,188 @@
+package i5.las2peer.services.threadedCommentService.data;
+
+import i5.las2peer.services.threadedCommentService.storage.Deletion;
+import i5.las2peer.services.threadedCommentService.storage.PermissionException;
+import i5.las2peer.services.threadedCommentService.storage.Storable;
+import i5.las2peer.services.threadedCommentService.storage.StorableCodec;
+import i5.las2peer.services.threadedCommentService.storage.StorageException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Stored status of a deletion running in the background, so that the status can be queried on every node and after
+ * the node running the deletion has gone away.
+ *
+ * The status is written when the deletion finishes and at most every {@link #UPDATE_INTERVAL} milliseconds while it
+ * is running. A deletion whose node went away keeps the state RUNNING; its thread still exists and can be deleted
+ * again.
+ *
+ * @author Jasper Nalbach
+ *
+ */
+public class DeletionJob extends Storable implements Deletion.Listener {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Minimum time between two writes of a running deletion in milliseconds
+	 */
+	static final long UPDATE_INTERVAL = 1000;
+
+	private Permissions permissions;
+
+	/**
+	 * Id of the deleted Storable
+	 */
+	private String deletedId;
+
+	private Deletion.State state;
+
+	private int deleted;
+
+	private long started;
+
+	private long finished;
+
+	private String error;
+
+	/**
+	 * Time of the last write by this node
+	 */
+	private transient long written;
+
+	/**
+	 *
+	 * @param permissions permission configuration; should be the same as the deleted Storable
+	 * @param deletedId id of the deleted Storable
+	 */
+	public DeletionJob(Permissions permissions, String deletedId) {
+		super();
+
+		this.permissions = permissions;
+		this.deletedId = deletedId;
+		this.state = Deletion.State.RUNNING;
+		this.started = System.currentTimeMillis();
+	}
+
+	@Override
+	protected void init() throws StorageException, PermissionException {
+		try {
+			addWriter(permissions.owner);
+			addReader(permissions.reader);
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	@Override
+	protected boolean cleanup() throws StorageException, PermissionException {
+		return true;
+	}
+
+	/**
+	 * Changes while the deletion is running, so it is always read from the network.
+	 */
+	@Override
+	protected boolean cacheable() {
+		return false;
+	}
+
+	@Override
+	protected void writeFields(DataOutput out) throws IOException {
+		permissions.write(out);
+		StorableCodec.writeString(out, deletedId);
+		StorableCodec.writeVarInt(out, state.ordinal());
+		StorableCodec.writeVarInt(out, deleted);
+		out.writeLong(started);
+		out.writeLong(finished);
+		out.writeBoolean(error != null);
+		if (error != null)
+			StorableCodec.writeString(out, error);
+	}
+
+	@Override
+	protected void readFields(DataInput in, int version) throws IOException {
+		permissions = Permissions.read(in);
+		deletedId = StorableCodec.readString(in);
+		state = Deletion.State.values()[StorableCodec.readVarInt(in)];
+		deleted = StorableCodec.readVarInt(in);
+		started = in.readLong();
+		finished = in.readLong();
+		error = in.readBoolean() ? StorableCodec.readString(in) : null;
+	}
+
+	/**
+	 * Writes the progress of the deletion, unless it is still running and has been written recently.
+	 */
+	@Override
+	public void changed(Deletion deletion) {
+		long now = System.currentTimeMillis();
+		Deletion.State current = deletion.getState();
+		if (current == Deletion.State.RUNNING && now - written < UPDATE_INTERVAL)
+			return;
+
+		written = now;
+		int count = deletion.getDeleted();
+		long end = deletion.getFinished();
+		String message = deletion.getError() != null ? String.valueOf(deletion.getError().getMessage()) : null;
+		try {
+			update((DeletionJob j) -> {
+				j.state = current;
+				j.deleted = count;
+				j.finished = end;
+				j.error = message;
+			});
+		} catch (StorageException | PermissionException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 *
+	 * @return Id of the deleted Storable
+	 */
+	public String getDeletedId() {
+		return deletedId;
+	}
+
+	/**
+	 *
+	 * @return State of the deletion when it was last written
+	 */
+	public Deletion.State getState() {
+		return state;
+	}
+
+	/**
+	 *
+	 * @return Number of envelopes deleted when the deletion was last written
+	 */
+	public int getDeleted() {
+		return deleted;
+	}
+
+	/**
+	 *
+	 * @return Start of the deletion in milliseconds since the epoch
+	 */
+	public long getStarted() {
+		return started;
+	}
+
+	/**
+	 *
+	 * @return End of the deletion in milliseconds since the epoch, 0 while running
+	 */
+	public long getFinished() {
+		return finished;
+	}
+
+	/**
+	 *
+	 * @return Message of the cause of a failed deletion, null otherwise
+	 */
+	public String getError() {
+		return error;
+	}
+}
@@ -1,5 +1,10 @@
 package i5.las2peer.services.threadedCommentService.data;
 
+import i5.las2peer.services.threadedCommentService.storage.StorableCodec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
@@ -37,4 +42,14 @@ public class Permissions implements Serializable {
 		this.writer=writer;
 		this.reader=reader;
 	}
+	
+	void write(DataOutput out) throws IOException {
+		StorableCodec.writeString(out, owner);
+		StorableCodec.writeString(out, writer);
+		StorableCodec.writeString(out, reader);
+	}
+	
+	static Permissions read(DataInput in) throws IOException {
+		return new Permissions(StorableCodec.readString(in), StorableCodec.readString(in), StorableCodec.readString(in));
+	}
 }
@@ -0,0 +1,33 @@
+package i5.las2peer.services.threadedCommentService.data;
+
+import i5.las2peer.services.threadedCommentService.storage.StorableCodec;
+
+/**
+ * Registers the data types with the compact storage format. Type ids must never change once data has been stored.
+ * 
+ * @author Jasper Nalbach
+ *
+ */
+public final class StorableTypes {
+
+	private StorableTypes() {
+	}
+
+	/**
+	 * Creates a codec for all data types.
+	 * 
+	 * @return The codec
+	 */
+	public static StorableCodec codec() {
+		return new StorableCodec()
+				.register(1, CommentThread.class, () -> new CommentThread(null))
+				.register(2, Comments.class, () -> new Comments(null))
+				.register(3, Comment.class, () -> new Comment(null, null, null))
+				.register(4, Votes.class, () -> new Votes(null))
+				.register(5, VoteShard.class, () -> new VoteShard(null))
+				.register(6, ChangeLog.class, () -> new ChangeLog(null))
+				.register(7, CommentChunk.class, () -> new CommentChunk(null, 0))
+				.register(8, ChangeLogSegment.class, () -> new ChangeLogSegment(null, null, 0))
+				.register(9, DeletionJob.class, () -> new DeletionJob(null, null));
+	}
+}
@@ -0,0 +1,217 @@
+package i5.las2peer.services.threadedCommentService.data;
+
+import i5.las2peer.services.threadedCommentService.storage.PermissionException;
+import i5.las2peer.services.threadedCommentService.storage.Storable;
+import i5.las2peer.services.threadedCommentService.storage.StorableCodec;
+import i5.las2peer.services.threadedCommentService.storage.StorageException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Holds the votes of a subset of voters of a comment. The voters are assigned to shards by the hash of their agent id.
+ * 
+ * A shard that has grown too large is sealed and replaced by two shards, see {@link Votes}. A sealed shard does not
+ * accept votes anymore, so its voters can be copied into the new shards without losing concurrent votes.
+ * 
+ * @author Jasper Nalbach
+ *
+ */
+class VoteShard extends Storable {
+	private static final long serialVersionUID = 1L;
+
+	private Permissions permissions;
+
+	private Set<String> upvotes;
+	private Set<String> downvotes;
+
+	/**
+	 * True if the shard is being replaced and does not accept votes anymore
+	 */
+	private boolean sealed;
+
+	VoteShard(Permissions permissions) {
+		this.permissions = permissions;
+		this.upvotes = new HashSet<>();
+		this.downvotes = new HashSet<>();
+	}
+
+	@Override
+	protected void init() throws StorageException, PermissionException {
+		try {
+			addWriter(permissions.owner);
+			addWriter(permissions.writer);
+			addReader(permissions.reader);
+		} catch (Exception e) {
+			throw new StorageException(e);
+		}
+	}
+
+	@Override
+	protected boolean cleanup() throws StorageException, PermissionException {
+		return true;
+	}
+
+	/**
+	 * Changes with every vote, so it is always read from the network.
+	 */
+	@Override
+	protected boolean cacheable() {
+		return false;
+	}
+
+	/**
+	 * All voters of a comment that fall into this shard write it, so concurrent votes on a node are written together.
+	 */
+	@Override
+	protected boolean coalesceWrites() {
+		return true;
+	}
+
+	@Override
+	protected int formatVersion() {
+		return 2;
+	}
+
+	@Override
+	protected void writeFields(DataOutput out) throws IOException {
+		permissions.write(out);
+		StorableCodec.writeStrings(out, upvotes);
+		StorableCodec.writeStrings(out, downvotes);
+		out.writeBoolean(sealed);
+	}
+
+	@Override
+	protected void readFields(DataInput in, int version) throws IOException {
+		permissions = Permissions.read(in);
+		upvotes = new HashSet<>();
+		downvotes = new HashSet<>();
+		StorableCodec.readStrings(in, upvotes);
+		StorableCodec.readStrings(in, downvotes);
+		sealed = version >= 2 && in.readBoolean();
+	}
+
+	/**
+	 * Get number of upvotes in this shard
+	 * 
+	 * @return upvotes
+	 */
+	int getUpvotes() {
+		return upvotes.size();
+	}
+
+	/**
+	 * Get number of downvotes in this shard
+	 * 
+	 * @return downvotes
+	 */
+	int getDownvotes() {
+		return downvotes.size();
+	}
+
+	/**
+	 * Get number of voters in this shard
+	 * 
+	 * @return voters
+	 */
+	int size() {
+		return upvotes.size() + downvotes.size();
+	}
+
+	/**
+	 * 
+	 * @return True, if the shard is being replaced and does not accept votes anymore
+	 */
+	boolean isSealed() {
+		return sealed;
+	}
+
+	/**
+	 * Submit a vote. The change of the counts is taken from the version that has been written, so it accounts for
+	 * concurrent votes of the same user.
+	 * 
+	 * @param agentId the user
+	 * @param upvote true for upvote, false for downvote
+	 * @return change of the number of upvotes and downvotes of this shard, null if the shard has been sealed
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	int[] vote(String agentId, boolean upvote) throws StorageException, PermissionException {
+		int[] delta = new int[2];
+		boolean[] accepted = new boolean[1];
+		update((VoteShard shard) -> {
+			accepted[0] = !shard.sealed;
+			delta[0] = 0;
+			delta[1] = 0;
+			if (shard.sealed)
+				return;
+
+			int upvotes = shard.upvotes.size();
+			int downvotes = shard.downvotes.size();
+
+			shard.upvotes.remove(agentId);
+			shard.downvotes.remove(agentId);
+
+			if (upvote)
+				shard.upvotes.add(agentId);
+			else
+				shard.downvotes.add(agentId);
+
+			delta[0] = shard.upvotes.size() - upvotes;
+			delta[1] = shard.downvotes.size() - downvotes;
+		});
+		return accepted[0] ? delta : null;
+	}
+
+	/**
+	 * Stops accepting votes. Afterwards the voters of this shard do not change anymore.
+	 * 
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	void seal() throws StorageException, PermissionException {
+		update((VoteShard shard) -> shard.sealed = true);
+	}
+
+	/**
+	 * Copies the voters of this sealed shard into two new shards, by a bit of the hash of their agent id.
+	 * 
+	 * @param bit index of the bit deciding between the new shards
+	 * @return the new shards for voters with the bit cleared and set, null if there are no such voters
+	 */
+	VoteShard[] split(int bit) {
+		VoteShard[] parts = new VoteShard[2];
+		for (int i = 0; i < 2; i++) {
+			parts[i] = new VoteShard(permissions);
+		}
+		for (String voter : upvotes) {
+			parts[(Votes.hash(voter) >>> bit) & 1].upvotes.add(voter);
+		}
+		for (String voter : downvotes) {
+			parts[(Votes.hash(voter) >>> bit) & 1].downvotes.add(voter);
+		}
+		for (int i = 0; i < 2; i++) {
+			if (parts[i].size() == 0)
+				parts[i] = null;
+		}
+		return parts;
+	}
+
+	/**
+	 * get vote of a user
+	 * 
+	 * @param agentId the user
+	 * @return 1 = upvote, 0 = no vote, -1 = downvote
+	 */
+	short getVote(String agentId) {
+		if (upvotes.contains(agentId))
+			return 1;
+		else if (downvotes.contains(agentId))
+			return -1;
+		else
+			return 0;
+	}
+}
@@ -1,18 +1,40 @@
 package i5.las2peer.services.threadedCommentService.data;
 
+import i5.las2peer.services.threadedCommentService.storage.ConflictException;
+import i5.las2peer.services.threadedCommentService.storage.NotFoundException;
 import i5.las2peer.services.threadedCommentService.storage.PermissionException;
 import i5.las2peer.services.threadedCommentService.storage.Storable;
+import i5.las2peer.services.threadedCommentService.storage.StorableCodec;
+import i5.las2peer.services.threadedCommentService.storage.StorablePointer;
+import i5.las2peer.services.threadedCommentService.storage.StorableSharedPointer;
 import i5.las2peer.services.threadedCommentService.storage.StorageException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 /**
- * Simple container for votes. Uses simple lists to manage votes.
- * 
+ * Container for votes. The voters are split into VoteShards by the hash of their agent id, so a vote only rewrites the
+ * shard of the voter. This record is only written when a shard is created or replaced. The totals are kept by the
+ * entry of the comment in its parent container, see {@link CommentEntry}; summing up all shards is only needed for
+ * entries stored before these counters were kept.
+ *
+ * The shards form the leaves of a binary tree over the hash: a shard at depth d holds all voters whose hashes end with
+ * its d bits. A new container has a single shard for all voters. A shard with more than {@link #MAX_SHARD_SIZE} voters
+ * is split: it is sealed, its voters are copied into two shards one level deeper and the shard is replaced by them in
+ * this record. Voters that find their shard sealed or deleted read this record again and vote in the new shard.
+ *
  * Lists are used instead of new Storables for each vote because this would not add additional security as the Votes
  * object has to be owned by the service and removing and adding votes would be possible, too.
- * 
+ *
  * @author Jasper Nalbach
  *
  */
@@ -22,8 +44,41 @@ public class Votes extends Storable {
 
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * Maximum number of voters per shard before it is split
+	 */
+	static final int MAX_SHARD_SIZE = 256;
+
+	/**
+	 * Maximum depth of a shard, i.e. number of hash bits used to assign voters
+	 */
+	static final int MAX_DEPTH = 16;
+
+	/**
+	 * Maximum number of attempts to find the current shard of a voter
+	 */
+	private static final int MAX_ATTEMPTS = 5;
+
+	/**
+	 * Depth of the 16 fixed shards of containers stored before shards were split
+	 */
+	private static final int LEGACY_DEPTH = 4;
+
 	private Permissions permissions;
 
+	/**
+	 * Shards by their position, see {@link #key(int, int)}. Null for shards without votes.
+	 */
+	private TreeMap<Long, StorableSharedPointer<VoteShard>> leaves;
+
+	/**
+	 * Fixed shards of containers stored with Java serialization; moved to leaves when read.
+	 */
+	private List<StorableSharedPointer<VoteShard>> shards;
+
+	/**
+	 * Votes of containers stored before sharding was introduced. Voters are moved to their shard when they vote again.
+	 */
 	private Set<String> upvotes;
 	private Set<String> downvotes;
 
@@ -31,6 +86,24 @@ public class Votes extends Storable {
 		this.permissions = permissions;
 		this.upvotes = new HashSet<>();
 		this.downvotes = new HashSet<>();
+		this.leaves = new TreeMap<>();
+		this.leaves.put(key(0, 0), null);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+
+		if (leaves == null) {
+			leaves = new TreeMap<>();
+			if (shards == null) {
+				leaves.put(key(0, 0), null);
+			} else {
+				for (int i = 0; i < shards.size(); i++) {
+					leaves.put(key(LEGACY_DEPTH, i), shards.get(i));
+				}
+				shards = null;
+			}
+		}
 	}
 
 	@Override
@@ -46,60 +119,400 @@ public class Votes extends Storable {
 
 	@Override
 	protected boolean cleanup() throws StorageException, PermissionException {
+		for (StorableSharedPointer<VoteShard> shard : leaves.values()) {
+			if (shard != null)
+				shard.detach();
+		}
 		return true;
 	}
 
+	@Override
+	protected Collection<StorablePointer<?>> pointers() {
+		return new ArrayList<StorablePointer<?>>(leaves.values());
+	}
+
 	/**
-	 * Get number of upvotes
-	 * 
+	 * Changes with every vote, so it is always read from the network.
+	 */
+	@Override
+	protected boolean cacheable() {
+		return false;
+	}
+
+	@Override
+	protected int formatVersion() {
+		return 2;
+	}
+
+	@Override
+	protected void writeFields(DataOutput out) throws IOException {
+		permissions.write(out);
+		StorableCodec.writeStrings(out, upvotes);
+		StorableCodec.writeStrings(out, downvotes);
+		StorableCodec.writeVarInt(out, leaves.size());
+		for (Map.Entry<Long, StorableSharedPointer<VoteShard>> leaf : leaves.entrySet()) {
+			StorableCodec.writeVarInt(out, depth(leaf.getKey()));
+			StorableCodec.writeVarInt(out, bits(leaf.getKey()));
+			StorableCodec.writePointer(out, leaf.getValue());
+		}
+	}
+
+	@Override
+	protected void readFields(DataInput in, int version) throws IOException {
+		permissions = Permissions.read(in);
+		upvotes = new HashSet<>();
+		downvotes = new HashSet<>();
+		leaves = new TreeMap<>();
+
+		if (version < 2) {
+			// fixed shards with their counts, followed by the votes stored before sharding
+			int size = StorableCodec.readVarInt(in);
+			for (int i = 0; i < size; i++) {
+				leaves.put(key(LEGACY_DEPTH, i), StorableCodec.<VoteShard> readSharedPointer(in, this));
+				StorableCodec.readVarInt(in);
+				StorableCodec.readVarInt(in);
+			}
+			StorableCodec.readStrings(in, upvotes);
+			StorableCodec.readStrings(in, downvotes);
+			return;
+		}
+
+		StorableCodec.readStrings(in, upvotes);
+		StorableCodec.readStrings(in, downvotes);
+		int size = StorableCodec.readVarInt(in);
+		for (int i = 0; i < size; i++) {
+			int depth = StorableCodec.readVarInt(in);
+			int bits = StorableCodec.readVarInt(in);
+			leaves.put(key(depth, bits), StorableCodec.<VoteShard> readSharedPointer(in, this));
+		}
+	}
+
+	/**
+	 * Hash of a voter deciding its shard
+	 *
+	 * @param agentId the user
+	 * @return non-negative hash
+	 */
+	static int hash(String agentId) {
+		return agentId.hashCode() & Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Position of a shard
+	 *
+	 * @param depth number of hash bits shared by the voters of the shard
+	 * @param bits the lowest depth bits of the hashes of the voters
+	 * @return key in leaves
+	 */
+	private static long key(int depth, int bits) {
+		return ((long) depth << 32) | bits;
+	}
+
+	private static int depth(long key) {
+		return (int) (key >>> 32);
+	}
+
+	private static int bits(long key) {
+		return (int) key;
+	}
+
+	/**
+	 * Get the position of the shard of a voter
+	 *
+	 * @param agentId the user
+	 * @return key in leaves, null if the shards do not cover the hash of the voter
+	 */
+	private Long leaf(String agentId) {
+		int hash = hash(agentId);
+		for (int depth = 0; depth <= MAX_DEPTH; depth++) {
+			long key = key(depth, hash & ((1 << depth) - 1));
+			if (leaves.containsKey(key))
+				return key;
+		}
+		return null;
+	}
+
+	/**
+	 * Get number of upvotes. Loads all shards.
+	 *
 	 * @return upvotes
+	 * @throws StorageException
+	 * @throws PermissionException
 	 */
-	int getUpvotes() {
-		return upvotes.size();
+	int getUpvotes() throws StorageException, PermissionException {
+		return count()[0];
 	}
 
 	/**
-	 * Get number of downvotes
-	 * 
+	 * Get number of downvotes. Loads all shards.
+	 *
 	 * @return downvotes
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	int getDownvotes() throws StorageException, PermissionException {
+		return count()[1];
+	}
+
+	/**
+	 * Sums up the votes of all shards, which are loaded in parallel. Only needed if the counters of the entry of the
+	 * comment are unknown.
+	 *
+	 * @return number of upvotes and downvotes
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	int[] count() throws StorageException, PermissionException {
+		for (int attempt = 1;; attempt++) {
+			List<StorableSharedPointer<VoteShard>> pointers = getShardPointers();
+			if (!pointers.isEmpty())
+				getStorage().fetchAvailable(pointers);
+
+			int[] counts = { upvotes.size(), downvotes.size() };
+			boolean complete = true;
+			for (StorableSharedPointer<VoteShard> pointer : pointers) {
+				VoteShard shard = find(pointer);
+				if (shard == null) {
+					complete = false;
+					break;
+				}
+				counts[0] += shard.getUpvotes();
+				counts[1] += shard.getDownvotes();
+			}
+			if (complete)
+				return counts;
+
+			retry(attempt);
+		}
+	}
+
+	/**
+	 * Submit a vote. Rewrites the shard of the voter and splits it if it has grown too large.
+	 *
+	 * @param agentId the user
+	 * @param upvote true for upvote, false for downvote
+	 * @return change of the number of upvotes and downvotes of the comment
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	int[] vote(String agentId, boolean upvote) throws StorageException, PermissionException {
+		for (int attempt = 1;; attempt++) {
+			Long leaf = leaf(agentId);
+			if (leaf == null)
+				throw new StorageException("Votes " + getId() + " have no shard for " + agentId);
+
+			StorableSharedPointer<VoteShard> pointer = leaves.get(leaf);
+			int[] delta = null;
+			if (pointer == null) {
+				delta = createShard(leaf, agentId, upvote);
+			} else {
+				VoteShard shard = find(pointer);
+				if (shard != null) {
+					delta = shard.isSealed() ? null : shard.vote(agentId, upvote);
+					// a sealed shard is split by every voter that finds it, so an interrupted split is finished
+					if (delta == null || shard.size() > MAX_SHARD_SIZE && depth(leaf) < MAX_DEPTH)
+						split(leaf, pointer, shard);
+				}
+			}
+
+			if (delta != null)
+				return removeLegacyVote(agentId, delta);
+
+			retry(attempt);
+		}
+	}
+
+	/**
+	 * Moves a voter out of the votes stored before sharding, if necessary.
+	 *
+	 * @param agentId the user
+	 * @param delta change of the counts of the shard of the voter
+	 * @return change of the number of upvotes and downvotes of the comment
+	 * @throws StorageException
+	 * @throws PermissionException
 	 */
-	int getDownvotes() {
-		return downvotes.size();
+	private int[] removeLegacyVote(String agentId, int[] delta) throws StorageException, PermissionException {
+		// these votes are only removed, so a voter missing here is missing in the latest version, too
+		if (!upvotes.contains(agentId) && !downvotes.contains(agentId))
+			return delta;
+
+		int[] total = new int[2];
+		update((Votes v) -> {
+			total[0] = delta[0] - (v.upvotes.remove(agentId) ? 1 : 0);
+			total[1] = delta[1] - (v.downvotes.remove(agentId) ? 1 : 0);
+		});
+		return total;
 	}
 
 	/**
-	 * Submit a vote
-	 * 
+	 * Creates the shard of a voter together with the first vote. If another voter has created the shard concurrently,
+	 * the new shard is deleted again.
+	 *
+	 * @param leaf position of the shard
 	 * @param agentId the user
 	 * @param upvote true for upvote, false for downvote
+	 * @return change of the counts of the shard, null if the shard has been created by another voter
 	 * @throws StorageException
 	 * @throws PermissionException
 	 */
-	void vote(String agentId, boolean upvote) throws StorageException, PermissionException {
-		upvotes.remove(agentId);
-		downvotes.remove(agentId);
+	private int[] createShard(long leaf, String agentId, boolean upvote) throws StorageException,
+			PermissionException {
+		VoteShard shard = new VoteShard(permissions);
+		List<StorableSharedPointer<VoteShard>> created = new ArrayList<>(1);
+		List<int[]> delta = new ArrayList<>(1);
+		boolean[] added = new boolean[1];
 
-		if (upvote)
-			upvotes.add(agentId);
-		else
-			downvotes.add(agentId);
+		getStorage().batch(() -> {
+			StorableSharedPointer<VoteShard> pointer = sharedPointer(shard);
+			created.add(pointer);
+			delta.add(shard.vote(agentId, upvote));
 
-		save();
+			update((Votes v) -> {
+				added[0] = v.leaves.containsKey(leaf) && v.leaves.get(leaf) == null;
+				if (added[0])
+					v.leaves.put(leaf, pointer);
+			});
+		});
+
+		if (!added[0]) {
+			created.get(0).detach();
+			return null;
+		}
+		return delta.get(0);
+	}
+
+	/**
+	 * Replaces a shard by two shards one level deeper. The shard is sealed first, so its voters do not change while
+	 * they are copied. If the shard has been replaced concurrently, the new shards are deleted again.
+	 *
+	 * @param leaf position of the shard
+	 * @param pointer pointer to the shard
+	 * @param shard the shard
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	private void split(long leaf, StorableSharedPointer<VoteShard> pointer, VoteShard shard) throws StorageException,
+			PermissionException {
+		if (!shard.isSealed())
+			shard.seal();
+
+		int depth = depth(leaf);
+		int bits = bits(leaf);
+		VoteShard[] parts = shard.split(depth);
+		List<StorableSharedPointer<VoteShard>> created = new ArrayList<>(2);
+		boolean[] replaced = new boolean[1];
+
+		getStorage().batch(() -> {
+			for (VoteShard part : parts) {
+				created.add(part == null ? null : sharedPointer(part));
+			}
+
+			update((Votes v) -> {
+				StorableSharedPointer<VoteShard> current = v.leaves.get(leaf);
+				replaced[0] = current != null && current.getId().equals(pointer.getId());
+				if (replaced[0]) {
+					v.leaves.remove(leaf);
+					v.leaves.put(key(depth + 1, bits), created.get(0));
+					v.leaves.put(key(depth + 1, bits | 1 << depth), created.get(1));
+				}
+			});
+		});
+
+		if (replaced[0]) {
+			pointer.detach();
+			return;
+		}
+		for (StorableSharedPointer<VoteShard> p : created) {
+			if (p != null)
+				p.detach();
+		}
+	}
+
+	/**
+	 * Reads this record again after a shard has been found sealed or deleted.
+	 *
+	 * @param attempt number of the failed attempt
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	private void retry(int attempt) throws StorageException, PermissionException {
+		if (attempt >= MAX_ATTEMPTS)
+			throw new ConflictException("Shards of Votes " + getId() + " changed during " + attempt + " attempts");
+
+		try {
+			getStorage().reload(this);
+		} catch (NotFoundException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * Get a shard that may have been replaced and deleted concurrently
+	 *
+	 * @param pointer pointer to the shard
+	 * @return the shard, null if it has been deleted
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	private static VoteShard find(StorableSharedPointer<VoteShard> pointer) throws StorageException,
+			PermissionException {
+		try {
+			return pointer.find();
+		} catch (NotFoundException e) {
+			return null;
+		}
 	}
 
 	/**
 	 * get vote of a user
-	 * 
+	 *
 	 * @param agentId the user
 	 * @return 1 = upvote, 0 = no vote, -1 = downvote
+	 * @throws StorageException
+	 * @throws PermissionException
 	 */
-	short getVote(String agentId) {
+	short getVote(String agentId) throws StorageException, PermissionException {
 		if (upvotes.contains(agentId))
 			return 1;
 		else if (downvotes.contains(agentId))
 			return -1;
-		else
-			return 0;
+
+		for (int attempt = 1;; attempt++) {
+			StorableSharedPointer<VoteShard> pointer = getShard(agentId);
+			if (pointer == null)
+				return 0;
+
+			VoteShard shard = find(pointer);
+			if (shard != null)
+				return shard.getVote(agentId);
+
+			retry(attempt);
+		}
+	}
+
+	/**
+	 * Get the shard holding the vote of a user
+	 *
+	 * @param agentId the user
+	 * @return pointer to the shard, null if nobody in this shard has voted yet
+	 */
+	StorableSharedPointer<VoteShard> getShard(String agentId) {
+		Long leaf = leaf(agentId);
+		return leaf == null ? null : leaves.get(leaf);
+	}
+
+	/**
+	 * Get pointers to all shards, e.g. to load them together with the shards of other containers.
+	 *
+	 * @return pointers to the shards with votes
+	 */
+	List<StorableSharedPointer<VoteShard>> getShardPointers() {
+		List<StorableSharedPointer<VoteShard>> pointers = new ArrayList<>();
+		for (StorableSharedPointer<VoteShard> pointer : leaves.values()) {
+			if (pointer != null)
+				pointers.add(pointer);
+		}
+		return pointers;
 	}
 
 }
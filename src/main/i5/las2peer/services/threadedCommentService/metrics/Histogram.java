@@ -0,0 +1,126 @@
+package i5.las2peer.services.threadedCommentService.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+/**
+ * Lock-free histogram with fixed bucket bounds. Also counts failed operations, which are not part of the
+ * distribution.
+ *
+ * @author Jasper Nalbach
+ *
+ */
+public class Histogram {
+
+	/**
+	 * Inclusive upper bounds of the buckets, ascending. Values above the last bound go into an extra bucket.
+	 */
+	private final long[] bounds;
+
+	private final AtomicLongArray buckets;
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Creates a new histogram.
+	 *
+	 * @param bounds Inclusive upper bounds of the buckets, ascending
+	 */
+	public Histogram(long[] bounds) {
+		this.bounds = bounds;
+		this.buckets = new AtomicLongArray(bounds.length + 1);
+	}
+
+	/**
+	 * Records a value.
+	 *
+	 * @param value The value
+	 */
+	public void record(long value) {
+		int bucket = 0;
+		while (bucket < bounds.length && value > bounds[bucket]) {
+			bucket++;
+		}
+
+		buckets.incrementAndGet(bucket);
+		count.increment();
+		sum.add(value);
+		max.accumulateAndGet(value, Math::max);
+	}
+
+	/**
+	 * Records a failed operation.
+	 */
+	public void recordError() {
+		errors.increment();
+	}
+
+	/**
+	 *
+	 * @return Number of recorded values
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Estimates a percentile from the buckets.
+	 *
+	 * @param p Percentile between 0 and 1
+	 * @return Upper bound of the bucket containing the percentile, the maximum for the last bucket
+	 */
+	public long percentile(double p) {
+		long total = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			total += buckets.get(i);
+		}
+		if (total == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(p * total);
+		long seen = 0;
+		for (int i = 0; i < bounds.length; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank)
+				return Math.min(bounds[i], max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 *
+	 * @return Counters, percentiles and non-empty buckets as JSON
+	 */
+	public JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+		long n = count.sum();
+		json.put("count", n);
+		json.put("errors", errors.sum());
+		json.put("sum", sum.sum());
+		json.put("mean", n == 0 ? 0 : sum.sum() / n);
+		json.put("max", max.get());
+		json.put("p50", percentile(0.5));
+		json.put("p99", percentile(0.99));
+
+		JSONArray list = new JSONArray();
+		for (int i = 0; i < buckets.length(); i++) {
+			long bucketCount = buckets.get(i);
+			if (bucketCount == 0)
+				continue;
+
+			JSONObject bucket = new JSONObject();
+			bucket.put("le", i < bounds.length ? (Object) bounds[i] : "+Inf");
+			bucket.put("count", bucketCount);
+			list.add(bucket);
+		}
+		json.put("buckets", list);
+
+		return json;
+	}
+}
@@ -0,0 +1,130 @@
+package i5.las2peer.services.threadedCommentService.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * Node-local metrics of the service: latency per endpoint and per storage operation, envelope fetches per request and
+ * cache hits. Latencies are recorded in microseconds.
+ *
+ * @author Jasper Nalbach
+ *
+ */
+public class Metrics {
+
+	private static final long[] LATENCY_BOUNDS = { 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000,
+			250000, 500000, 1000000, 2500000, 5000000, 10000000 };
+
+	private static final long[] COUNT_BOUNDS = { 0, 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000 };
+
+	private final ConcurrentMap<String, Histogram> endpointLatency = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Histogram> endpointFetches = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Histogram> storageLatency = new ConcurrentHashMap<>();
+	private final LongAdder fetches = new LongAdder();
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder conflicts = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+
+	/**
+	 * Records a handled request.
+	 *
+	 * @param endpoint Name of the endpoint
+	 * @param request Counters of the request
+	 * @param nanos Duration in nanoseconds
+	 * @param success False, if the request failed with a server error
+	 */
+	public void request(String endpoint, RequestMetrics request, long nanos, boolean success) {
+		Histogram latency = endpointLatency.computeIfAbsent(endpoint, k -> new Histogram(LATENCY_BOUNDS));
+		if (success)
+			latency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+		else
+			latency.recordError();
+
+		endpointFetches.computeIfAbsent(endpoint, k -> new Histogram(COUNT_BOUNDS)).record(request.getFetches());
+	}
+
+	/**
+	 * Records a storage operation.
+	 *
+	 * @param operation Name of the operation
+	 * @param nanos Duration in nanoseconds
+	 * @param success False, if the operation failed
+	 */
+	public void storage(String operation, long nanos, boolean success) {
+		Histogram latency = storageLatency.computeIfAbsent(operation, k -> new Histogram(LATENCY_BOUNDS));
+		if (success)
+			latency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+		else
+			latency.recordError();
+	}
+
+	/**
+	 * Counts an envelope fetched from the network.
+	 *
+	 * @param request The request the envelope is fetched for, may be null
+	 */
+	public void fetched(RequestMetrics request) {
+		fetches.increment();
+		if (request != null)
+			request.fetched();
+	}
+
+	/**
+	 * Counts a Storable served from the node cache.
+	 */
+	public void cacheHit() {
+		cacheHits.increment();
+	}
+
+	/**
+	 * Counts a write that had to be applied again to a concurrently changed envelope.
+	 */
+	public void conflict() {
+		conflicts.increment();
+	}
+
+	/**
+	 * Counts writes that have been written together with the write of another request.
+	 *
+	 * @param writes Number of coalesced writes
+	 */
+	public void coalesced(int writes) {
+		coalesced.add(writes);
+	}
+
+	/**
+	 *
+	 * @return All metrics as JSON
+	 */
+	public JSONObject toJSON() {
+		JSONObject endpoints = new JSONObject();
+		for (Map.Entry<String, Histogram> entry : new TreeMap<>(endpointLatency).entrySet()) {
+			JSONObject endpoint = new JSONObject();
+			endpoint.put("latencyMicros", entry.getValue().toJSON());
+			Histogram fetchHistogram = endpointFetches.get(entry.getKey());
+			if (fetchHistogram != null)
+				endpoint.put("envelopeFetches", fetchHistogram.toJSON());
+			endpoints.put(entry.getKey(), endpoint);
+		}
+
+		JSONObject storage = new JSONObject();
+		for (Map.Entry<String, Histogram> entry : new TreeMap<>(storageLatency).entrySet()) {
+			storage.put(entry.getKey(), entry.getValue().toJSON());
+		}
+
+		JSONObject json = new JSONObject();
+		json.put("endpoints", endpoints);
+		json.put("storageLatencyMicros", storage);
+		json.put("envelopeFetches", fetches.sum());
+		json.put("cacheHits", cacheHits.sum());
+		json.put("writeConflicts", conflicts.sum());
+		json.put("coalescedWrites", coalesced.sum());
+		return json;
+	}
+}
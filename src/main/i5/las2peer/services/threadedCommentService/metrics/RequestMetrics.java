@@ -0,0 +1,52 @@
+package i5.las2peer.services.threadedCommentService.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counters of a single request. The request being handled by a thread is available via current(), so Storages can
+ * attribute their envelope fetches to it, also when fetching on worker threads.
+ *
+ * @author Jasper Nalbach
+ *
+ */
+public class RequestMetrics {
+
+	private static final ThreadLocal<RequestMetrics> CURRENT = new ThreadLocal<>();
+
+	private final AtomicInteger fetches = new AtomicInteger();
+
+	/**
+	 *
+	 * @return The request handled by this thread or null
+	 */
+	public static RequestMetrics current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Sets the request handled by this thread.
+	 *
+	 * @param request The request or null
+	 */
+	public static void setCurrent(RequestMetrics request) {
+		if (request == null)
+			CURRENT.remove();
+		else
+			CURRENT.set(request);
+	}
+
+	/**
+	 * Counts an envelope fetched from the network.
+	 */
+	public void fetched() {
+		fetches.incrementAndGet();
+	}
+
+	/**
+	 *
+	 * @return Number of envelopes fetched from the network so far
+	 */
+	public int getFetches() {
+		return fetches.get();
+	}
+}
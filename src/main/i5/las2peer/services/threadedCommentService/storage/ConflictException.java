@@ -0,0 +1,20 @@
+package i5.las2peer.services.threadedCommentService.storage;
+
+/**
+ * To be thrown whenever a Storable could not be saved because it has been changed concurrently, even after applying
+ * the updates again to the latest version.
+ * 
+ * @author Jasper Nalbach
+ *
+ */
+public class ConflictException extends StorageException {
+	private static final long serialVersionUID = 1L;
+
+	public ConflictException(String message) {
+		super(message);
+	}
+
+	public ConflictException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
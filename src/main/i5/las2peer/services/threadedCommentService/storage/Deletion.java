@@ -0,0 +1,126 @@
+package i5.las2peer.services.threadedCommentService.storage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Progress of the deletion of a Storable and all Storables referenced by it. Updated by the Storage while the deletion
+ * is running, so it can be polled from another thread.
+ *
+ * @author Jasper Nalbach
+ *
+ */
+public class Deletion {
+
+	public enum State {
+		RUNNING, DONE, FAILED
+	}
+
+	/**
+	 * Notified on the thread running the deletion whenever its progress changes, e.g. to record it durably.
+	 */
+	public interface Listener {
+		void changed(Deletion deletion);
+	}
+
+	private final String id;
+
+	private final long started;
+
+	private final AtomicInteger deleted = new AtomicInteger();
+
+	private volatile State state = State.RUNNING;
+
+	private volatile long finished;
+
+	private volatile Exception error;
+
+	private final Listener listener;
+
+	/**
+	 *
+	 * @param id Id of the deleted Storable
+	 * @param listener Listener to notify of the progress, may be null
+	 */
+	Deletion(String id, Listener listener) {
+		this.id = id;
+		this.started = System.currentTimeMillis();
+		this.listener = listener;
+	}
+
+	void deleted(int count) {
+		deleted.addAndGet(count);
+		changed();
+	}
+
+	void done() {
+		finished = System.currentTimeMillis();
+		state = State.DONE;
+		changed();
+	}
+
+	void failed(Exception error) {
+		this.error = error;
+		finished = System.currentTimeMillis();
+		state = State.FAILED;
+		changed();
+	}
+
+	private void changed() {
+		if (listener == null)
+			return;
+
+		try {
+			listener.changed(this);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 *
+	 * @return Id of the deleted Storable
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 *
+	 * @return State of the deletion
+	 */
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 *
+	 * @return Number of envelopes deleted so far
+	 */
+	public int getDeleted() {
+		return deleted.get();
+	}
+
+	/**
+	 *
+	 * @return Start of the deletion in milliseconds since the epoch
+	 */
+	public long getStarted() {
+		return started;
+	}
+
+	/**
+	 *
+	 * @return End of the deletion in milliseconds since the epoch, 0 while running
+	 */
+	public long getFinished() {
+		return finished;
+	}
+
+	/**
+	 *
+	 * @return Cause of a failed deletion, null otherwise
+	 */
+	public Exception getError() {
+		return error;
+	}
+}
@@ -0,0 +1,54 @@
+package i5.las2peer.services.threadedCommentService.storage;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Node-local registry of the group agents that own envelopes, keyed by their sorted member set.
+ *
+ * Envelopes with the same writers share one owner group instead of creating a new GroupAgent each. Every member set
+ * contains the owner group of a thread, so the groups are never shared between threads of different owners.
+ *
+ * Only groups created by this node are registered. Whoever creates a GroupAgent holds its private key, whether or not
+ * they are a member, so a group found in the network is never trusted just because its members match. Each node
+ * therefore creates its own group per member set.
+ *
+ * @author Jasper Nalbach
+ *
+ */
+public class OwnerGroupRegistry {
+
+	private final Map<String, String> groups = new HashMap<>();
+
+	/**
+	 * Get the key of a member set.
+	 *
+	 * @param members Agent ids of the members
+	 * @return Sorted, comma separated list of the distinct members
+	 */
+	static String key(Collection<String> members) {
+		return String.join(",", new TreeSet<>(members));
+	}
+
+	/**
+	 * Get a known group.
+	 *
+	 * @param key Key of the member set
+	 * @return Id of the group agent or null
+	 */
+	synchronized String get(String key) {
+		return groups.get(key);
+	}
+
+	/**
+	 * Register a group created by this node.
+	 *
+	 * @param key Key of the member set
+	 * @param groupId Id of the group agent
+	 */
+	synchronized void put(String key, String groupId) {
+		groups.put(key, groupId);
+	}
+}
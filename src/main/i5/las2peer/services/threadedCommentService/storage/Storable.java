@@ -1,7 +1,12 @@
 package i5.las2peer.services.threadedCommentService.storage;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 
@@ -50,6 +55,29 @@ public abstract class Storable implements Serializable {
 	 */
 	private int referenceCounter;
 	
+	// concurrency control
+	/**
+	 * Version of the envelope this Storable has been read from or written to. 0 if unknown.
+	 */
+	private transient long version;
+	/**
+	 * Updates applied since the last write. Applied again to the latest version if the envelope has been changed
+	 * concurrently.
+	 */
+	private transient List<Update<?>> updates;
+	
+	/**
+	 * A modification of a Storable that can be applied again to a newer version of it. Must only modify the given
+	 * Storable and must not depend on its state before the modification other than through the given Storable. An
+	 * update may record what it changed, e.g. to pass on the change of a counter; the last application is the one
+	 * that has been written.
+	 * 
+	 * @param <S> Type of the Storable
+	 */
+	public interface Update<S extends Storable> {
+		void apply(S storable) throws StorageException, PermissionException;
+	}
+	
 	public Storable() {
 		this.reader = new ArrayList<>();
 		this.writer = new ArrayList<>();
@@ -78,6 +106,47 @@ public abstract class Storable implements Serializable {
 	 */
 	protected abstract boolean cleanup() throws StorageException, PermissionException;
 	
+	/**
+	 * Version of the compact format written by writeFields. Increase whenever writeFields changes and keep reading
+	 * older versions in readFields.
+	 * 
+	 * @return format version
+	 */
+	protected int formatVersion() {
+		return 1;
+	}
+	
+	/**
+	 * Writes the fields of the subclass in the compact format of StorableCodec.
+	 * 
+	 * @param out Output
+	 * @throws IOException
+	 */
+	protected abstract void writeFields(DataOutput out) throws IOException;
+	
+	/**
+	 * Reads the fields written by writeFields.
+	 * 
+	 * @param in Input
+	 * @param version Format version the fields have been written with
+	 * @throws IOException
+	 */
+	protected abstract void readFields(DataInput in, int version) throws IOException;
+	
+	/**
+	 * Restores the base fields. Used when decoding.
+	 * 
+	 * @param id
+	 * @param timeCreated
+	 * @param referenceCounter
+	 */
+	void restore(String id, long timeCreated, int referenceCounter) {
+		this.id = id;
+		this.timeCreated = timeCreated;
+		this.referenceCounter = referenceCounter;
+		this.stored = true;
+	}
+	
 	/**
 	 * Set the Storage.
 	 * 
@@ -85,6 +154,21 @@ public abstract class Storable implements Serializable {
 	 */
 	void setStorage(Storage s) {
 		this.storage = s;
+		
+		for (StorablePointer<?> pointer : pointers()) {
+			if (pointer != null)
+				pointer.bind(this);
+		}
+	}
+	
+	/**
+	 * Get all pointers held by this Storable. Pointers only store the id of their target, so they are bound to this
+	 * Storable again after it has been loaded.
+	 * 
+	 * @return The pointers, may contain null
+	 */
+	protected Collection<StorablePointer<?>> pointers() {
+		return Collections.emptyList();
 	}
 	
 	/**
@@ -102,6 +186,14 @@ public abstract class Storable implements Serializable {
 		this.stored = true;
 	}
 	
+	/**
+	 * 
+	 * @return True, if the Storable has been stored in a Storage
+	 */
+	boolean isStored() {
+		return this.stored;
+	}
+	
 	/**
 	 * Increase the reference counter
 	 */
@@ -157,6 +249,18 @@ public abstract class Storable implements Serializable {
 		return new StorableSharedPointer<T>(this, target);
 	}
 	
+	/**
+	 * Create a StorableSharedPointer from this Storable that takes over the reference of a pointer held by another
+	 * Storable, without changing the reference counter of the target. The other pointer must be dropped without
+	 * detaching it.
+	 * @param <T> 
+	 * @param pointer The pointer to take over.
+	 * @return A StorableSharedPointer to the same target.
+	 */
+	protected <T extends Storable> StorableSharedPointer<T> adoptPointer(StorableSharedPointer<T> pointer) {
+		return new StorableSharedPointer<T>(this, pointer.getId(), pointer.valid);
+	}
+	
 	/**
 	 * Create a StorableWeakPointer from thsi Storable to antoher Storable.
 	 * @param <T> 
@@ -174,6 +278,95 @@ public abstract class Storable implements Serializable {
 		return new StorableWeakPointer<T>(this, target);
 	}
 	
+	/**
+	 * Applies an update to this Storable and saves it. If the envelope has been changed concurrently since it was
+	 * read, the update is applied again to the latest version instead of overwriting the concurrent change. Use this
+	 * for all modifications of Storables that are written by several agents.
+	 * 
+	 * @param <S> Type of this Storable
+	 * @param update The update
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	@SuppressWarnings("unchecked")
+	protected <S extends Storable> void update(Update<S> update) throws StorageException, PermissionException {
+		update.apply((S) this);
+		
+		if (updates == null)
+			updates = new ArrayList<>();
+		updates.add(update);
+		
+		save();
+	}
+	
+	/**
+	 * Whether updates of this Storable may be written together with concurrent updates of the same envelope by other
+	 * requests on this node. Only enable this for containers that are appended to by many agents, whose updates are
+	 * guarded by permission checks of the data layer.
+	 * 
+	 * @return True, if updates may be coalesced
+	 */
+	protected boolean coalesceWrites() {
+		return false;
+	}
+	
+	/**
+	 * Whether this Storable may be served from the node-local StorableCache. Cache hits are not validated against the
+	 * network, so a cached Storable may miss writes of other nodes for up to the maximum age of the cache. Disable this
+	 * for types that change with every comment or vote, so they are always read from the network.
+	 * 
+	 * @return True, if the Storable may be cached
+	 */
+	protected boolean cacheable() {
+		return true;
+	}
+	
+	/**
+	 * 
+	 * @return True, if updates have been applied since the last write
+	 */
+	boolean hasUpdates() {
+		return updates != null && !updates.isEmpty();
+	}
+	
+	/**
+	 * Applies the updates since the last write to a newer version of this Storable.
+	 * @param target The newer version
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	@SuppressWarnings("unchecked")
+	void applyUpdates(Storable target) throws StorageException, PermissionException {
+		for (Update<?> update : updates) {
+			((Update<Storable>) update).apply(target);
+		}
+	}
+	
+	/**
+	 * Marks this Storable as written.
+	 * @param version Version of the written envelope
+	 */
+	void written(long version) {
+		this.version = version;
+		this.updates = null;
+	}
+	
+	/**
+	 * 
+	 * @return Version of the envelope this Storable has been read from or written to, 0 if unknown
+	 */
+	long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * Set the version of the envelope this Storable has been read from. Used by Storage.
+	 * @param version Version of the envelope
+	 */
+	void setVersion(long version) {
+		this.version = version;
+	}
+	
 	/**
 	 * Saves this Storable. Should be called after altering attributes.
 	 * @throws StorageException
@@ -188,21 +381,25 @@ public abstract class Storable implements Serializable {
 	}
 	
 	/**
-	 * Deletes the Storable. Invokes cleanup and deletes from Storable if possible.
+	 * Deletes the Storable. Invokes cleanup and deletes from Storable if possible. Referenced Storables are loaded
+	 * level by level in parallel batches and deleted from the deepest level up, before the Storable itself.
 	 * @throws StorageException
 	 * @throws PermissionException
 	 */
 	public void delete() throws StorageException, PermissionException {
-		if (!cleanup())
-			throw new StorageException("Storable cannot be deleted.");
-		
-		// delete this object from storage
-		try {
-			storage.delete(getId());
-		}
-		catch (NotFoundException e) {
-			throw new StorageException("Storable does not exist", e);
-		}
+		storage.delete(this, false, null);
+	}
+	
+	/**
+	 * Deletes the Storable like {@link #delete()}, but in the background. Invokes cleanup before returning; the
+	 * Storable itself is deleted after the referenced Storables.
+	 * @param listener Listener to notify of the progress, may be null
+	 * @return Progress of the deletion, to be polled by the caller
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	public Deletion deleteInBackground(Deletion.Listener listener) throws StorageException, PermissionException {
+		return storage.delete(this, true, listener);
 	}
 	
 	
@@ -0,0 +1,196 @@
+package i5.las2peer.services.threadedCommentService.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Node-local read-through cache for Storables. Entries are keyed by envelope id, bounded in size (least recently used
+ * entries are evicted first) and in age.
+ *
+ * Each entry keeps a snapshot of the Storable, so every hit returns a new instance that can be attached to the
+ * requesting Storage and modified without affecting other requests. An entry is only served to agents that have
+ * already read the envelope from the network, so the cache never widens access to encrypted content.
+ *
+ * Hits are served without asking the network for the latest version. Writes on this node invalidate their entry, but
+ * writes of other nodes are only seen once the entry has expired, so a cached Storable may be stale for up to the
+ * maximum age. Types that change with every comment or vote, and comments, whose edits and deletions have to be seen
+ * at once, are therefore not cached at all, see {@link Storable#cacheable()}.
+ *
+ * @author Jasper Nalbach
+ *
+ */
+public class StorableCache {
+
+	/**
+	 * Maximum number of entries
+	 */
+	private final int maxEntries;
+
+	/**
+	 * Maximum age of an entry in milliseconds
+	 */
+	private final long maxAge;
+
+	/**
+	 * Compact format used for snapshots of registered types, may be null
+	 */
+	private final StorableCodec codec;
+
+	private final Map<String, CacheEntry> entries;
+
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param maxEntries Maximum number of cached Storables
+	 * @param maxAge Maximum age of a cached Storable in milliseconds
+	 * @param codec Compact format used for snapshots, null to use Java serialization
+	 */
+	public StorableCache(int maxEntries, long maxAge, StorableCodec codec) {
+		this.maxEntries = maxEntries;
+		this.maxAge = maxAge;
+		this.codec = codec;
+		this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+				return size() > StorableCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Get a cached Storable.
+	 *
+	 * @param id Id of the Storable
+	 * @param agentId The requesting agent
+	 * @return A fresh copy of the Storable or null, if there is no valid entry readable by the agent
+	 */
+	public Storable get(String id, String agentId) {
+		CacheEntry entry;
+		synchronized (entries) {
+			entry = entries.get(id);
+			if (entry == null)
+				return null;
+
+			if (System.currentTimeMillis() - entry.loaded > maxAge) {
+				entries.remove(id);
+				return null;
+			}
+
+			if (!entry.readers.contains(agentId))
+				return null;
+		}
+
+		return entry.restore();
+	}
+
+	/**
+	 * Puts a Storable that has just been read from the network into the cache. Older versions never replace newer
+	 * ones.
+	 *
+	 * @param id Id of the Storable
+	 * @param version Version of the envelope
+	 * @param storable The Storable
+	 * @param agentId Agent that has read the envelope
+	 */
+	public void put(String id, long version, Storable storable, String agentId) {
+		synchronized (entries) {
+			CacheEntry entry = entries.get(id);
+			if (entry != null && entry.version > version)
+				return;
+			if (entry != null && entry.version == version) {
+				entry.readers.add(agentId);
+				return;
+			}
+		}
+
+		CacheEntry entry = new CacheEntry(version, storable, codec);
+		entry.readers.add(agentId);
+
+		synchronized (entries) {
+			CacheEntry existing = entries.get(id);
+			if (existing == null || existing.version < version)
+				entries.put(id, entry);
+		}
+	}
+
+	/**
+	 * Removes a Storable from the cache. To be called whenever the envelope is changed or deleted.
+	 *
+	 * @param id Id of the Storable
+	 */
+	public void invalidate(String id) {
+		synchronized (entries) {
+			entries.remove(id);
+		}
+	}
+
+	/**
+	 *
+	 * @return Number of cached Storables
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	private static class CacheEntry {
+		final long version;
+		final long loaded;
+		final byte[] data;
+		final StorableCodec codec;
+		final Set<String> readers;
+
+		CacheEntry(long version, Storable storable, StorableCodec codec) {
+			this.version = version;
+			this.loaded = System.currentTimeMillis();
+			this.codec = codec != null && codec.supports(storable) ? codec : null;
+			this.data = snapshot(storable, this.codec);
+			this.readers = new HashSet<>();
+		}
+
+		Storable restore() {
+			Storable storable;
+			if (codec != null) {
+				try {
+					storable = codec.decode(data);
+				} catch (IOException e) {
+					throw new IllegalStateException("Cached Storable cannot be restored", e);
+				}
+			} else {
+				try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+					storable = (Storable) in.readObject();
+				} catch (IOException | ClassNotFoundException e) {
+					throw new IllegalStateException("Cached Storable cannot be restored", e);
+				}
+			}
+
+			storable.setVersion(version);
+			return storable;
+		}
+
+		private static byte[] snapshot(Storable storable, StorableCodec codec) {
+			try {
+				if (codec != null)
+					return codec.encode(storable);
+
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ObjectOutputStream out = new ObjectOutputStream(bytes);
+				out.writeObject(storable);
+				out.close();
+				return bytes.toByteArray();
+			} catch (IOException e) {
+				throw new IllegalStateException("Storable cannot be serialized", e);
+			}
+		}
+	}
+}
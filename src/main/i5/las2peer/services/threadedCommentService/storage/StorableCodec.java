@@ -0,0 +1,272 @@
+package i5.las2peer.services.threadedCommentService.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact binary format for Storables, used instead of default Java serialization for all registered types.
+ *
+ * Layout: magic byte, type id, format version of the type, base fields of the Storable and the length-prefixed fields
+ * written by {@link Storable#writeFields(DataOutput)}. The version is passed to
+ * {@link Storable#readFields(DataInput, int)}, so types can read older versions. Because of the length prefix, fields
+ * appended by newer versions are skipped by older readers.
+ *
+ * @author Jasper Nalbach
+ *
+ */
+public class StorableCodec {
+
+	private static final int MAGIC = 0xC5;
+
+	/**
+	 * Creates a new, empty instance of a type. All fields are overwritten by readFields.
+	 */
+	public interface Factory {
+		Storable create();
+	}
+
+	private final Map<Class<? extends Storable>, Integer> types = new HashMap<>();
+	private final Map<Integer, Factory> factories = new HashMap<>();
+
+	/**
+	 * Register a type.
+	 *
+	 * @param type Unique id of the type, 0-255. Must never change once data has been stored.
+	 * @param cls Class of the type
+	 * @param factory Factory for empty instances
+	 * @return this codec
+	 */
+	public StorableCodec register(int type, Class<? extends Storable> cls, Factory factory) {
+		if (type < 0 || type > 255 || factories.containsKey(type))
+			throw new IllegalArgumentException("Invalid or duplicate type id " + type);
+
+		types.put(cls, type);
+		factories.put(type, factory);
+		return this;
+	}
+
+	/**
+	 *
+	 * @param storable A Storable
+	 * @return True, if the type of the Storable is registered
+	 */
+	public boolean supports(Storable storable) {
+		return types.containsKey(storable.getClass());
+	}
+
+	/**
+	 * Encodes a Storable.
+	 *
+	 * @param storable A Storable of a registered type
+	 * @return The encoded Storable
+	 * @throws IOException
+	 */
+	public byte[] encode(Storable storable) throws IOException {
+		Integer type = types.get(storable.getClass());
+		if (type == null)
+			throw new IOException("Type not registered: " + storable.getClass().getName());
+
+		ByteArrayOutputStream fields = new ByteArrayOutputStream();
+		storable.writeFields(new DataOutputStream(fields));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(fields.size() + 64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(MAGIC);
+		out.writeByte(type);
+		writeVarInt(out, storable.formatVersion());
+		writeString(out, storable.getId());
+		out.writeLong(storable.timeCreated());
+		out.writeInt(storable.referenceCounter());
+		writeVarInt(out, fields.size());
+		fields.writeTo(out);
+		out.flush();
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes a Storable.
+	 *
+	 * @param data Data written by encode
+	 * @return The Storable
+	 * @throws IOException
+	 */
+	public Storable decode(byte[] data) throws IOException {
+		return decode(data, null);
+	}
+
+	/**
+	 * Decodes a Storable into an existing instance, e.g. to refresh it with a newer version. All fields written by
+	 * encode are overwritten.
+	 *
+	 * @param data Data written by encode
+	 * @param target Instance of the encoded type; null to create a new instance
+	 * @return The Storable
+	 * @throws IOException
+	 */
+	public Storable decode(byte[] data, Storable target) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+		if (in.readUnsignedByte() != MAGIC)
+			throw new IOException("Not an encoded Storable");
+
+		int type = in.readUnsignedByte();
+		Factory factory = factories.get(type);
+		if (factory == null)
+			throw new IOException("Unknown type " + type);
+		if (target != null && !Integer.valueOf(type).equals(types.get(target.getClass())))
+			throw new IOException("Type " + type + " does not match " + target.getClass().getName());
+
+		int version = readVarInt(in);
+		Storable storable = target != null ? target : factory.create();
+		storable.restore(readString(in), in.readLong(), in.readInt());
+
+		byte[] fields = new byte[readVarInt(in)];
+		in.readFully(fields);
+		storable.readFields(new DataInputStream(new ByteArrayInputStream(fields)), version);
+
+		return storable;
+	}
+
+	// helpers for writeFields and readFields
+
+	/**
+	 * Writes a non-negative int using one byte per 7 bits.
+	 *
+	 * @param out Output
+	 * @param value Value
+	 * @throws IOException
+	 */
+	public static void writeVarInt(DataOutput out, int value) throws IOException {
+		writeVarLong(out, value);
+	}
+
+	public static int readVarInt(DataInput in) throws IOException {
+		return (int) readVarLong(in);
+	}
+
+	/**
+	 * Writes a non-negative long using one byte per 7 bits.
+	 *
+	 * @param out Output
+	 * @param value Value
+	 * @throws IOException
+	 */
+	public static void writeVarLong(DataOutput out, long value) throws IOException {
+		if (value < 0)
+			throw new IOException("Negative value " + value);
+
+		while (value > 0x7F) {
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	public static long readVarLong(DataInput in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed number");
+	}
+
+	/**
+	 * Writes a nullable String of any length as UTF-8.
+	 *
+	 * @param out Output
+	 * @param value Value or null
+	 * @throws IOException
+	 */
+	public static void writeString(DataOutput out, String value) throws IOException {
+		if (value == null) {
+			writeVarInt(out, 0);
+			return;
+		}
+
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(out, bytes.length + 1);
+		out.write(bytes);
+	}
+
+	public static String readString(DataInput in) throws IOException {
+		int length = readVarInt(in);
+		if (length == 0)
+			return null;
+
+		byte[] bytes = new byte[length - 1];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a collection of Strings.
+	 *
+	 * @param out Output
+	 * @param values Values
+	 * @throws IOException
+	 */
+	public static void writeStrings(DataOutput out, Collection<String> values) throws IOException {
+		writeVarInt(out, values.size());
+		for (String value : values) {
+			writeString(out, value);
+		}
+	}
+
+	public static void readStrings(DataInput in, Collection<String> values) throws IOException {
+		int size = readVarInt(in);
+		for (int i = 0; i < size; i++) {
+			values.add(readString(in));
+		}
+	}
+
+	/**
+	 * Writes a nullable pointer. Only the id of the target is written.
+	 *
+	 * @param out Output
+	 * @param pointer Pointer or null
+	 * @throws IOException
+	 */
+	public static void writePointer(DataOutput out, StorablePointer<?> pointer) throws IOException {
+		if (pointer == null) {
+			out.writeByte(0);
+			return;
+		}
+
+		if (pointer instanceof StorableSharedPointer)
+			out.writeByte(((StorableSharedPointer<?>) pointer).valid ? 1 : 2);
+		else
+			out.writeByte(1);
+		writeString(out, pointer.getId());
+	}
+
+	public static <T extends Storable> StorableSharedPointer<T> readSharedPointer(DataInput in, Storable parent)
+			throws IOException {
+		int flag = in.readUnsignedByte();
+		if (flag == 0)
+			return null;
+
+		return new StorableSharedPointer<T>(parent, readString(in), flag == 1);
+	}
+
+	public static <T extends Storable> StorableWeakPointer<T> readWeakPointer(DataInput in, Storable parent)
+			throws IOException {
+		int flag = in.readUnsignedByte();
+		if (flag == 0)
+			return null;
+
+		return new StorableWeakPointer<T>(parent, readString(in));
+	}
+}
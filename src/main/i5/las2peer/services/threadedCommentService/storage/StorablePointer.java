@@ -18,9 +18,9 @@ public abstract class StorablePointer<T extends Storable> implements Serializabl
 	private String id;
 	
 	/**
-	 * Reference to the parent
+	 * Reference to the parent. Not stored, the parent binds its pointers again when it is loaded.
 	 */
-	private Storable parent;
+	private transient Storable parent;
 	
 	/**
 	 * Reference to the target
@@ -38,24 +38,78 @@ public abstract class StorablePointer<T extends Storable> implements Serializabl
 		this.parent = parent;
 	}
 	
+	/**
+	 * Construct a StorablePointer to a target that has not been loaded yet. Used when decoding.
+	 * @param parent Parent element
+	 * @param id Id of the target
+	 */
+	StorablePointer(Storable parent, String id) {
+		this.id = id;
+		this.parent = parent;
+	}
+	
+	/**
+	 * Set the parent after loading. Used by Storable.
+	 * @param parent Parent element
+	 */
+	void bind(Storable parent) {
+		this.parent = parent;
+	}
+	
+	/**
+	 * 
+	 * @return The parent element
+	 */
+	Storable getParent() {
+		return parent;
+	}
+	
 	/**
 	 * Get the target Storable
 	 * @return The Storable
 	 * @throws StorageException
 	 * @throws PermissionException
 	 */
-	@SuppressWarnings("unchecked")
 	public T get() throws StorageException, PermissionException {
+		try {
+			return find();
+		} catch (NotFoundException e) {
+			throw new StorageException("Target not found! Storage is inconsistent", e);
+		}
+	}
+	
+	/**
+	 * Get the target Storable. For pointers whose target may be replaced and deleted concurrently.
+	 * @return The Storable
+	 * @throws StorageException
+	 * @throws PermissionException
+	 * @throws NotFoundException If the target does not exist (anymore)
+	 */
+	@SuppressWarnings("unchecked")
+	public T find() throws StorageException, PermissionException, NotFoundException {
 		if (this.cache == null)
-			try {
-				this.cache = (T)parent.getStorage().load(this.id);
-			} catch (NotFoundException e) {
-				throw new StorageException("Target not found! Storage is inconsistent", e);
-			}
+			this.cache = (T)parent.getStorage().load(this.id);
 			
 		return this.cache;
 	}
 	
+	/**
+	 * 
+	 * @return True, if the target has already been loaded
+	 */
+	boolean isResolved() {
+		return this.cache != null;
+	}
+	
+	/**
+	 * Set the target after it has been loaded in a batch. Used by Storage.
+	 * @param target The loaded target
+	 */
+	@SuppressWarnings("unchecked")
+	void resolve(Storable target) {
+		this.cache = (T) target;
+	}
+	
 	/**
 	 * To be called before deleting the Pointer. Checks reference counter etc
 	 * @throws StorageException
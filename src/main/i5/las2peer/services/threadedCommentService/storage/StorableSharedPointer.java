@@ -24,12 +24,28 @@ public class StorableSharedPointer<T extends Storable> extends StorablePointer<T
 	}
 
 	/**
-	 * Decreases the reference coutner of the target and deletes it if neccessary
+	 * Restores a pointer without changing the reference counter. Used when decoding.
+	 * @param parent Parent
+	 * @param id Id of the target
+	 * @param valid False, if the pointer has already been detached
+	 */
+	StorableSharedPointer(Storable parent, String id, boolean valid) {
+		super(parent, id);
+		
+		this.valid = valid;
+	}
+
+	/**
+	 * Decreases the reference coutner of the target and deletes it if neccessary. While the parent is cleaned up for
+	 * deletion, the target is deleted afterwards together with the other targets of the parent.
 	 */
 	@Override
 	public void detach() throws StorageException, PermissionException {
 		if (!valid) return;
 		this.valid=false;
+		
+		if (getParent().getStorage().deferDetach(this))
+			return;
 				
 		get().decReferenceCounter();
 			
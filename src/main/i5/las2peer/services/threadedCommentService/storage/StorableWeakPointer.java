@@ -19,6 +19,15 @@ public class StorableWeakPointer<T extends Storable> extends StorablePointer<T>
 		super(parent, target);
 	}
 
+	/**
+	 * Restores a WeakPointer. Used when decoding.
+	 * @param parent
+	 * @param id
+	 */
+	StorableWeakPointer(Storable parent, String id) {
+		super(parent, id);
+	}
+
 	/**
 	 * Does nothing...
 	 */
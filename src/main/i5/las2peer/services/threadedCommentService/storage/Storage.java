@@ -7,24 +7,261 @@ import i5.las2peer.api.persistency.EnvelopeNotFoundException;
 import i5.las2peer.api.persistency.EnvelopeOperationFailedException;
 import i5.las2peer.api.security.Agent;
 import i5.las2peer.api.security.GroupAgent;
+import i5.las2peer.services.threadedCommentService.metrics.Metrics;
+import i5.las2peer.services.threadedCommentService.metrics.RequestMetrics;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+/**
+ * Stores Storables in the las2peer network storage. A Storage is bound to the context it has been created in.
+ * 
+ * @author Jasper Nalbach
+ *
+ */
 public class Storage {
 
+	/**
+	 * The context used for all envelope operations. Captured on creation, so that batched requests can be run on
+	 * worker threads.
+	 */
+	private final Context context;
+
+	/**
+	 * Node-local cache, may be null.
+	 */
+	private final StorableCache cache;
+
+	/**
+	 * Node-local registry of owner groups, may be null.
+	 */
+	private final OwnerGroupRegistry groups;
+
+	/**
+	 * Compact format for envelope contents, may be null.
+	 */
+	private final StorableCodec codec;
+
+	/**
+	 * Node-local metrics, may be null.
+	 */
+	private final Metrics metrics;
+
+	/**
+	 * The request this Storage has been created for, may be null.
+	 */
+	private final RequestMetrics requestMetrics;
+
+	/**
+	 * Notified about written Storables, may be null.
+	 */
+	private final StorageListener listener;
+
+	/**
+	 * Node-local queue for concurrent writes of the same envelope, may be null.
+	 */
+	private final WriteCoalescer coalescer;
+
+	/**
+	 * Node-local pool for parallel envelope requests, may be null; requests are then run one after another.
+	 */
+	private final ExecutorService io;
+
+	/**
+	 * Maximum time to wait for a parallel envelope request, in seconds
+	 */
+	private static final long REQUEST_TIMEOUT = 30;
+
+	/**
+	 * Maximum number of attempts to write a Storable that is changed concurrently
+	 */
+	private static final int MAX_ATTEMPTS = 5;
+
+	/**
+	 * Maximum number of envelopes loaded and deleted at once when deleting a tree of Storables
+	 */
+	private static final int DELETE_BATCH_SIZE = 50;
+
+	/**
+	 * Storables saved while a batch is open, in the order of their first save. Null if no batch is open.
+	 */
+	private List<Storable> batch;
+
+	/**
+	 * Pointers detached while a Storable is cleaned up for deletion. Their targets are deleted afterwards, level by
+	 * level. Null if no deletion is being prepared.
+	 */
+	private List<StorablePointer<?>> detached;
+
+	public Storage() {
+		this(Context.get(), null, null, null);
+	}
+
+	/**
+	 * Creates a Storage that reads through the given cache, reuses owner groups and stores registered types in the
+	 * compact format.
+	 * 
+	 * @param context The context used for all envelope operations
+	 * @param cache Node-local cache shared between requests
+	 * @param groups Node-local registry of owner groups shared between requests
+	 * @param codec Compact format for envelope contents
+	 */
+	public Storage(Context context, StorableCache cache, OwnerGroupRegistry groups, StorableCodec codec) {
+		this(context, cache, groups, codec, null);
+	}
+
+	/**
+	 * Creates a Storage like {@link #Storage(Context, StorableCache, OwnerGroupRegistry, StorableCodec)} that also
+	 * records its operations. Envelope fetches are attributed to the request handled by the current thread.
+	 * 
+	 * @param context The context used for all envelope operations
+	 * @param cache Node-local cache shared between requests
+	 * @param groups Node-local registry of owner groups shared between requests
+	 * @param codec Compact format for envelope contents
+	 * @param metrics Node-local metrics
+	 */
+	public Storage(Context context, StorableCache cache, OwnerGroupRegistry groups, StorableCodec codec,
+			Metrics metrics) {
+		this(context, cache, groups, codec, metrics, null);
+	}
+
+	/**
+	 * Creates a Storage like {@link #Storage(Context, StorableCache, OwnerGroupRegistry, StorableCodec, Metrics)}
+	 * that notifies a listener whenever a Storable has been written.
+	 * 
+	 * @param context The context used for all envelope operations
+	 * @param cache Node-local cache shared between requests
+	 * @param groups Node-local registry of owner groups shared between requests
+	 * @param codec Compact format for envelope contents
+	 * @param metrics Node-local metrics
+	 * @param listener Listener for written Storables
+	 */
+	public Storage(Context context, StorableCache cache, OwnerGroupRegistry groups, StorableCodec codec,
+			Metrics metrics, StorageListener listener) {
+		this(context, cache, groups, codec, metrics, listener, null);
+	}
+
+	/**
+	 * Creates a Storage like
+	 * {@link #Storage(Context, StorableCache, OwnerGroupRegistry, StorableCodec, Metrics, StorageListener)} that
+	 * writes updates of Storables which allow it together with concurrent updates of other requests.
+	 * 
+	 * @param context The context used for all envelope operations
+	 * @param cache Node-local cache shared between requests
+	 * @param groups Node-local registry of owner groups shared between requests
+	 * @param codec Compact format for envelope contents
+	 * @param metrics Node-local metrics
+	 * @param listener Listener for written Storables
+	 * @param coalescer Node-local queue for concurrent writes
+	 */
+	public Storage(Context context, StorableCache cache, OwnerGroupRegistry groups, StorableCodec codec,
+			Metrics metrics, StorageListener listener, WriteCoalescer coalescer) {
+		this(context, cache, groups, codec, metrics, listener, coalescer, null);
+	}
+
+	/**
+	 * Creates a Storage like
+	 * {@link #Storage(Context, StorableCache, OwnerGroupRegistry, StorableCodec, Metrics, StorageListener, WriteCoalescer)}
+	 * that runs parallel envelope requests on a dedicated pool instead of the executor of the context, which also runs
+	 * the requests waiting for them.
+	 * 
+	 * @param context The context used for all envelope operations
+	 * @param cache Node-local cache shared between requests
+	 * @param groups Node-local registry of owner groups shared between requests
+	 * @param codec Compact format for envelope contents
+	 * @param metrics Node-local metrics
+	 * @param listener Listener for written Storables
+	 * @param coalescer Node-local queue for concurrent writes
+	 * @param io Node-local pool for parallel envelope requests
+	 */
+	public Storage(Context context, StorableCache cache, OwnerGroupRegistry groups, StorableCodec codec,
+			Metrics metrics, StorageListener listener, WriteCoalescer coalescer, ExecutorService io) {
+		this.context = context;
+		this.cache = cache;
+		this.groups = groups;
+		this.codec = codec;
+		this.metrics = metrics;
+		this.requestMetrics = RequestMetrics.current();
+		this.listener = listener;
+		this.coalescer = coalescer;
+		this.io = io;
+	}
+
+	/**
+	 * An operation on Storables that is run as a batch.
+	 */
+	public interface Operation {
+		void run() throws StorageException, PermissionException;
+	}
+
+	/**
+	 * Runs an operation as a batch. All Storables saved during the operation are written once when the operation has
+	 * finished, so a new object graph can be built in memory and stored with exactly one write per envelope. If the
+	 * operation fails, nothing is written. Batches can be nested; the outermost batch writes.
+	 * 
+	 * @param operation The operation
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	public void batch(Operation operation) throws StorageException, PermissionException {
+		if (batch != null) {
+			operation.run();
+			return;
+		}
+
+		batch = new ArrayList<>();
+		List<Storable> written;
+		try {
+			operation.run();
+		} finally {
+			written = batch;
+			batch = null;
+		}
+
+		for (Storable storable : written) {
+			setEnvelopeData(storable);
+		}
+	}
+
 	public <S extends Storable> S init(S content) throws StorageException, PermissionException {
 		if (content.getStorage() != null)
 			throw new StorageException("Storable is already initialized.");
 
 		content.setStorage(this);
-		content.init();
-		content.save();
-		content.setStored();
+		batch(() -> {
+			content.init();
+			content.save();
+		});
 
 		return content;
 	}
 
 	public void save(Storable content) throws StorageException, PermissionException {
+		if (batch != null) {
+			for (Storable s : batch) {
+				if (s == content)
+					return;
+			}
+			batch.add(content);
+			return;
+		}
+
 		setEnvelopeData(content);
 	}
 
@@ -35,86 +272,777 @@ public class Storage {
 		return result;
 	}
 
+	/**
+	 * Loads several Storables at once. All envelopes are requested in parallel, so the latency is determined by the
+	 * slowest request instead of the number of requests.
+	 * 
+	 * @param ids Ids of the Storables
+	 * @return Map from id to the loaded Storable
+	 * @throws StorageException
+	 * @throws PermissionException
+	 * @throws NotFoundException
+	 */
+	public Map<String, Storable> loadAll(Collection<String> ids) throws StorageException, PermissionException,
+			NotFoundException {
+		return loadAll(ids, false);
+	}
+
+	/**
+	 * Loads several Storables at once like {@link #loadAll(Collection)}, but skips Storables that do not exist or
+	 * cannot be read by the current agent.
+	 * 
+	 * @param ids Ids of the Storables
+	 * @return Map from id to the loaded Storable, only containing the available Storables
+	 * @throws StorageException
+	 */
+	public Map<String, Storable> loadAvailable(Collection<String> ids) throws StorageException {
+		try {
+			return loadAll(ids, true);
+		} catch (PermissionException | NotFoundException e) {
+			// not thrown when skipping unavailable Storables
+			throw new StorageException(e);
+		}
+	}
+
+	private Map<String, Storable> loadAll(Collection<String> ids, boolean skipUnavailable) throws StorageException,
+			PermissionException, NotFoundException {
+		Set<String> distinct = new LinkedHashSet<>(ids);
+		Map<String, Storable> result = new HashMap<>();
+
+		if (distinct.size() == 1) {
+			String id = distinct.iterator().next();
+			try {
+				result.put(id, load(id));
+			} catch (PermissionException | NotFoundException e) {
+				if (!skipUnavailable)
+					throw e;
+			}
+			return result;
+		}
+
+		Map<String, Future<Storable>> requests = new HashMap<>();
+		for (String id : distinct) {
+			requests.put(id, submit(() -> getEnvelopeData(id)));
+		}
+
+		try {
+			for (Map.Entry<String, Future<Storable>> request : requests.entrySet()) {
+				try {
+					Storable storable = await(request.getValue());
+					storable.setStorage(this);
+					result.put(request.getKey(), storable);
+				} catch (PermissionException | NotFoundException e) {
+					if (!skipUnavailable)
+						throw e;
+				}
+			}
+		} finally {
+			// the requests are not needed anymore if one of them failed
+			cancel(requests.values());
+		}
+
+		return result;
+	}
+
+	/**
+	 * Resolves the targets of all given pointers in one batch. Pointers that are already resolved are skipped.
+	 * 
+	 * @param pointers Pointers to resolve
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	public void fetch(Collection<? extends StorablePointer<?>> pointers) throws StorageException,
+			PermissionException {
+		List<String> ids = new ArrayList<>();
+		for (StorablePointer<?> pointer : pointers) {
+			if (!pointer.isResolved())
+				ids.add(pointer.getId());
+		}
+
+		if (ids.isEmpty())
+			return;
+
+		Map<String, Storable> loaded;
+		try {
+			loaded = loadAll(ids);
+		} catch (NotFoundException e) {
+			throw new StorageException("Target not found! Storage is inconsistent", e);
+		}
+
+		for (StorablePointer<?> pointer : pointers) {
+			if (!pointer.isResolved())
+				pointer.resolve(loaded.get(pointer.getId()));
+		}
+	}
+
+	/**
+	 * Resolves the targets of pointers like {@link #fetch(Collection)}, but leaves pointers unresolved whose targets
+	 * do not exist (anymore) or cannot be read by the current agent. For targets that may be replaced concurrently.
+	 * 
+	 * @param pointers Pointers to resolve
+	 * @throws StorageException
+	 */
+	public void fetchAvailable(Collection<? extends StorablePointer<?>> pointers) throws StorageException {
+		List<String> ids = new ArrayList<>();
+		for (StorablePointer<?> pointer : pointers) {
+			if (!pointer.isResolved())
+				ids.add(pointer.getId());
+		}
+
+		if (ids.isEmpty())
+			return;
+
+		Map<String, Storable> loaded = loadAvailable(ids);
+		for (StorablePointer<?> pointer : pointers) {
+			if (!pointer.isResolved() && loaded.containsKey(pointer.getId()))
+				pointer.resolve(loaded.get(pointer.getId()));
+		}
+	}
+
+	/**
+	 * Reads the latest version of a stored Storable from the network into it, bypassing the cache. Used to continue
+	 * with the latest state after an operation found the loaded state outdated.
+	 * 
+	 * @param storable A stored Storable of a registered type without unsaved updates
+	 * @throws StorageException
+	 * @throws PermissionException
+	 * @throws NotFoundException
+	 */
+	public void reload(Storable storable) throws StorageException, PermissionException, NotFoundException {
+		if (codec == null || !codec.supports(storable))
+			throw new StorageException("Storable " + storable.getId() + " cannot be reloaded");
+
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			Envelope env = context.requestEnvelope(storable.getId());
+			fetched();
+			if ("".equals(env.getContent()))
+				throw new NotFoundException("Storable " + storable.getId() + " has been deleted");
+			refresh(storable, decode(env.getContent()));
+			storable.written(env.getVersion());
+			success = true;
+		} catch (EnvelopeNotFoundException e) {
+			throw new NotFoundException(e);
+		} catch (EnvelopeAccessDeniedException e) {
+			throw new PermissionException(e);
+		} catch (EnvelopeOperationFailedException e) {
+			throw new StorageException(e);
+		} finally {
+			record("load", start, success);
+		}
+	}
+
+	/**
+	 * Runs an envelope request on the pool for parallel requests, or right away if there is none.
+	 * 
+	 * @param request The request
+	 * @return The pending request
+	 */
+	private Future<Storable> submit(Callable<Storable> request) {
+		if (io != null)
+			return io.submit(request);
+
+		FutureTask<Storable> task = new FutureTask<>(request);
+		task.run();
+		return task;
+	}
+
+	/**
+	 * Cancels requests that have not finished yet.
+	 * 
+	 * @param requests The requests
+	 */
+	private static void cancel(Collection<Future<Storable>> requests) {
+		for (Future<Storable> request : requests) {
+			request.cancel(true);
+		}
+	}
+
+	/**
+	 * Waits for a parallel envelope request. The request is cancelled if it takes longer than REQUEST_TIMEOUT or the
+	 * waiting thread is interrupted, e.g. because the request it handles has timed out.
+	 * 
+	 * @param request The request
+	 * @return The result of the request
+	 * @throws StorageException
+	 * @throws PermissionException
+	 * @throws NotFoundException
+	 */
+	private Storable await(Future<Storable> request) throws StorageException, PermissionException,
+			NotFoundException {
+		try {
+			return request.get(REQUEST_TIMEOUT, TimeUnit.SECONDS);
+		} catch (TimeoutException e) {
+			request.cancel(true);
+			throw new StorageException("Envelope request timed out after " + REQUEST_TIMEOUT + " seconds", e);
+		} catch (CancellationException e) {
+			throw new StorageException("Envelope request has been cancelled", e);
+		} catch (InterruptedException e) {
+			request.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new StorageException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof NotFoundException)
+				throw (NotFoundException) cause;
+			if (cause instanceof PermissionException)
+				throw (PermissionException) cause;
+			if (cause instanceof StorageException)
+				throw (StorageException) cause;
+			throw new StorageException(cause);
+		}
+	}
+
 	public void delete(String id) throws StorageException, PermissionException,
 			NotFoundException {
 		Storable storable = getEnvelopeData(id);
 		setEnvelopeData(storable, true);
 	}
 
-	private void setEnvelopeData(Storable storable) throws StorageException, PermissionException {
-		setEnvelopeData(storable, false);
+	/**
+	 * Deletes a Storable and all Storables it references through shared pointers. The Storable is cleaned up before
+	 * this method returns, so permission errors are thrown to the caller. The referenced Storables are then loaded level
+	 * by level and deleted from the deepest level up, see {@link #deleteTree(List, Deletion)}. They are not cleaned up, since the Storables
+	 * that reference them are deleted as well. The Storable itself is deleted last, so a deletion that has been
+	 * interrupted can be repeated; until then, reading the Storable may fail on Storables that are already gone.
+	 * 
+	 * @param storable The Storable
+	 * @param background True to delete on a worker thread after returning
+	 * @param listener Listener to notify of the progress, may be null
+	 * @return Progress of the deletion; done unless running in the background
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	public Deletion delete(Storable storable, boolean background, Deletion.Listener listener) throws StorageException,
+			PermissionException {
+		List<StorablePointer<?>> children = new ArrayList<>();
+		List<StorablePointer<?>> outer = detached;
+		detached = children;
+		try {
+			if (!storable.cleanup())
+				throw new StorageException("Storable cannot be deleted.");
+		} finally {
+			detached = outer;
+		}
+
+		Deletion deletion = new Deletion(storable.getId(), listener);
+		if (!background) {
+			deleteTree(children, deletion);
+			deleteEnvelope(storable.getId());
+			deletion.deleted(1);
+			deletion.done();
+			return deletion;
+		}
+
+		context.getExecutor().submit(() -> {
+			try {
+				deleteTree(children, deletion);
+				deleteEnvelope(storable.getId());
+				deletion.deleted(1);
+				deletion.done();
+			} catch (StorageException | PermissionException | RuntimeException e) {
+				e.printStackTrace();
+				deletion.failed(e);
+			}
+		});
+		return deletion;
 	}
 
-	private void setEnvelopeData(Storable storable, boolean delete) throws StorageException, PermissionException {
-		Serializable content;
-		if (delete) {
-			content = "";
-		} else {
-			content = storable;
-		}
-
-		Envelope env = null;
-		try { // existing
-			env = Context.get().requestEnvelope(storable.getId());
-			env.setContent(content);
-			Context.get().storeEnvelope(env);
-		} catch (EnvelopeNotFoundException e) {
-			if (!delete) { // create new
-				createNewEnvelope(storable);
+	/**
+	 * Deletes a Storable that has already been removed from everything referencing it, e.g. a tombstone, together
+	 * with all Storables it references. Nothing is cleaned up. The referenced Storables are deleted first and the
+	 * Storable itself last.
+	 * 
+	 * @param storable The Storable
+	 * @return Progress of the deletion, done
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	public Deletion reclaim(Storable storable) throws StorageException, PermissionException {
+		List<StorablePointer<?>> children = new ArrayList<>();
+		addReferenced(storable, children);
+
+		Deletion deletion = new Deletion(storable.getId(), null);
+		deleteTree(children, deletion);
+		deleteEnvelope(storable.getId());
+		deletion.deleted(1);
+		deletion.done();
+		return deletion;
+	}
+
+	/**
+	 * Collects a detached pointer while a Storable is cleaned up for deletion, so that its target is deleted together
+	 * with the other referenced Storables.
+	 * 
+	 * @param pointer The detached pointer
+	 * @return False, if no deletion is being prepared and the pointer has to be detached right away
+	 */
+	boolean deferDetach(StorableSharedPointer<?> pointer) {
+		if (detached == null)
+			return false;
+
+		detached.add(pointer);
+		return true;
+	}
+
+	/**
+	 * Deletes the targets of detached pointers and everything they reference, breadth-first. The targets are loaded
+	 * level by level in parallel batches, then the levels are deleted from the deepest one up, so an interrupted
+	 * deletion leaves no Storable behind that cannot be reached anymore. Only the ids of the collected levels are
+	 * kept. Targets that are still referenced by other pointers are only written with the decreased reference counter.
+	 * Targets that are gone already, e.g. deleted by an interrupted earlier attempt, are skipped.
+	 * 
+	 * @param pointers The detached pointers
+	 * @param deletion Progress of the deletion
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	private void deleteTree(List<StorablePointer<?>> pointers, Deletion deletion) throws StorageException,
+			PermissionException {
+		List<List<String>> levels = new ArrayList<>();
+		List<StorablePointer<?>> level = pointers;
+		while (!level.isEmpty()) {
+			List<String> ids = new ArrayList<>(level.size());
+			List<StorablePointer<?>> next = new ArrayList<>();
+			for (int from = 0; from < level.size(); from += DELETE_BATCH_SIZE) {
+				List<StorablePointer<?>> chunk = level.subList(from, Math.min(level.size(), from + DELETE_BATCH_SIZE));
+				fetchAvailable(chunk);
+
+				for (StorablePointer<?> pointer : chunk) {
+					if (!pointer.isResolved())
+						continue;
+
+					Storable target = pointer.get();
+					target.decReferenceCounter();
+					if (target.referenceCounter() > 0) {
+						setEnvelopeData(target);
+						continue;
+					}
+
+					ids.add(target.getId());
+					addReferenced(target, next);
+				}
+			}
+			levels.add(ids);
+			level = next;
+		}
+
+		for (int i = levels.size() - 1; i >= 0; i--) {
+			List<String> ids = levels.get(i);
+			for (int from = 0; from < ids.size(); from += DELETE_BATCH_SIZE) {
+				List<String> chunk = ids.subList(from, Math.min(ids.size(), from + DELETE_BATCH_SIZE));
+				deleteEnvelopes(chunk);
+				deletion.deleted(chunk.size());
+			}
+		}
+	}
+
+	/**
+	 * Adds the pointers of a Storable whose targets are deleted together with it.
+	 * 
+	 * @param storable The Storable
+	 * @param pointers List to add the shared pointers that have not been detached yet to
+	 */
+	private void addReferenced(Storable storable, List<StorablePointer<?>> pointers) {
+		for (StorablePointer<?> pointer : storable.pointers()) {
+			if (pointer instanceof StorableSharedPointer && ((StorableSharedPointer<?>) pointer).valid)
+				pointers.add(pointer);
+		}
+	}
+
+	/**
+	 * Deletes several envelopes in parallel.
+	 * 
+	 * @param ids Ids of the envelopes
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	private void deleteEnvelopes(List<String> ids) throws StorageException, PermissionException {
+		if (ids.size() == 1) {
+			deleteEnvelope(ids.get(0));
+			return;
+		}
+
+		List<Future<Storable>> requests = new ArrayList<>(ids.size());
+		for (String id : ids) {
+			requests.add(submit(() -> {
+				deleteEnvelope(id);
+				return null;
+			}));
+		}
+
+		try {
+			for (Future<Storable> request : requests) {
+				try {
+					await(request);
+				} catch (NotFoundException e) {
+					// not thrown when deleting
+					throw new StorageException(e);
+				}
 			}
+		} finally {
+			cancel(requests);
+		}
+	}
+
+	/**
+	 * Overwrites an envelope with empty content. Envelopes that do not exist anymore are skipped.
+	 * 
+	 * @param id Id of the envelope
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	private void deleteEnvelope(String id) throws StorageException, PermissionException {
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			Envelope env = context.requestEnvelope(id);
+			fetched();
+			env.setContent("");
+			context.storeEnvelope(env);
+			if (cache != null)
+				cache.invalidate(id);
+			success = true;
+		} catch (EnvelopeNotFoundException e) {
+			// already deleted
+			success = true;
 		} catch (EnvelopeAccessDeniedException e) {
 			throw new PermissionException(e);
 		} catch (EnvelopeOperationFailedException e) {
 			throw new StorageException(e);
+		} finally {
+			record("delete", start, success);
 		}
 	}
 
-	private void createNewEnvelope(Storable storable) throws StorageException, PermissionException {
+	private void setEnvelopeData(Storable storable) throws StorageException, PermissionException {
+		setEnvelopeData(storable, false);
+	}
+
+	private void setEnvelopeData(Storable storable, boolean delete) throws StorageException, PermissionException {
+		if (!delete && !storable.isStored()) {
+			createNewEnvelope(storable);
+			return;
+		}
+
+		if (!delete) {
+			if (coalescer != null && storable.hasUpdates() && storable.coalesceWrites())
+				coalescer.write(this, storable);
+			else
+				updateEnvelope(Collections.singletonList(storable));
+			return;
+		}
+
+		deleteEnvelope(storable.getId());
+	}
+
+	/**
+	 * Writes stored Storables of the same envelope. If the envelope has been changed since a Storable was read, the
+	 * updates applied to the Storable are applied again to the latest version, which is written instead and copied
+	 * into the Storable. Writes that are rejected because of a concurrent write are retried the same way. Storables
+	 * saved without updates overwrite concurrent changes.
+	 * 
+	 * Several Storables are only passed by the WriteCoalescer; their updates are applied to the latest version in
+	 * the given order and written once.
+	 * 
+	 * @param storables Copies of the same Storable, all with updates if more than one
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	void updateEnvelope(List<Storable> storables) throws StorageException, PermissionException {
+		Storable storable = storables.get(0);
+		long start = System.nanoTime();
+		boolean success = false;
 		try {
-			if (storable.getWriter().isEmpty())
-				throw new StorageException("Storable has no Agent with writing access!");
+			for (int attempt = 1;; attempt++) {
+				Envelope env = context.requestEnvelope(storable.getId());
+				fetched();
+
+				Storable target = storable;
+				if (storables.size() > 1 || storable.hasUpdates() && storable.getVersion() != 0
+						&& env.getVersion() != storable.getVersion()) {
+					target = decode(env.getContent());
+					target.setStorage(this);
+					for (Storable s : storables) {
+						s.applyUpdates(target);
+						if (metrics != null && s.getVersion() != 0 && env.getVersion() != s.getVersion())
+							metrics.conflict();
+					}
+				}
 
-			// create owner group using writer list
-			Agent[] ownerList = new Agent[storable.getWriter().size()];
-			for (int i = 0; i < ownerList.length; i++) {
+				env.setContent(encode(target));
 				try {
-					ownerList[i] = Context.get().requestAgent(storable.getWriter().get(i));
-				} catch (Exception e) {
-					ownerList[i] = Context.get().fetchAgent(storable.getWriter().get(i));
+					context.storeEnvelope(env);
+				} catch (EnvelopeOperationFailedException e) {
+					// another agent has written the same version first
+					if (!storable.hasUpdates())
+						throw new StorageException(e);
+					if (attempt >= MAX_ATTEMPTS)
+						throw new ConflictException("Storable " + storable.getId() + " could not be written after "
+								+ attempt + " attempts", e);
+					continue;
 				}
+
+				if (cache != null)
+					cache.invalidate(storable.getId());
+				for (Storable s : storables) {
+					if (target != s)
+						refresh(s, target);
+					s.written(env.getVersion());
+				}
+				if (metrics != null && storables.size() > 1)
+					metrics.coalesced(storables.size() - 1);
+				success = true;
+
+				if (listener != null)
+					listener.stored(storable);
+				return;
 			}
+		} catch (EnvelopeNotFoundException e) {
+			throw new StorageException("Stored envelope not found", e);
+		} catch (EnvelopeAccessDeniedException e) {
+			throw new PermissionException(e);
+		} catch (EnvelopeOperationFailedException e) {
+			throw new StorageException(e);
+		} finally {
+			record("save", start, success);
+		}
+	}
+
+	/**
+	 * Copies the state of a newer version into a Storable, so that the caller sees the written state. The Storable
+	 * stays attached to its own Storage.
+	 * 
+	 * @param storable The Storable
+	 * @param latest The newer version
+	 * @throws StorageException
+	 */
+	private void refresh(Storable storable, Storable latest) throws StorageException {
+		if (codec == null || !codec.supports(latest))
+			return;
+
+		try {
+			codec.decode(codec.encode(latest), storable);
+			storable.setStorage(storable.getStorage());
+		} catch (IOException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	private void createNewEnvelope(Storable storable) throws StorageException, PermissionException {
+		List<String> writer = storable.getWriter();
+		List<String> reader = storable.getReader();
+
+		if (writer.isEmpty())
+			throw new StorageException("Storable has no Agent with writing access!");
+
+		// permissions are fixed from now on; mark before the content is serialized
+		storable.setStored();
+
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			GroupAgent ownerGroup = getOwnerGroup(writer);
 
-			// create group + store it
-			GroupAgent ownerGroup = Context.get().createGroupAgent(ownerList);
-			Context.get().storeAgent(ownerGroup);
-			
 			// create envelope
-			Envelope envelope = Context.get().createEnvelope(storable.getId(), ownerGroup);
-			envelope.setContent(storable);
+			Envelope envelope = context.createEnvelope(storable.getId(), ownerGroup);
+			envelope.setContent(encode(storable));
 			
 			// add reader
-			for (String a : storable.getReader()) {
-				envelope.addReader(Context.get().fetchAgent(a));
+			for (String a : reader) {
+				envelope.addReader(context.fetchAgent(a));
 			}
 			
 			// store envelope
-			Context.get().storeEnvelope(envelope, ownerGroup);
+			context.storeEnvelope(envelope, ownerGroup);
+			storable.written(envelope.getVersion());
+			success = true;
 		} catch (Exception e) {
 			throw new StorageException(e);
+		} finally {
+			record("createNewEnvelope", start, success);
+		}
+
+		if (listener != null)
+			listener.stored(storable);
+	}
+
+	/**
+	 * Get an unlocked group agent consisting of the given writers. Reuses a registered group if possible, otherwise a
+	 * new group is created and registered.
+	 * 
+	 * @param writer Agent ids of the writers
+	 * @return Unlocked group agent
+	 * @throws Exception
+	 */
+	private GroupAgent getOwnerGroup(List<String> writer) throws Exception {
+		String key = OwnerGroupRegistry.key(writer);
+
+		if (groups != null) {
+			GroupAgent group = requestOwnerGroup(key, writer);
+			if (group != null)
+				return group;
+		}
+
+		// create owner group using writer list
+		Agent[] ownerList = new Agent[writer.size()];
+		for (int i = 0; i < ownerList.length; i++) {
+			try {
+				ownerList[i] = context.requestAgent(writer.get(i));
+			} catch (Exception e) {
+				ownerList[i] = context.fetchAgent(writer.get(i));
+			}
+		}
+
+		// create group + store it
+		GroupAgent ownerGroup = context.createGroupAgent(ownerList);
+		context.storeAgent(ownerGroup);
+
+		if (groups != null)
+			registerOwnerGroup(key, ownerGroup);
+
+		return ownerGroup;
+	}
+
+	/**
+	 * Looks up and unlocks the group this node has created for a member set.
+	 * 
+	 * @param key Key of the member set
+	 * @param writer Agent ids of the members
+	 * @return Unlocked group or null, if there is no usable group
+	 */
+	private GroupAgent requestOwnerGroup(String key, List<String> writer) {
+		String groupId = groups.get(key);
+		if (groupId == null)
+			return null;
+
+		try {
+			Agent agent = context.requestAgent(groupId);
+			if (!(agent instanceof GroupAgent))
+				return null;
+
+			GroupAgent group = (GroupAgent) agent;
+			if (group.getSize() != new LinkedHashSet<>(writer).size())
+				return null;
+			for (String member : writer) {
+				if (!group.hasMember(member))
+					return null;
+			}
+			return group;
+		} catch (Exception e) {
+			// not accessible for the current agent
+			return null;
+		}
+	}
+
+	/**
+	 * Registers a group created on this node for a member set.
+	 * 
+	 * @param key Key of the member set
+	 * @param group The group
+	 */
+	private void registerOwnerGroup(String key, GroupAgent group) {
+		groups.put(key, group.getIdentifier());
+	}
+
+	/**
+	 * Converts a Storable to envelope content. Registered types are stored in the compact format, all others using
+	 * Java serialization.
+	 * 
+	 * @param storable The Storable
+	 * @return Envelope content
+	 * @throws StorageException
+	 */
+	private Serializable encode(Storable storable) throws StorageException {
+		if (codec == null || !codec.supports(storable))
+			return storable;
+
+		try {
+			return codec.encode(storable);
+		} catch (IOException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * Converts envelope content to a Storable. Reads both formats.
+	 * 
+	 * @param content Envelope content
+	 * @return The Storable
+	 * @throws StorageException
+	 */
+	private Storable decode(Serializable content) throws StorageException {
+		if (content instanceof Storable)
+			return (Storable) content;
+
+		if (!(content instanceof byte[]) || codec == null)
+			throw new StorageException("Envelope does not contain a Storable");
+
+		try {
+			return codec.decode((byte[]) content);
+		} catch (IOException e) {
+			throw new StorageException(e);
 		}
 	}
 
 	private Storable getEnvelopeData(String id) throws StorageException,
 			PermissionException, NotFoundException {
+		long start = System.nanoTime();
+		boolean success = false;
+		String agentId = context.getMainAgent().getIdentifier();
+		if (cache != null) {
+			Storable cached = cache.get(id, agentId);
+			if (cached != null) {
+				if (metrics != null)
+					metrics.cacheHit();
+				record("load", start, true);
+				return cached;
+			}
+		}
+
 		try {
-			Envelope env = Context.get().requestEnvelope(id);
-			return (Storable) env.getContent();
+			Envelope env = context.requestEnvelope(id);
+			fetched();
+			if ("".equals(env.getContent()))
+				throw new NotFoundException("Storable " + id + " has been deleted");
+			Storable storable = decode(env.getContent());
+			storable.setStored();
+			storable.setVersion(env.getVersion());
+			if (cache != null && storable.cacheable())
+				cache.put(id, env.getVersion(), storable, agentId);
+			success = true;
+			return storable;
+		} catch (NotFoundException e) {
+			throw e;
 		} catch (EnvelopeNotFoundException e) {
 			throw new NotFoundException(e);
 		} catch (EnvelopeAccessDeniedException e) {
 			throw new PermissionException(e);
 		} catch (Exception e) {
 			throw new StorageException(e);
+		} finally {
+			record("load", start, success);
 		}
 	}
+
+	/**
+	 * Counts an envelope fetched from the network.
+	 */
+	private void fetched() {
+		if (metrics != null)
+			metrics.fetched(requestMetrics);
+	}
+
+	/**
+	 * Records the duration of a storage operation.
+	 * 
+	 * @param operation Name of the operation
+	 * @param start Start of the operation from System.nanoTime()
+	 * @param success False, if the operation failed
+	 */
+	private void record(String operation, long start, boolean success) {
+		if (metrics != null)
+			metrics.storage(operation, System.nanoTime() - start, success);
+	}
 }
@@ -0,0 +1,18 @@
+package i5.las2peer.services.threadedCommentService.storage;
+
+/**
+ * Gets notified about Storables written by a Storage. Called on the writing thread after the envelope has been stored,
+ * so implementations have to return quickly and must not throw.
+ * 
+ * @author Jasper Nalbach
+ *
+ */
+public interface StorageListener {
+
+	/**
+	 * A Storable has been written.
+	 * 
+	 * @param storable The written Storable
+	 */
+	void stored(Storable storable);
+}
@@ -0,0 +1,204 @@
+package i5.las2peer.services.threadedCommentService.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Node-local queue for concurrent writes of the same envelope. The first request that writes an envelope becomes the
+ * leader: it takes all writes queued for the envelope and writes their updates with one envelope update in its own
+ * context. Writes queued while the leader is writing are taken by the next leader. Every request waits until its own
+ * updates have been written and gets the result of that write.
+ *
+ * A leader only waits for a short window to collect further writes if the envelope is contended, i.e. if it took over
+ * from a previous leader or other writes are queued already. A single writer is written without delay.
+ *
+ * Only Storables that allow it are coalesced, see {@link Storable#coalesceWrites()}.
+ *
+ * @author Jasper Nalbach
+ *
+ */
+public class WriteCoalescer {
+
+	/**
+	 * A write waiting in the queue
+	 */
+	private static class Pending {
+		private final Storable storable;
+		private boolean leader;
+		private boolean handedOver;
+		private boolean done;
+		private Exception error;
+
+		private Pending(Storable storable) {
+			this.storable = storable;
+		}
+
+		/**
+		 * Waits until this write has been written or has to be written by the waiting request.
+		 */
+		private synchronized void await() {
+			boolean interrupted = false;
+			while (!done && !leader) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// the write is in the queue already, so wait for its result
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+		private synchronized void lead() {
+			leader = true;
+			handedOver = true;
+			notifyAll();
+		}
+
+		private synchronized void complete(Exception error) {
+			this.done = true;
+			this.error = error;
+			notifyAll();
+		}
+
+		private synchronized void result() throws StorageException, PermissionException {
+			if (error instanceof StorageException)
+				throw (StorageException) error;
+			if (error instanceof PermissionException)
+				throw (PermissionException) error;
+			if (error != null)
+				throw new StorageException(error);
+		}
+	}
+
+	/**
+	 * Writes queued for an envelope
+	 */
+	private static class Queue {
+		private final LinkedList<Pending> pending = new LinkedList<>();
+	}
+
+	/**
+	 * Maximum number of writes written together
+	 */
+	private final int maxBatch;
+
+	/**
+	 * Time a leader of a contended envelope waits for further writes, in milliseconds
+	 */
+	private final long window;
+
+	/**
+	 * Queues by envelope id; a queue exists while a leader is writing the envelope
+	 */
+	private final Map<String, Queue> queues = new HashMap<>();
+
+	/**
+	 *
+	 * @param maxBatch Maximum number of writes written together
+	 * @param window Time a leader of a contended envelope waits for further writes, in milliseconds; 0 to only write
+	 *            together the writes that are queued while the previous write is running
+	 */
+	public WriteCoalescer(int maxBatch, long window) {
+		this.maxBatch = maxBatch;
+		this.window = window;
+	}
+
+	/**
+	 * Writes the updates of a stored Storable, together with concurrent updates of the same envelope.
+	 *
+	 * @param storage The Storage of the Storable, used if this request becomes the leader
+	 * @param storable The Storable with updates
+	 * @throws StorageException
+	 * @throws PermissionException
+	 */
+	void write(Storage storage, Storable storable) throws StorageException, PermissionException {
+		Pending pending = new Pending(storable);
+		Queue queue;
+		synchronized (queues) {
+			queue = queues.get(storable.getId());
+			if (queue == null) {
+				queue = new Queue();
+				queues.put(storable.getId(), queue);
+				pending.leader = true;
+			}
+			queue.pending.add(pending);
+		}
+
+		pending.await();
+		if (!pending.done)
+			lead(storage, storable.getId(), queue);
+
+		pending.result();
+	}
+
+	/**
+	 * Writes the queued writes of an envelope and hands the queue to the next leader.
+	 *
+	 * @param storage Storage of the leader
+	 * @param id Id of the envelope
+	 * @param queue The queue; the leader is its first write
+	 */
+	private void lead(Storage storage, String id, Queue queue) {
+		boolean contended;
+		synchronized (queues) {
+			contended = queue.pending.getFirst().handedOver || queue.pending.size() > 1;
+		}
+
+		if (window > 0 && contended) {
+			try {
+				Thread.sleep(window);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		List<Pending> batch = new ArrayList<>();
+		synchronized (queues) {
+			while (!queue.pending.isEmpty() && batch.size() < maxBatch) {
+				batch.add(queue.pending.removeFirst());
+			}
+		}
+
+		List<Storable> storables = new ArrayList<>(batch.size());
+		for (Pending p : batch) {
+			storables.add(p.storable);
+		}
+
+		Exception error = new StorageException("Coalesced write of " + id + " failed");
+		try {
+			storage.updateEnvelope(storables);
+			error = null;
+		} catch (StorageException | PermissionException | RuntimeException e) {
+			error = e;
+		} finally {
+			for (Pending p : batch) {
+				p.complete(error);
+			}
+
+			synchronized (queues) {
+				if (queue.pending.isEmpty())
+					queues.remove(id);
+				else
+					queue.pending.getFirst().lead();
+			}
+		}
+	}
+
+	/**
+	 * Get the number of writes waiting for an envelope, not including writes being written.
+	 *
+	 * @param id Id of the envelope
+	 * @return Number of queued writes
+	 */
+	int getQueued(String id) {
+		synchronized (queues) {
+			Queue queue = queues.get(id);
+			return queue == null ? 0 : queue.pending.size();
+		}
+	}
+}
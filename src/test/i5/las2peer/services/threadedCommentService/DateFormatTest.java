@@ -0,0 +1,25 @@
+package i5.las2peer.services.threadedCommentService;
+
+import static org.junit.Assert.assertEquals;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.junit.Test;
+
+/**
+ * Tests the date format of serialized comments. Its allocation is compared with the former per-comment
+ * SimpleDateFormat by DateFormatBenchmark.
+ *
+ */
+public class DateFormatTest {
+
+	@Test
+	public void testFormat() {
+		Date date = new Date(1500000000000L);
+
+		assertEquals(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(date),
+				ThreadedCommentService._serializeDate(date, false));
+		assertEquals(1500000000000L, ThreadedCommentService._serializeDate(date, true));
+	}
+}
@@ -2,6 +2,7 @@ package i5.las2peer.services.threadedCommentService;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -9,6 +10,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -55,6 +59,8 @@ public class ServiceTest {
 	private static final String mainPath = "comments/";
 	private static final String mainPathManager = "commentmanagement/";
 
+	private static final int CONCURRENT_COMMENTS = 8;
+
 	private static int getUnusedPort() {
 		int port = HTTP_PORT;
 		try {
@@ -206,6 +212,31 @@ public class ServiceTest {
 
 			System.out.println("GetCommentThread: " + result4.getResponse().trim());
 
+			// get comment thread page by page
+			ClientResponse resultPaging = cEve.sendRequest("POST", mainPath + "threads/" + threadId, "comment3_content");
+			assertEquals(201, resultPaging.getHttpCode());
+
+			ClientResponse resultPage1 = cAdam.sendRequest("GET", mainPath + "threads/" + threadId + "?limit=1", "");
+			assertEquals(200, resultPage1.getHttpCode());
+			assertTrue(resultPage1.getResponse().contains("comment1_content"));
+			assertFalse(resultPage1.getResponse().contains("comment3_content"));
+			assertTrue(resultPage1.getResponse().contains("\"nextCursor\":1"));
+
+			ClientResponse resultPage2 = cAdam.sendRequest("GET",
+					mainPath + "threads/" + threadId + "?limit=1&cursor=1", "");
+			assertEquals(200, resultPage2.getHttpCode());
+			assertFalse(resultPage2.getResponse().contains("comment1_content"));
+			assertTrue(resultPage2.getResponse().contains("comment3_content"));
+			assertFalse(resultPage2.getResponse().contains("nextCursor"));
+
+			System.out.println("GetCommentThread (Paging): " + resultPage2.getResponse().trim());
+
+			// get metrics
+			ClientResponse resultMetrics = cAdam.sendRequest("GET", mainPath + "metrics", "");
+			assertEquals(200, resultMetrics.getHttpCode());
+			assertTrue(resultMetrics.getResponse().contains("RootResource.getCommentThread"));
+			assertTrue(resultMetrics.getResponse().contains("envelopeFetches"));
+
 			// get comment thread without permission
 			ClientResponse result5 = cKlaus.sendRequest("GET", mainPath + "threads/" + threadId, "");
 			System.out.println(result5.getResponse().trim());
@@ -269,6 +300,14 @@ public class ServiceTest {
 
 			System.out.println("GetComment: " + result12.getResponse().trim());
 
+			// get several comments at once
+			ClientResponse resultBulk = cAdam.sendRequest("GET",
+					mainPath + "comment?ids=" + commentId + "," + replyId + ",unknown", "");
+			assertEquals(200, resultBulk.getHttpCode());
+			assertTrue(resultBulk.getResponse().contains("comment1_content_edited"));
+			assertTrue(resultBulk.getResponse().contains("comment2_content"));
+			assertTrue(resultBulk.getResponse().contains("\"missing\":[\"unknown\"]"));
+
 			// get replys of comment
 			ClientResponse result13 = cAdam.sendRequest("GET", mainPath + "comment/" + commentId + "/comments", "");
 			assertEquals(200, result13.getHttpCode());
@@ -277,6 +316,38 @@ public class ServiceTest {
 
 			System.out.println("GetCommentReplys: " + result13.getResponse().trim());
 
+			// get comment thread including replies
+			ClientResponse resultDepth = cAdam.sendRequest("GET", mainPath + "threads/" + threadId + "?depth=2", "");
+			assertEquals(200, resultDepth.getHttpCode());
+			assertTrue(resultDepth.getResponse().contains("\"replies\""));
+			assertTrue(resultDepth.getResponse().contains("comment2_content"));
+			assertFalse(resultDepth.getResponse().contains("evil"));
+
+			ClientResponse resultNoDepth = cAdam.sendRequest("GET", mainPath + "threads/" + threadId, "");
+			assertEquals(200, resultNoDepth.getHttpCode());
+			assertFalse(resultNoDepth.getResponse().contains("comment2_content"));
+
+			// get changes of comment thread
+			ClientResponse resultChanges = cAdam.sendRequest("GET", mainPath + "threads/" + threadId + "/changes", "");
+			assertEquals(200, resultChanges.getHttpCode());
+			assertTrue(resultChanges.getResponse().contains("\"complete\":true"));
+			assertTrue(resultChanges.getResponse().contains("\"type\":\"add\""));
+			assertTrue(resultChanges.getResponse().contains("\"parent\":\"" + commentId + "\""));
+			assertTrue(resultChanges.getResponse().contains("comment2_content"));
+
+			System.out.println("GetCommentThreadChanges: " + resultChanges.getResponse().trim());
+
+			ClientResponse resultNoChanges = cAdam.sendRequest("GET",
+					mainPath + "threads/" + threadId + "/changes?since=1000", "");
+			assertEquals(200, resultNoChanges.getHttpCode());
+			assertTrue(resultNoChanges.getResponse().contains("\"changes\":[]"));
+
+			// get changes as server-sent events; returns immediately as there are unknown changes
+			ClientResponse resultEvents = cAdam.sendRequest("GET", mainPath + "threads/" + threadId + "/events", "");
+			assertEquals(200, resultEvents.getHttpCode());
+			assertTrue(resultEvents.getResponse().contains("event: changes"));
+			assertTrue(resultEvents.getResponse().contains("comment2_content"));
+
 			// delete comment without permissions
 			ClientResponse result14 = cAbel.sendRequest("DELETE", mainPath + "comment/" + replyId, "");
 			assertEquals(403, result14.getHttpCode());
@@ -291,6 +362,10 @@ public class ServiceTest {
 
 			System.out.println("DeleteComment: " + result15.getResponse().trim());
 
+			// deleted comment is hidden at once
+			ClientResponse result16 = cAdam.sendRequest("GET", mainPath + "comment/" + replyId, "");
+			assertEquals(404, result16.getHttpCode());
+
 			// delete comment thread
 			ClientResponse result17 = cAdam.sendRequest("DELETE", mainPathManager + "threads/" + threadId, "");
 			assertEquals(200, result17.getHttpCode());
@@ -303,4 +378,117 @@ public class ServiceTest {
 		}
 	}
 
+	/**
+	 * Test that concurrent comments to the same thread are all kept
+	 * 
+	 */
+	@Test
+	public void testConcurrentComments() {
+		try {
+			String endpoint = connector.getHttpEndpoint();
+			MiniClient cAdam = new MiniClient();
+			cAdam.setConnectorEndpoint(endpoint);
+			cAdam.setLogin(agentAdam.getIdentifier(), passAdam);
+
+			ClientResponse result = cAdam.sendRequest("POST", mainPathManager + "threads",
+					"{owner:" + agentAdam.getLoginName() + ",writer:" + agentEve.getLoginName() + ",reader:"
+							+ agentAbel.getLoginName() + "}");
+			assertEquals(201, result.getHttpCode());
+			String threadId = result.getResponse().trim();
+
+			// post from several clients at once
+			List<Thread> threads = new ArrayList<>();
+			List<Integer> codes = Collections.synchronizedList(new ArrayList<>());
+			for (int i = 0; i < CONCURRENT_COMMENTS; i++) {
+				String body = "concurrent_comment_" + i;
+				threads.add(new Thread(() -> {
+					MiniClient client = new MiniClient();
+					client.setConnectorEndpoint(endpoint);
+					client.setLogin(agentEve.getIdentifier(), passEve);
+					codes.add(client.sendRequest("POST", mainPath + "threads/" + threadId, body).getHttpCode());
+				}));
+			}
+			for (Thread thread : threads) {
+				thread.start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+
+			assertEquals(CONCURRENT_COMMENTS, codes.size());
+			for (int code : codes) {
+				assertEquals(201, code);
+			}
+
+			ClientResponse resultThread = cAdam.sendRequest("GET", mainPath + "threads/" + threadId, "");
+			assertEquals(200, resultThread.getHttpCode());
+			for (int i = 0; i < CONCURRENT_COMMENTS; i++) {
+				assertTrue(resultThread.getResponse().contains("concurrent_comment_" + i + "\""));
+			}
+
+			System.out.println("GetCommentThread (Concurrent): " + resultThread.getResponse().trim());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception: " + e);
+		}
+	}
+
+	/**
+	 * Test deleting a thread in the background and polling the deletion job
+	 * 
+	 */
+	@Test
+	public void testBackgroundDeletion() {
+		try {
+			MiniClient cAdam = new MiniClient();
+			cAdam.setConnectorEndpoint(connector.getHttpEndpoint());
+			cAdam.setLogin(agentAdam.getIdentifier(), passAdam);
+
+			ClientResponse result = cAdam.sendRequest("POST", mainPathManager + "threads",
+					"{owner:" + agentAdam.getLoginName() + ",writer:" + agentEve.getLoginName() + ",reader:"
+							+ agentAbel.getLoginName() + "}");
+			assertEquals(201, result.getHttpCode());
+			String threadId = result.getResponse().trim();
+
+			ClientResponse resultComment = cAdam.sendRequest("POST", mainPath + "threads/" + threadId,
+					"background_comment");
+			assertEquals(201, resultComment.getHttpCode());
+			String commentId = resultComment.getResponse().trim();
+
+			ClientResponse resultReply = cAdam.sendRequest("POST", mainPath + "comment/" + commentId + "/comments",
+					"background_reply");
+			assertEquals(201, resultReply.getHttpCode());
+
+			// delete in the background
+			ClientResponse resultDelete = cAdam.sendRequest("DELETE",
+					mainPathManager + "threads/" + threadId + "?background=true", "");
+			assertEquals(202, resultDelete.getHttpCode());
+			String jobId = resultDelete.getResponse().trim();
+
+			// poll the job until the thread and its comments are deleted
+			String status = "";
+			for (int i = 0; i < 100 && !status.contains("\"DONE\""); i++) {
+				ClientResponse resultStatus = cAdam.sendRequest("GET", mainPathManager + "deletions/" + jobId, "");
+				assertEquals(200, resultStatus.getHttpCode());
+				status = resultStatus.getResponse();
+				Thread.sleep(100);
+			}
+			assertTrue(status.contains("\"DONE\""));
+
+			ClientResponse resultThread = cAdam.sendRequest("GET", mainPath + "threads/" + threadId, "");
+			assertNotEquals(200, resultThread.getHttpCode());
+
+			ClientResponse resultComments = cAdam.sendRequest("GET", mainPath + "comment/" + commentId, "");
+			assertNotEquals(200, resultComments.getHttpCode());
+
+			ClientResponse resultUnknown = cAdam.sendRequest("GET", mainPathManager + "deletions/unknown", "");
+			assertEquals(404, resultUnknown.getHttpCode());
+
+			System.out.println("DeleteThread (Background): " + status.trim());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception: " + e);
+		}
+	}
+
 }
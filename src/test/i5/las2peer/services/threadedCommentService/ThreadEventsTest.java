@@ -0,0 +1,71 @@
+package i5.las2peer.services.threadedCommentService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests the notification of clients waiting for changes.
+ *
+ */
+public class ThreadEventsTest {
+
+	@Test
+	public void testNotifyOnce() {
+		ThreadEvents events = new ThreadEvents(10);
+		AtomicInteger notified = new AtomicInteger();
+		ThreadEvents.Subscription subscription = new ThreadEvents.Subscription("log", 3, notified::incrementAndGet);
+
+		assertTrue(events.subscribe(subscription));
+		assertEquals(1, events.getSubscriberCount());
+
+		// known change and other thread
+		events.publish("log", 3);
+		events.publish("other", 10);
+		assertEquals(0, notified.get());
+
+		events.publish("log", 4);
+		events.publish("log", 5);
+		assertEquals(1, notified.get());
+		assertEquals(0, events.getSubscriberCount());
+		assertFalse(events.cancel(subscription));
+	}
+
+	@Test
+	public void testChangeBeforeSubscribe() {
+		ThreadEvents events = new ThreadEvents(10);
+		AtomicInteger notified = new AtomicInteger();
+
+		events.publish("log", 4);
+		assertTrue(events.subscribe(new ThreadEvents.Subscription("log", 3, notified::incrementAndGet)));
+		assertEquals(1, notified.get());
+
+		assertTrue(events.subscribe(new ThreadEvents.Subscription("log", 4, notified::incrementAndGet)));
+		assertEquals(1, notified.get());
+	}
+
+	@Test
+	public void testLimitAndCancel() {
+		ThreadEvents events = new ThreadEvents(2);
+		AtomicInteger notified = new AtomicInteger();
+		ThreadEvents.Subscription first = new ThreadEvents.Subscription("log", 0, notified::incrementAndGet);
+
+		assertTrue(events.subscribe(first));
+		assertTrue(events.subscribe(new ThreadEvents.Subscription("log", 0, notified::incrementAndGet)));
+		assertFalse(events.subscribe(new ThreadEvents.Subscription("log", 0, notified::incrementAndGet)));
+		assertEquals(2, events.getSubscriberCount());
+
+		assertTrue(events.cancel(first));
+		assertFalse(events.cancel(first));
+		assertEquals(1, events.getSubscriberCount());
+
+		events.publish("log", 1);
+		assertEquals(1, notified.get());
+		assertEquals(0, events.getSubscriberCount());
+	}
+
+}
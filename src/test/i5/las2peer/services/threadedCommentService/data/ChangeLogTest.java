@@ -0,0 +1,215 @@
+package i5.las2peer.services.threadedCommentService.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import i5.las2peer.services.threadedCommentService.storage.MemoryContext;
+import i5.las2peer.services.threadedCommentService.storage.StorableCodec;
+import i5.las2peer.services.threadedCommentService.storage.Storage;
+
+/**
+ * Tests the segments of a change log
+ *
+ */
+public class ChangeLogTest {
+
+	private final Permissions permissions = new Permissions("owner", "writer", "reader");
+	private final MemoryContext context = new MemoryContext("agent");
+	private final Storage storage = context.storage(StorableTypes.codec());
+
+	private ChangeLog log;
+	private Comments comments;
+
+	@Before
+	public void setUp() throws Exception {
+		log = storage.init(new ChangeLog(permissions));
+		comments = storage.init(new Comments(permissions, null, log));
+	}
+
+	private ChangeLog load() throws Exception {
+		return (ChangeLog) context.storage(StorableTypes.codec()).load(log.getId());
+	}
+
+	private Comment addComment() throws Exception {
+		Comment comment = new Comment("agent", new Date(), "body");
+		comments.addComment(comment);
+		return comment;
+	}
+
+	private static List<String> commentIds(ChangeSet changes) {
+		List<String> ids = new ArrayList<>();
+		for (Change c : changes.getChanges()) {
+			ids.add(c.getCommentId());
+		}
+		return ids;
+	}
+
+	@Test
+	public void testSegments() throws Exception {
+		Comment comment = addComment();
+		int stores = context.getStoreCount();
+		int count = 2 * ChangeLog.SEGMENT_SIZE + 50;
+		for (int i = 1; i < count; i++) {
+			log.add(Change.Type.EDIT, comment, null);
+		}
+		// each change writes its segment; the log is only written when a segment is added
+		assertEquals(count - 1 + 2 * 2, context.getStoreCount() - stores);
+
+		ChangeSet all = load().getChanges(0);
+		assertTrue(all.isComplete());
+		assertEquals(count, all.getChanges().size());
+		assertEquals(Change.Type.ADD, all.getChanges().get(0).getType());
+		long previous = 0;
+		for (Change c : all.getChanges()) {
+			assertTrue(c.getSequence() > previous);
+			previous = c.getSequence();
+		}
+		assertEquals(previous, all.getSequence());
+
+		// a client in the middle of the second segment only gets the newer changes
+		long since = all.getChanges().get(ChangeLog.SEGMENT_SIZE + 20).getSequence();
+		ChangeSet newer = load().getChanges(since);
+		assertTrue(newer.isComplete());
+		assertEquals(count - ChangeLog.SEGMENT_SIZE - 21, newer.getChanges().size());
+		assertEquals(all.getChanges().subList(ChangeLog.SEGMENT_SIZE + 21, count).get(0).getSequence(),
+				newer.getChanges().get(0).getSequence());
+
+		ChangeSet none = load().getChanges(all.getSequence());
+		assertTrue(none.isComplete());
+		assertTrue(none.getChanges().isEmpty());
+	}
+
+	@Test
+	public void testCapacity() throws Exception {
+		Comment comment = addComment();
+		for (int i = 0; i < ChangeLog.CAPACITY + 3 * ChangeLog.SEGMENT_SIZE; i++) {
+			log.add(Change.Type.EDIT, comment, null);
+		}
+
+		ChangeLog loaded = load();
+		ChangeSet kept = loaded.getChanges(0);
+		assertFalse(kept.isComplete());
+		assertEquals(ChangeLog.CAPACITY - ChangeLog.SEGMENT_SIZE + 1, kept.getChanges().size());
+
+		// dropped segments have been deleted
+		int segments = ChangeLog.CAPACITY / ChangeLog.SEGMENT_SIZE;
+		assertEquals(segments, loaded.pointers().size());
+		assertEquals(2 + 2 + 2 + segments, context.getEnvelopeCount());
+
+		long since = kept.getChanges().get(kept.getChanges().size() - 5).getSequence();
+		ChangeSet latest = loaded.getChanges(since);
+		assertTrue(latest.isComplete());
+		assertEquals(4, latest.getChanges().size());
+
+		ChangeSet byDate = loaded.getChanges(new Date(0));
+		assertFalse(byDate.isComplete());
+		assertEquals(kept.getChanges().size(), byDate.getChanges().size());
+	}
+
+	@Test
+	public void testVotes() throws Exception {
+		Comment first = addComment();
+		Comment second = addComment();
+		long added = load().getChanges(0).getSequence();
+
+		for (int i = 0; i < 50; i++) {
+			log.add(Change.Type.VOTE, first, null);
+			if (i == 10)
+				log.add(Change.Type.VOTE, second, null);
+		}
+
+		// only the latest vote of each comment is kept
+		ChangeSet all = load().getChanges(0);
+		assertEquals(4, all.getChanges().size());
+		List<String> ids = commentIds(all);
+		assertEquals(first.getId(), ids.get(0));
+		assertEquals(second.getId(), ids.get(2));
+		assertEquals(first.getId(), ids.get(3));
+		assertEquals(all.getSequence(), all.getChanges().get(3).getSequence());
+
+		// a client that has seen earlier votes still gets the latest vote
+		ChangeSet votes = load().getChanges(added + 20);
+		assertEquals(1, votes.getChanges().size());
+		assertEquals(first.getId(), votes.getChanges().get(0).getCommentId());
+		assertTrue(votes.isComplete());
+	}
+
+	@Test
+	public void testConcurrentSegment() throws Exception {
+		Comment comment = addComment();
+		for (int i = 1; i < ChangeLog.SEGMENT_SIZE; i++) {
+			log.add(Change.Type.EDIT, comment, null);
+		}
+
+		// both copies have seen the full segment and add a new one
+		ChangeLog first = load();
+		ChangeLog second = load();
+		ChangeLogSegment winner = first.getTailSegment();
+		int envelopes = context.getEnvelopeCount();
+		ChangeLogSegment loser = second.getTailSegment();
+
+		assertEquals(winner.getId(), loser.getId());
+		assertEquals(envelopes, context.getEnvelopeCount());
+		assertEquals(2, load().pointers().size());
+
+		loser.add(Change.Type.EDIT, comment, null);
+		winner.add(Change.Type.EDIT, comment, null);
+		assertEquals(ChangeLog.SEGMENT_SIZE + 2, load().getChanges(0).getChanges().size());
+	}
+
+	@Test
+	public void testLegacyChanges() throws Exception {
+		Comment comment = addComment();
+
+		// log with all changes stored in the log itself
+		ByteArrayOutputStream fields = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(fields);
+		permissions.write(out);
+		StorableCodec.writeVarLong(out, 4);
+		StorableCodec.writeVarInt(out, 3);
+		for (int i = 1; i < 4; i++) {
+			new Change(i, Change.Type.EDIT, "old", null, i).write(out);
+		}
+		context.putContent("log", encode("log", 1, fields.toByteArray()));
+
+		ChangeLog legacy = (ChangeLog) storage.load("log");
+		ChangeSet old = legacy.getChanges(1);
+		assertTrue(old.isComplete());
+		assertEquals(2, old.getChanges().size());
+		assertEquals(3, old.getSequence());
+
+		legacy.add(Change.Type.EDIT, comment, null);
+		ChangeLog loaded = (ChangeLog) context.storage(StorableTypes.codec()).load("log");
+		ChangeSet all = loaded.getChanges(0);
+		assertTrue(all.isComplete());
+		assertEquals(4, all.getChanges().size());
+		assertEquals(comment.getId(), all.getChanges().get(3).getCommentId());
+		assertEquals(4, all.getSequence());
+		assertEquals(1, loaded.getChanges(3).getChanges().size());
+	}
+
+	private static byte[] encode(String id, int version, byte[] fields) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(0xC5);
+		out.writeByte(6);
+		StorableCodec.writeVarInt(out, version);
+		StorableCodec.writeString(out, id);
+		out.writeLong(0);
+		out.writeInt(1);
+		StorableCodec.writeVarInt(out, fields.length);
+		out.write(fields);
+		return bytes.toByteArray();
+	}
+}
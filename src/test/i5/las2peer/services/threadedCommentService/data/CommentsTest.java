@@ -0,0 +1,375 @@
+package i5.las2peer.services.threadedCommentService.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import i5.las2peer.services.threadedCommentService.storage.MemoryContext;
+import i5.las2peer.services.threadedCommentService.storage.StorableCodec;
+import i5.las2peer.services.threadedCommentService.storage.StorablePointer;
+import i5.las2peer.services.threadedCommentService.storage.StorableSharedPointer;
+import i5.las2peer.services.threadedCommentService.storage.Storage;
+
+/**
+ * Tests the chunks of a comment list
+ *
+ */
+public class CommentsTest {
+
+	private final Permissions permissions = new Permissions("owner", "writer", "reader");
+	private final MemoryContext context = new MemoryContext("agent");
+	private final Storage storage = context.storage(StorableTypes.codec());
+
+	private Comments comments;
+
+	@Before
+	public void setUp() throws Exception {
+		comments = storage.init(new Comments(permissions));
+	}
+
+	private Comments load(String id) throws Exception {
+		return (Comments) context.storage(StorableTypes.codec()).load(id);
+	}
+
+	private List<String> addComments(Comments container, int count) throws Exception {
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			Comment comment = new Comment("agent", new Date(), "comment " + i);
+			container.addComment(comment);
+			ids.add(comment.getId());
+		}
+		return ids;
+	}
+
+	/**
+	 * Reads all comments page by page.
+	 */
+	private static List<String> readPages(Comments container, int limit) throws Exception {
+		List<String> ids = new ArrayList<>();
+		Long cursor = 0L;
+		while (cursor != null) {
+			CommentPage page = container.getComments(cursor, limit);
+			assertTrue(page.getComments().size() <= limit);
+			for (Comment c : page.getComments()) {
+				ids.add(c.getId());
+			}
+			cursor = page.getNextCursor();
+		}
+		return ids;
+	}
+
+	@Test
+	public void testPaging() throws Exception {
+		int count = 2 * Comments.CHUNK_SIZE + 50;
+		List<String> added = addComments(comments, count);
+
+		Comments loaded = load(comments.getId());
+		assertEquals(3, loaded.getChunkPointers().size());
+		assertEquals(count, loaded.getCommentCount());
+		assertEquals(added, readPages(loaded, 30));
+		assertEquals(added, ids(loaded.getComments(0, 0)));
+
+		// a page can be loaded in parts
+		CommentPage page = load(comments.getId()).getComments(0, 0);
+		assertEquals(count, page.size());
+		List<String> parts = new ArrayList<>();
+		for (int i = 0; i < page.size(); i += 20) {
+			for (Comment c : page.getComments(i, Math.min(i + 20, page.size()))) {
+				parts.add(c.getId());
+			}
+		}
+		assertEquals(added, parts);
+	}
+
+	@Test
+	public void testRollover() throws Exception {
+		addComments(comments, Comments.CHUNK_SIZE);
+		assertEquals(1, comments.getChunkPointers().size());
+
+		int stores = context.getStoreCount();
+		addComments(comments, 1);
+		assertEquals(2, comments.getChunkPointers().size());
+		// comment, its Votes and Comments, the new chunk: created, then appended to, and the container
+		assertEquals(6, context.getStoreCount() - stores);
+
+		stores = context.getStoreCount();
+		addComments(comments, 1);
+		assertEquals(4, context.getStoreCount() - stores);
+	}
+
+	@Test
+	public void testCursorAcrossChunks() throws Exception {
+		List<String> added = addComments(comments, Comments.CHUNK_SIZE + 40);
+		Comments loaded = load(comments.getId());
+
+		CommentPage first = loaded.getComments(0, Comments.CHUNK_SIZE - 10);
+		assertEquals(added.subList(0, Comments.CHUNK_SIZE - 10), ids(first));
+
+		// the page starts in the first chunk and ends in the second
+		CommentPage second = loaded.getComments(first.getNextCursor(), 30);
+		assertEquals(added.subList(Comments.CHUNK_SIZE - 10, Comments.CHUNK_SIZE + 20), ids(second));
+
+		// the cursor of the next page points into the second chunk
+		assertTrue(second.getNextCursor() >= Comments.SEQUENCE_SPAN);
+		CommentPage third = load(comments.getId()).getComments(second.getNextCursor(), 30);
+		assertEquals(added.subList(Comments.CHUNK_SIZE + 20, Comments.CHUNK_SIZE + 40), ids(third));
+		assertNull(third.getNextCursor());
+	}
+
+	@Test
+	public void testLegacyEntries() throws Exception {
+		// container with comments stored in the container itself, before chunks were introduced
+		List<Comment> legacy = new ArrayList<>();
+		ByteArrayOutputStream fields = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(fields);
+		permissions.write(out);
+		StorableCodec.writePointer(out, null);
+		StorableCodec.writeVarLong(out, 5);
+		StorableCodec.writeVarInt(out, 5);
+		for (int i = 0; i < 5; i++) {
+			Comment comment = new Comment("agent", new Date(), "legacy " + i);
+			comment.setPermissions(permissions);
+			storage.init(comment);
+			legacy.add(comment);
+
+			StorableCodec.writeVarLong(out, i);
+			out.writeByte(1);
+			StorableCodec.writeString(out, comment.getId());
+			StorableCodec.writeVarInt(out, 1);
+			StorableCodec.writeVarInt(out, 1);
+			StorableCodec.writeVarInt(out, 1);
+		}
+		StorableCodec.writePointer(out, null);
+		context.putContent("comments", encode("comments", 2, fields.toByteArray()));
+
+		Comments container = load("comments");
+		List<String> added = addComments(container, Comments.CHUNK_SIZE + 10);
+
+		List<String> expected = new ArrayList<>();
+		for (Comment c : legacy) {
+			expected.add(c.getId());
+		}
+		expected.addAll(added);
+
+		Comments loaded = load("comments");
+		assertEquals(2, loaded.getChunkPointers().size());
+		assertEquals(expected.size(), loaded.getCommentCount());
+		assertEquals(expected, readPages(loaded, 7));
+		assertEquals(expected.subList(3, 10), ids(loaded.getComments(3, 7)));
+	}
+
+	@Test
+	public void testLegacyCounters() throws Exception {
+		addComments(comments, 2);
+		// parent, votes and replies
+		List<StorablePointer<?>> voted = new ArrayList<>(comments.getComments().get(0).pointers());
+		((Votes) voted.get(1).get()).vote("voter", true);
+		((Votes) voted.get(1).get()).vote("other", false);
+		((Comments) voted.get(2).get()).addComment(new Comment("agent", new Date(), "reply"));
+
+		// java serialized container with comments stored in the container itself, before counters were kept
+		List<StorableSharedPointer<Comment>> pointers = new ArrayList<>();
+		for (CommentEntry e : comments.getChunkPointers().get(0).get().getEntries()) {
+			pointers.add(e.comment);
+		}
+		Comments legacy = new Comments(permissions);
+		setField(legacy, "entries", null);
+		setField(legacy, "comments", pointers);
+		context.putContent(legacy.getId(), deserialize(legacy));
+
+		List<Comment> loaded = load(legacy.getId()).getComments();
+		assertEquals(2, loaded.size());
+		assertEquals(1, loaded.get(0).getUpvotes());
+		assertEquals(1, loaded.get(0).getDownvotes());
+		assertEquals(1, loaded.get(0).getCommentCount());
+		assertEquals(0, loaded.get(1).getUpvotes());
+		assertEquals(0, loaded.get(1).getCommentCount());
+
+		// the counted votes are stored once, known counters are kept
+		Comments container = load(legacy.getId());
+		Comment first = container.getComments().get(0);
+		container.setVoteCounts(first, 1, 1);
+		container.setVoteCounts(first, 7, 7);
+		CommentEntry entry = load(legacy.getId()).findEntry(first);
+		assertEquals(1, (int) entry.upvotes);
+		assertEquals(1, (int) entry.downvotes);
+	}
+
+	@Test
+	public void testSingleCommentCounters() throws Exception {
+		addComments(comments, 1);
+		Comment comment = comments.getComments().get(0);
+		Votes votes = (Votes) new ArrayList<>(comment.pointers()).get(1).get();
+		int[] delta = votes.vote("voter", true);
+		comments.addVotes(comment, delta[0], delta[1]);
+
+		// the counters are taken from the entry, the shards are not read
+		for (StorablePointer<?> shard : votes.getShardPointers()) {
+			context.putContent(shard.getId(), "");
+		}
+		Comment loaded = (Comment) context.storage(StorableTypes.codec()).load(comment.getId());
+		loaded.loadCounters();
+		assertEquals(1, loaded.getUpvotes());
+		assertEquals(0, loaded.getDownvotes());
+		assertEquals(0, loaded.getCommentCount());
+	}
+
+	private static void setField(Object target, String name, Object value) throws Exception {
+		Field field = target.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(target, value);
+	}
+
+	private static Serializable deserialize(Serializable object) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(object);
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			return (Serializable) in.readObject();
+		}
+	}
+
+	@Test
+	public void testReclaimedComment() throws Exception {
+		List<String> added = addComments(comments, 5);
+
+		// the page has been read before the comment was deleted and reclaimed on another node
+		CommentPage page = load(comments.getId()).getComments(0, 0);
+		context.putContent(added.get(2), "");
+
+		added.remove(2);
+		assertEquals(5, page.size());
+		assertEquals(added, ids(page));
+	}
+
+	@Test
+	public void testConcurrentDelete() throws Exception {
+		ChangeLog log = storage.init(new ChangeLog(permissions));
+		Comments thread = storage.init(new Comments(permissions, null, log));
+		addComments(thread, 1);
+		Comment owner = thread.getComments().get(0);
+		Comments replies = (Comments) new ArrayList<>(owner.pointers()).get(2).get();
+		List<String> added = addComments(replies, 2);
+		thread.addReplies(owner, 2);
+
+		// a copy of the list that has seen the reply reclaims it after it has been removed by another copy
+		Comments stale = load(replies.getId());
+		stale.getComments();
+		Comments first = load(replies.getId());
+		first.getComments().get(0).bury();
+		Comment tombstone = (Comment) context.storage(StorableTypes.codec()).load(added.get(0));
+		stale.reclaimComment(tombstone);
+
+		assertEquals(added.subList(1, 2), ids(load(replies.getId()).getComments(0, 0)));
+		assertEquals(1, load(thread.getId()).getComments().get(0).getCommentCount());
+		int deletes = 0;
+		ChangeLog loaded = (ChangeLog) context.storage(StorableTypes.codec()).load(log.getId());
+		for (Change change : loaded.getChanges(0).getChanges()) {
+			if (change.getType() == Change.Type.DELETE)
+				deletes++;
+		}
+		assertEquals(1, deletes);
+	}
+
+	@Test
+	public void testConcurrentTailChunk() throws Exception {
+		addComments(comments, Comments.CHUNK_SIZE);
+
+		// both copies have seen the full chunk and add a new one
+		Comments first = load(comments.getId());
+		Comments second = load(comments.getId());
+		List<String> added = addComments(first, 1);
+		int envelopes = context.getEnvelopeCount();
+		added.addAll(addComments(second, 1));
+
+		// the loser has deleted its chunk and appended to the chunk of the winner
+		assertEquals(envelopes + 3, context.getEnvelopeCount());
+		Comments loaded = load(comments.getId());
+		assertEquals(2, loaded.getChunkPointers().size());
+		assertEquals(added, ids(loaded.getComments(Comments.SEQUENCE_SPAN, 0)));
+		assertEquals(Comments.CHUNK_SIZE + 2, loaded.getCommentCount());
+	}
+
+	@Test
+	public void testReplyCounter() throws Exception {
+		addComments(comments, 1);
+		Comment comment = load(comments.getId()).getComments().get(0);
+
+		assertEquals(1, (int) comments.addReplies(comment, 1).replyCount);
+		assertEquals(2, (int) load(comments.getId()).addReplies(comment, 1).replyCount);
+		assertEquals(1, (int) comments.addReplies(comment, -1).replyCount);
+		assertEquals(0, (int) comments.addReplies(comment, -2).replyCount);
+		assertEquals(0, load(comments.getId()).getComments().get(0).getCommentCount());
+	}
+
+	@Test
+	public void testTombstones() throws Exception {
+		List<String> added = addComments(comments, 5);
+		int envelopes = context.getEnvelopeCount();
+
+		Comment buried = load(comments.getId()).getComments().get(2);
+		buried.bury();
+		assertEquals(envelopes, context.getEnvelopeCount());
+
+		// the tombstone is recorded with the list, so every node can reclaim it
+		Comments loaded = load(comments.getId());
+		added.remove(2);
+		assertEquals(added, ids(loaded.getComments(0, 0)));
+		List<Comment> tombstones = loaded.getTombstones();
+		assertEquals(1, tombstones.size());
+		assertEquals(buried.getId(), tombstones.get(0).getId());
+		assertTrue(tombstones.get(0).isDeleted());
+
+		// the comment, its votes and its replies are deleted; reclaiming again does nothing
+		tombstones.get(0).reclaim();
+		assertEquals(envelopes - 3, context.getEnvelopeCount());
+		assertTrue(load(comments.getId()).getTombstones().isEmpty());
+		buried.reclaim();
+		assertEquals(envelopes - 3, context.getEnvelopeCount());
+		assertEquals(4, load(comments.getId()).getCommentCount());
+
+		// tombstones that are left over are deleted with the list
+		load(comments.getId()).getComments().get(0).bury();
+		Comments deleted = load(comments.getId());
+		deleted.getStorage().delete(deleted, false, null);
+		assertEquals(0, context.getEnvelopeCount());
+	}
+
+	private static List<String> ids(CommentPage page) throws Exception {
+		List<String> ids = new ArrayList<>();
+		for (Comment c : page.getComments()) {
+			ids.add(c.getId());
+		}
+		return ids;
+	}
+
+	private static byte[] encode(String id, int version, byte[] fields) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(0xC5);
+		out.writeByte(2);
+		StorableCodec.writeVarInt(out, version);
+		StorableCodec.writeString(out, id);
+		out.writeLong(0);
+		out.writeInt(1);
+		StorableCodec.writeVarInt(out, fields.length);
+		out.write(fields);
+		return bytes.toByteArray();
+	}
+}
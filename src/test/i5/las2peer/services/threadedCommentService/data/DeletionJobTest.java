@@ -0,0 +1,76 @@
+package i5.las2peer.services.threadedCommentService.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+import i5.las2peer.services.threadedCommentService.storage.Deletion;
+import i5.las2peer.services.threadedCommentService.storage.MemoryContext;
+import i5.las2peer.services.threadedCommentService.storage.StorablePointer;
+import i5.las2peer.services.threadedCommentService.storage.StorableSharedPointer;
+import i5.las2peer.services.threadedCommentService.storage.Storage;
+
+/**
+ * Tests the stored status of a deletion
+ *
+ */
+public class DeletionJobTest {
+
+	private final Permissions permissions = new Permissions("owner", "writer", "reader");
+	private final MemoryContext context = new MemoryContext("agent");
+	private final Storage storage = context.storage(StorableTypes.codec());
+
+	private Comments addComments(int count) throws Exception {
+		Comments comments = storage.init(new Comments(permissions));
+		for (int i = 0; i < count; i++) {
+			comments.addComment(new Comment("agent", new Date(), "comment " + i));
+		}
+		return comments;
+	}
+
+	@Test
+	public void testStatus() throws Exception {
+		Comments comments = addComments(Comments.CHUNK_SIZE + 10);
+		int envelopes = context.getEnvelopeCount();
+
+		DeletionJob job = storage.init(new DeletionJob(permissions, comments.getId()));
+		Deletion deletion = storage.delete(comments, false, job);
+		assertEquals(Deletion.State.DONE, deletion.getState());
+		assertEquals(envelopes, deletion.getDeleted());
+		assertEquals(1, context.getEnvelopeCount());
+
+		// another node reads the stored status
+		DeletionJob loaded = (DeletionJob) context.storage(StorableTypes.codec()).load(job.getId());
+		assertEquals(comments.getId(), loaded.getDeletedId());
+		assertEquals(Deletion.State.DONE, loaded.getState());
+		assertEquals(envelopes, loaded.getDeleted());
+		assertEquals(deletion.getFinished(), loaded.getFinished());
+		assertNull(loaded.getError());
+	}
+
+	@Test
+	public void testRepeat() throws Exception {
+		Comments comments = addComments(10);
+		int envelopes = context.getEnvelopeCount();
+
+		// an interrupted deletion has deleted the votes and replies of a comment, but not the comment itself, which
+		// is deleted after them
+		Comment interrupted = comments.getComments().get(3);
+		int gone = 0;
+		for (StorablePointer<?> pointer : interrupted.pointers()) {
+			if (pointer instanceof StorableSharedPointer) {
+				context.putContent(pointer.getId(), "");
+				gone++;
+			}
+		}
+
+		Comments loaded = (Comments) context.storage(StorableTypes.codec()).load(comments.getId());
+		Deletion deletion = loaded.getStorage().delete(loaded, false, null);
+		assertEquals(Deletion.State.DONE, deletion.getState());
+		assertEquals(envelopes - gone, deletion.getDeleted());
+		assertEquals(0, context.getEnvelopeCount());
+	}
+}
@@ -0,0 +1,85 @@
+package i5.las2peer.services.threadedCommentService.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Date;
+
+import org.junit.Test;
+
+import i5.las2peer.services.threadedCommentService.storage.StorableCodec;
+
+/**
+ * Tests the compact storage format
+ *
+ */
+public class StorableCodecTest {
+
+	private final StorableCodec codec = StorableTypes.codec();
+
+	private static int javaSize(Object o) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(o);
+		}
+		return bytes.size();
+	}
+
+	@Test
+	public void testComment() throws IOException {
+		Comment comment = new Comment("agent", new Date(1234567890L), "some text äöü");
+		comment.setPermissions(new Permissions("owner", "writer", "reader"));
+
+		byte[] data = codec.encode(comment);
+		Comment decoded = (Comment) codec.decode(data);
+
+		assertEquals(comment.getId(), decoded.getId());
+		assertEquals("agent", decoded.getAgentId());
+		assertEquals(1234567890L, decoded.getDate().getTime());
+		assertEquals("some text äöü", decoded.getBody());
+		assertFalse(decoded.isDeleted());
+		assertTrue(data.length < javaSize(comment));
+	}
+
+	@Test
+	public void testVotes() throws Exception {
+		Votes votes = new Votes(new Permissions("owner", "writer", "reader"));
+
+		byte[] data = codec.encode(votes);
+		Votes decoded = (Votes) codec.decode(data);
+
+		assertEquals(votes.getId(), decoded.getId());
+		assertEquals(0, decoded.getUpvotes());
+		assertEquals(0, decoded.getDownvotes());
+		assertEquals(null, decoded.getShard("someone"));
+		assertTrue(data.length < javaSize(votes));
+	}
+
+	@Test
+	public void testNumbers() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		StorableCodec.writeVarLong(out, 0);
+		StorableCodec.writeVarLong(out, 127);
+		StorableCodec.writeVarLong(out, 128);
+		StorableCodec.writeVarLong(out, Long.MAX_VALUE);
+		StorableCodec.writeString(out, null);
+		StorableCodec.writeString(out, "");
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		assertEquals(0, StorableCodec.readVarLong(in));
+		assertEquals(127, StorableCodec.readVarLong(in));
+		assertEquals(128, StorableCodec.readVarLong(in));
+		assertEquals(Long.MAX_VALUE, StorableCodec.readVarLong(in));
+		assertEquals(null, StorableCodec.readString(in));
+		assertEquals("", StorableCodec.readString(in));
+	}
+
+}
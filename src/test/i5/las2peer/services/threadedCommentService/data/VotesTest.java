@@ -0,0 +1,142 @@
+package i5.las2peer.services.threadedCommentService.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import i5.las2peer.services.threadedCommentService.storage.MemoryContext;
+import i5.las2peer.services.threadedCommentService.storage.StorableCodec;
+import i5.las2peer.services.threadedCommentService.storage.StorableSharedPointer;
+import i5.las2peer.services.threadedCommentService.storage.Storage;
+
+/**
+ * Tests the sharding of votes
+ *
+ */
+public class VotesTest {
+
+	private final Permissions permissions = new Permissions("owner", "writer", "reader");
+	private final MemoryContext context = new MemoryContext("agent");
+	private final Storage storage = context.storage(StorableTypes.codec());
+
+	private Votes load(String id) throws Exception {
+		return (Votes) context.storage(StorableTypes.codec()).load(id);
+	}
+
+	@Test
+	public void testSplit() throws Exception {
+		Votes votes = storage.init(new Votes(permissions));
+		int voters = 4 * Votes.MAX_SHARD_SIZE;
+		for (int i = 0; i < voters; i++) {
+			int[] delta = votes.vote("voter" + i, i % 3 != 0);
+			assertArrayEquals(i % 3 == 0 ? new int[] { 0, 1 } : new int[] { 1, 0 }, delta);
+		}
+
+		Votes loaded = load(votes.getId());
+		assertEquals(voters - voters / 3 - 1, loaded.getUpvotes());
+		assertEquals(voters / 3 + 1, loaded.getDownvotes());
+		for (int i = 0; i < voters; i++) {
+			assertEquals(i % 3 == 0 ? -1 : 1, loaded.getVote("voter" + i));
+		}
+		assertEquals(0, loaded.getVote("someone"));
+
+		// every shard is bounded, replaced shards have been deleted
+		assertTrue(loaded.getShardPointers().size() >= voters / Votes.MAX_SHARD_SIZE);
+		for (StorableSharedPointer<VoteShard> shard : loaded.getShardPointers()) {
+			assertTrue(shard.get().size() <= Votes.MAX_SHARD_SIZE + 1);
+		}
+		assertEquals(1 + loaded.getShardPointers().size(), context.getEnvelopeCount());
+	}
+
+	@Test
+	public void testRevote() throws Exception {
+		Votes votes = storage.init(new Votes(permissions));
+
+		assertArrayEquals(new int[] { 1, 0 }, votes.vote("voter", true));
+		assertArrayEquals(new int[] { 0, 0 }, votes.vote("voter", true));
+		assertArrayEquals(new int[] { -1, 1 }, votes.vote("voter", false));
+		assertEquals(0, votes.getUpvotes());
+		assertEquals(1, votes.getDownvotes());
+	}
+
+	@Test
+	public void testStaleCopy() throws Exception {
+		Votes votes = storage.init(new Votes(permissions));
+		votes.vote("first", true);
+
+		// read before the shard is split and deleted
+		Votes stale = load(votes.getId());
+		StorableSharedPointer<VoteShard> replaced = stale.getShard("late");
+		for (int i = 0; i <= Votes.MAX_SHARD_SIZE; i++) {
+			votes.vote("voter" + i, true);
+		}
+		assertFalse(load(votes.getId()).getShard("late").getId().equals(replaced.getId()));
+
+		assertArrayEquals(new int[] { 1, 0 }, stale.vote("late", true));
+		Votes loaded = load(votes.getId());
+		assertEquals(Votes.MAX_SHARD_SIZE + 3, loaded.getUpvotes());
+		assertEquals(1, loaded.getVote("late"));
+	}
+
+	@Test
+	public void testLegacyShards() throws Exception {
+		String voter = "legacy";
+		VoteShard shard = storage.init(new VoteShard(permissions));
+		shard.vote(voter, true);
+
+		// container with 16 fixed shards, counts and votes stored before sharding
+		ByteArrayOutputStream fields = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(fields);
+		permissions.write(out);
+		StorableCodec.writeVarInt(out, 16);
+		for (int i = 0; i < 16; i++) {
+			if (i == (Votes.hash(voter) & 15)) {
+				out.writeByte(1);
+				StorableCodec.writeString(out, shard.getId());
+				StorableCodec.writeVarInt(out, 1);
+			} else {
+				out.writeByte(0);
+				StorableCodec.writeVarInt(out, 0);
+			}
+			StorableCodec.writeVarInt(out, 0);
+		}
+		StorableCodec.writeStrings(out, Collections.singleton("old"));
+		StorableCodec.writeStrings(out, Collections.<String> emptySet());
+		context.putContent("votes", encode("votes", 1, fields.toByteArray()));
+
+		Votes votes = load("votes");
+		assertEquals(2, votes.getUpvotes());
+		assertEquals(1, votes.getVote(voter));
+		assertEquals(1, votes.getVote("old"));
+
+		// the voter of the old format is moved to its shard
+		assertArrayEquals(new int[] { 0, 0 }, votes.vote("old", true));
+		assertArrayEquals(new int[] { 1, 0 }, votes.vote("new", true));
+		Votes loaded = load("votes");
+		assertEquals(3, loaded.getUpvotes());
+		assertEquals(1, loaded.getVote("old"));
+		assertEquals(1, loaded.getVote(voter));
+	}
+
+	private static byte[] encode(String id, int version, byte[] fields) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(0xC5);
+		out.writeByte(4);
+		StorableCodec.writeVarInt(out, version);
+		StorableCodec.writeString(out, id);
+		out.writeLong(0);
+		out.writeInt(1);
+		StorableCodec.writeVarInt(out, fields.length);
+		out.write(fields);
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,240 @@
+package i5.las2peer.services.threadedCommentService.storage;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import i5.las2peer.api.Context;
+import i5.las2peer.api.persistency.Envelope;
+import i5.las2peer.api.persistency.EnvelopeNotFoundException;
+import i5.las2peer.api.persistency.EnvelopeOperationFailedException;
+import i5.las2peer.api.security.Agent;
+import i5.las2peer.api.security.GroupAgent;
+
+/**
+ * In-memory stand-in for the context of a service, so Storages can be tested without a node. Provides the envelope
+ * and agent operations used by Storage. Envelopes are versioned like in the network storage: storing an envelope
+ * fails if another copy has been stored since it was requested. Access rights are not checked.
+ *
+ */
+public class MemoryContext {
+
+	private static class Stored {
+		final long version;
+		final Serializable content;
+
+		Stored(long version, Serializable content) {
+			this.version = version;
+			this.content = content;
+		}
+	}
+
+	private final Map<String, Stored> envelopes = new ConcurrentHashMap<>();
+	private final AtomicInteger stores = new AtomicInteger();
+	private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r);
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final Agent mainAgent;
+	private final Context context;
+
+	/**
+	 *
+	 * @param agentId Id of the main agent
+	 */
+	public MemoryContext(String agentId) {
+		this.mainAgent = agent(Agent.class, agentId);
+		this.context = proxy(Context.class, this::invokeContext);
+	}
+
+	/**
+	 *
+	 * @return The context
+	 */
+	public Context get() {
+		return context;
+	}
+
+	/**
+	 * Creates a Storage using this context
+	 *
+	 * @param codec Compact format for envelope contents
+	 * @return A Storage without cache and owner group registry
+	 */
+	public Storage storage(StorableCodec codec) {
+		return new Storage(context, null, null, codec);
+	}
+
+	/**
+	 *
+	 * @param id Id of an envelope
+	 * @return Content of the envelope, null if it does not exist
+	 */
+	public Serializable getContent(String id) {
+		Stored stored = envelopes.get(id);
+		return stored == null ? null : stored.content;
+	}
+
+	/**
+	 * Stores an envelope directly, e.g. in an old format.
+	 *
+	 * @param id Id of the envelope
+	 * @param content Content of the envelope
+	 */
+	public void putContent(String id, Serializable content) {
+		envelopes.compute(id, (key, stored) -> new Stored(stored == null ? 1 : stored.version + 1, content));
+	}
+
+	/**
+	 *
+	 * @return Number of successful envelope writes
+	 */
+	public int getStoreCount() {
+		return stores.get();
+	}
+
+	/**
+	 *
+	 * @return Number of envelopes that have not been deleted
+	 */
+	public int getEnvelopeCount() {
+		int count = 0;
+		for (Stored stored : envelopes.values()) {
+			if (!"".equals(stored.content))
+				count++;
+		}
+		return count;
+	}
+
+	private Object invokeContext(Method method, Object[] args) throws Exception {
+		switch (method.getName()) {
+		case "getMainAgent":
+			return mainAgent;
+		case "getExecutor":
+			return executor;
+		case "requestEnvelope": {
+			Stored stored = envelopes.get((String) args[0]);
+			if (stored == null)
+				throw new EnvelopeNotFoundException("Envelope " + args[0] + " not found");
+			return envelope((String) args[0], stored.version, stored.content);
+		}
+		case "createEnvelope":
+			return envelope((String) args[0], 0, null);
+		case "storeEnvelope":
+			store((Envelope) args[0]);
+			return null;
+		case "fetchAgent":
+		case "requestAgent":
+			return agent(Agent.class, (String) args[0]);
+		case "createGroupAgent":
+			return agent(GroupAgent.class, UUID.randomUUID().toString());
+		case "storeAgent":
+			return null;
+		case "hasAccess":
+			return true;
+		default:
+			throw new UnsupportedOperationException(method.getName());
+		}
+	}
+
+	private void store(Envelope envelope) throws EnvelopeOperationFailedException {
+		EnvelopeState state = (EnvelopeState) Proxy.getInvocationHandler(envelope);
+		synchronized (envelopes) {
+			Stored stored = envelopes.get(state.id);
+			long version = stored == null ? 0 : stored.version;
+			if (version != state.version)
+				throw new EnvelopeOperationFailedException("Envelope " + state.id + " has been changed concurrently");
+
+			state.version = version + 1;
+			envelopes.put(state.id, new Stored(state.version, state.content));
+		}
+		stores.incrementAndGet();
+	}
+
+	/**
+	 * Copy of an envelope held by a request
+	 */
+	private static class EnvelopeState implements InvocationHandler {
+		final String id;
+		long version;
+		Serializable content;
+
+		EnvelopeState(String id, long version, Serializable content) {
+			this.id = id;
+			this.version = version;
+			this.content = content;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			switch (method.getName()) {
+			case "getIdentifier":
+				return id;
+			case "getVersion":
+				return version;
+			case "getContent":
+				return content;
+			case "setContent":
+				content = (Serializable) args[0];
+				return null;
+			case "addReader":
+			case "setPublic":
+				return null;
+			default:
+				return objectMethod(proxy, method, args, id);
+			}
+		}
+	}
+
+	private static Envelope envelope(String id, long version, Serializable content) {
+		return (Envelope) Proxy.newProxyInstance(MemoryContext.class.getClassLoader(), new Class<?>[] { Envelope.class },
+				new EnvelopeState(id, version, content));
+	}
+
+	private static <A extends Agent> A agent(Class<A> type, String id) {
+		return proxy(type, (method, args) -> {
+			switch (method.getName()) {
+			case "getIdentifier":
+				return id;
+			case "isLocked":
+				return false;
+			default:
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	private interface Handler {
+		Object invoke(Method method, Object[] args) throws Exception;
+	}
+
+	private static <T> T proxy(Class<T> type, Handler handler) {
+		return type.cast(Proxy.newProxyInstance(MemoryContext.class.getClassLoader(), new Class<?>[] { type },
+				(proxy, method, args) -> {
+					if (method.getDeclaringClass() == Object.class)
+						return objectMethod(proxy, method, args, type.getSimpleName());
+					return handler.invoke(method, args);
+				}));
+	}
+
+	private static Object objectMethod(Object proxy, Method method, Object[] args, String name) {
+		switch (method.getName()) {
+		case "equals":
+			return proxy == args[0];
+		case "hashCode":
+			return System.identityHashCode(proxy);
+		case "toString":
+			return name;
+		default:
+			throw new UnsupportedOperationException(method.getName());
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package i5.las2peer.services.threadedCommentService.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the handover of leadership and the fan-out of results of coalesced writes.
+ *
+ */
+public class WriteCoalescerTest {
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	private static class Item extends Storable {
+		private static final long serialVersionUID = 1L;
+
+		Item(String id) {
+			restore(id, 0, 0);
+		}
+
+		@Override
+		protected void init() {
+		}
+
+		@Override
+		protected boolean cleanup() {
+			return true;
+		}
+
+		@Override
+		protected void writeFields(DataOutput out) {
+		}
+
+		@Override
+		protected void readFields(DataInput in, int version) {
+		}
+	}
+
+	/**
+	 * Records the batches written. The first write blocks until released, further writes fail if an error is set.
+	 */
+	private static class RecordingStorage extends Storage {
+		final List<List<Storable>> batches = Collections.synchronizedList(new ArrayList<>());
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		volatile StorageException error;
+
+		RecordingStorage() {
+			super(null, null, null, null);
+		}
+
+		@Override
+		void updateEnvelope(List<Storable> storables) throws StorageException {
+			batches.add(new ArrayList<>(storables));
+			if (batches.size() == 1) {
+				writing.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new StorageException(e);
+				}
+			} else if (error != null) {
+				throw error;
+			}
+		}
+	}
+
+	private Future<Exception> write(WriteCoalescer coalescer, Storage storage, Storable storable) {
+		return executor.submit(() -> {
+			try {
+				coalescer.write(storage, storable);
+				return null;
+			} catch (Exception e) {
+				return e;
+			}
+		});
+	}
+
+	private static void awaitQueued(WriteCoalescer coalescer, String id, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (coalescer.getQueued(id) < count) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+	}
+
+	@Test
+	public void testSingleWriterDoesNotWait() throws Exception {
+		WriteCoalescer coalescer = new WriteCoalescer(100, 5000);
+		RecordingStorage storage = new RecordingStorage();
+		storage.release.countDown();
+
+		long start = System.nanoTime();
+		coalescer.write(storage, new Item("a"));
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+		assertEquals(1, storage.batches.size());
+		assertEquals(0, coalescer.getQueued("a"));
+	}
+
+	@Test
+	public void testHandover() throws Exception {
+		WriteCoalescer coalescer = new WriteCoalescer(100, 10);
+		RecordingStorage storage = new RecordingStorage();
+
+		Future<Exception> first = write(coalescer, storage, new Item("a"));
+		assertTrue(storage.writing.await(5, TimeUnit.SECONDS));
+
+		// queued while the first write is running, written together by the next leader
+		Item second = new Item("a");
+		Item third = new Item("a");
+		Future<Exception> f2 = write(coalescer, storage, second);
+		Future<Exception> f3 = write(coalescer, storage, third);
+		awaitQueued(coalescer, "a", 2);
+		storage.release.countDown();
+
+		assertEquals(null, first.get(5, TimeUnit.SECONDS));
+		assertEquals(null, f2.get(5, TimeUnit.SECONDS));
+		assertEquals(null, f3.get(5, TimeUnit.SECONDS));
+		assertEquals(2, storage.batches.size());
+		assertEquals(2, storage.batches.get(1).size());
+		assertTrue(storage.batches.get(1).contains(second));
+		assertTrue(storage.batches.get(1).contains(third));
+		assertEquals(0, coalescer.getQueued("a"));
+	}
+
+	@Test
+	public void testErrorFanOut() throws Exception {
+		WriteCoalescer coalescer = new WriteCoalescer(100, 10);
+		RecordingStorage storage = new RecordingStorage();
+		storage.error = new StorageException("write failed");
+
+		Future<Exception> first = write(coalescer, storage, new Item("a"));
+		assertTrue(storage.writing.await(5, TimeUnit.SECONDS));
+		Future<Exception> f2 = write(coalescer, storage, new Item("a"));
+		Future<Exception> f3 = write(coalescer, storage, new Item("a"));
+		awaitQueued(coalescer, "a", 2);
+		storage.release.countDown();
+
+		assertEquals(null, first.get(5, TimeUnit.SECONDS));
+		assertSame(storage.error, f2.get(5, TimeUnit.SECONDS));
+		assertSame(storage.error, f3.get(5, TimeUnit.SECONDS));
+
+		// the failed batch does not block later writes
+		storage.error = null;
+		coalescer.write(storage, new Item("a"));
+		assertEquals(3, storage.batches.size());
+	}
+}